@@ -0,0 +1,167 @@
+/*
+*Copyright (C) 2021 Harshith Doddipalli
+*
+*Licensed under the Apache License, Version 2.0 (the "License");
+*you may not use this file except in compliance with the License.
+*You may obtain a copy of the License at
+*
+*	http://www.apache.org/licenses/LICENSE-2.0
+*
+*Unless required by applicable law or agreed to in writing, software
+*distributed under the License is distributed on an "AS IS" BASIS,
+*WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*See the License for the specific language governing permissions and
+*limitations under the License.
+*/
+
+package com.hdr.tello.v2;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/*
+	The classic setup: a DatagramSocket per port and a thread blocked in receive() on each of them.
+	Kept to compare against NioTransport and for platforms where selectors misbehave.
+*/
+
+public class BlockingTransport implements Transport {
+	private static final int PACKET_SIZE = 2048;
+
+	private final int receiveBufferSize;
+	private volatile DatagramSocket command; //Read by send() without the lock, null once closed
+	private DatagramSocket state;
+	private DatagramSocket video;
+	private Thread[] threads;
+	private InetSocketAddress drone;
+	private volatile boolean running;
+
+	public BlockingTransport(){
+		this(0);
+	}
+
+	//receiveBufferSize sets SO_RCVBUF on every socket, 0 keeps the system default
+	public BlockingTransport(int receiveBufferSize){
+		this.receiveBufferSize = receiveBufferSize;
+	}
+
+	@Override
+	public synchronized void open(InetSocketAddress drone, int statePort, int videoPort, Receiver receiver) throws IOException {
+		this.drone = drone;
+		try{
+			//The fixed ports first, so the ephemeral command port can't be handed one of them between two opens
+			state = socket(new InetSocketAddress(statePort));
+			video = socket(new InetSocketAddress(videoPort));
+			command = socket(new InetSocketAddress(0));
+		}catch(IOException e){
+			closeSockets();
+			throw e;
+		}
+		running = true;
+		threads = new Thread[]{
+			new ReceiveThread(command, COMMAND, receiver),
+			new ReceiveThread(state, STATE, receiver),
+			new ReceiveThread(video, VIDEO, receiver)
+		};
+		for(Thread t : threads){
+			t.start();
+		}
+	}
+
+	private DatagramSocket socket(InetSocketAddress local) throws IOException {
+		DatagramSocket socket = new DatagramSocket(null);
+		//The ports can be bound again straight after close(), by this transport or another one. Not the ephemeral
+		//one, with SO_REUSEADDR the kernel may pick a port that is bound already and the two share its packets
+		socket.setReuseAddress(local.getPort() != 0);
+		if(receiveBufferSize > 0){
+			socket.setReceiveBufferSize(receiveBufferSize);
+		}
+		socket.bind(local);
+		return socket;
+	}
+
+	@Override
+	public void send(ByteBuffer data) throws IOException {
+		final DatagramSocket socket = command;
+		if(socket == null){
+			throw new SocketException("Socket is closed"); //What a closed DatagramSocket throws too
+		}
+		final int length = data.remaining();
+		byte[] bytes;
+		int offset;
+		if(data.hasArray()){
+			bytes = data.array();
+			offset = data.arrayOffset() + data.position();
+		}else{
+			bytes = new byte[length];
+			data.duplicate().get(bytes);
+			offset = 0;
+		}
+		socket.send(new DatagramPacket(bytes, offset, length, drone));
+		data.position(data.limit());
+	}
+
+	@Override
+	public synchronized void close(){
+		running = false;
+		if(threads == null){
+			return;
+		}
+		//Closing a socket is the only way to get a thread out of receive()
+		closeSockets();
+		for(Thread t : threads){
+			if(t != Thread.currentThread()){
+				try{
+					t.join();
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		threads = null;
+	}
+
+	private void closeSockets(){
+		for(DatagramSocket socket : new DatagramSocket[]{command, state, video}){
+			if(socket != null){
+				socket.close();
+			}
+		}
+		command = state = video = null;
+	}
+
+	private class ReceiveThread extends Thread {
+		private final DatagramSocket socket;
+		private final int port;
+		private final Receiver receiver;
+
+		ReceiveThread(DatagramSocket socket, int port, Receiver receiver){
+			super("Tello-transport-" + port);
+			this.socket = socket;
+			this.port = port;
+			this.receiver = receiver;
+		}
+
+		@Override
+		public void run(){
+			byte[] buf = new byte[PACKET_SIZE];
+			ByteBuffer view = ByteBuffer.wrap(buf);
+			DatagramPacket packet = new DatagramPacket(buf, buf.length);
+			while(running){
+				try{
+					packet.setLength(buf.length);
+					socket.receive(packet);
+					view.limit(packet.getLength()).position(0);
+					receiver.onPacket(port, view);
+				}catch(Exception e){
+					if(running){
+						receiver.onError(port, e);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,453 @@
+/*
+*Copyright (C) 2021 Harshith Doddipalli
+*
+*Licensed under the Apache License, Version 2.0 (the "License");
+*you may not use this file except in compliance with the License.
+*You may obtain a copy of the License at
+*
+*	http://www.apache.org/licenses/LICENSE-2.0
+*
+*Unless required by applicable law or agreed to in writing, software
+*distributed under the License is distributed on an "AS IS" BASIS,
+*WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*See the License for the specific language governing permissions and
+*limitations under the License.
+*/
+
+package com.hdr.tello.v2;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import com.hdr.tello.v2.Tello.TelloState;
+
+/*
+	Keeps a Tello connected. A tick on the timer thread watches the state packets on 8890, query timeouts and
+	the SNR from "wifi?". When the state stream goes quiet or queries keep timing out, the link counts as lost.
+	Moves don't count, the drone only answers them once they are flown.
+	"command" is then sent again with exponential backoff, and every few attempts the sockets are reopened.
+	Once the drone answers, "streamon" is repeated if the app had the video on. While connected, a poor SNR or
+	heavy video loss steps the bitrate and frame rate down with setbitrate and setfps. They step back up after
+	the link has been good for a while.
+
+	Everything the app hears comes as link events: one per change, no more often than setEventInterval(). Socket
+	errors are counted into the next event instead of being reported one by one.
+*/
+
+public class ConnectionSupervisor {
+	public static final int CONNECTED = 0;
+	public static final int DEGRADED = 1;  //Connected, with the video turned down
+	public static final int LOST = 2;
+
+	private static final String[] STATUS_NAMES = {"connected", "degraded", "lost"};
+
+	//Video settings from full quality down. setbitrate takes Mbit/s with 0 for auto, setfps high, middle or low
+	private static final String[][] LEVELS = {
+		{"setbitrate 0", "setfps high"},
+		{"setbitrate 3", "setfps high"},
+		{"setbitrate 2", "setfps middle"},
+		{"setbitrate 1", "setfps low"}
+	};
+
+	private static final long TICK_MS = 100;
+	private static final long ATTEMPT_TIMEOUT_MS = 500;
+	private static final int TIMEOUTS_LOST = 3;     //Queries or "command" in a row without a reply
+	private static final int RESTART_EVERY = 4;     //Attempts between reopening the sockets
+	private static final long VIDEO_STALL_MS = 2000;
+	private static final long QUALITY_PERIOD_MS = 2000;
+	private static final long SNR_PERIOD_MS = 5000;
+	private static final long DEGRADE_HOLD_MS = 3000; //Lets a new setting take effect before judging it
+	private static final long MIN_FRAMES = 10;      //Fewer frames in a period say nothing about loss
+
+	public interface LinkListener {
+		//status is CONNECTED, DEGRADED or LOST, level the video step (0 is full quality)
+		void onLinkChanged(int status, int level, String detail);
+	}
+
+	private final Tello tello;
+	private final TelloMetrics metrics;
+	private volatile LinkListener listener;
+	private volatile Executor executor;
+	private long lostAfterNanos = TimeUnit.MILLISECONDS.toNanos(1500);
+	private long minBackoffNanos = TimeUnit.MILLISECONDS.toNanos(100);
+	private long maxBackoffNanos = TimeUnit.SECONDS.toNanos(5);
+	private long eventIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+	private long recoverNanos = TimeUnit.SECONDS.toNanos(10);
+	private int snrLow = 40;
+	private int snrGood = 60;
+	private double lossHigh = 0.05;
+	private double lossLow = 0.01;
+	private ScheduledFuture<?> task;
+
+	//Timer thread only from here
+	private final TelloState state = new TelloState();
+	private long startedAt;
+	private long repliesSeen;
+	private long timeoutsAtReply;
+	private long lostAt;
+	private long nextAttemptAt;
+	private long backoffNanos;
+	private int attempts;
+	private boolean restarting; //The supervisor stopped Tello and hasn't managed to start it again
+	private CompletableFuture<String> attempt;
+	private long videoPackets;
+	private long videoChangedAt;
+	private long nextStreamonAt;
+	private long streamonBackoffNanos;
+	private long qualityAt;
+	private long reassembledAt;
+	private long droppedAt;
+	private long snrQueriedAt;
+	private long levelChangedAt;
+	private long goodSince;
+	private long lastEventAt;
+	private String pendingDetail;
+	private int coalesced;
+
+	//Written from other threads
+	private volatile int status = CONNECTED;
+	private volatile int level;
+	private volatile int snr = -1;
+	private volatile long reconnects;
+	private volatile long lastOutageNanos;
+	private final AtomicLong transportErrors = new AtomicLong();
+	private volatile String lastTransportError;
+	private long reportedErrors; //Timer thread
+
+	public ConnectionSupervisor(Tello tello){
+		this.tello = tello;
+		this.metrics = tello.getMetrics();
+	}
+
+	//Events go to the UI thread
+	public ConnectionSupervisor setListener(LinkListener listener){
+		return setListener(listener, tello.getUiExecutor());
+	}
+
+	public ConnectionSupervisor setListener(LinkListener listener, Executor executor){
+		this.executor = executor;
+		this.listener = listener;
+		return this;
+	}
+
+	//How long without a state packet before the link counts as lost. The drone sends ten a second
+	public ConnectionSupervisor setLostAfter(long ms){
+		this.lostAfterNanos = TimeUnit.MILLISECONDS.toNanos(ms);
+		return this;
+	}
+
+	//Wait before the first reconnect attempt, doubled after every failed one up to maxMs
+	public ConnectionSupervisor setBackoff(long minMs, long maxMs){
+		this.minBackoffNanos = TimeUnit.MILLISECONDS.toNanos(minMs);
+		this.maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(maxMs);
+		return this;
+	}
+
+	//Least time between two events. Changes in between are merged into the next one
+	public ConnectionSupervisor setEventInterval(long ms){
+		this.eventIntervalNanos = TimeUnit.MILLISECONDS.toNanos(ms);
+		return this;
+	}
+
+	//Below low the video steps down, at or above good for the recovery time it steps back up
+	public ConnectionSupervisor setSnrThresholds(int low, int good){
+		this.snrLow = low;
+		this.snrGood = good;
+		return this;
+	}
+
+	//Share of video frames dropped in a period that steps down, and the share below which it may step up
+	public ConnectionSupervisor setLossThresholds(double high, double low){
+		this.lossHigh = high;
+		this.lossLow = low;
+		return this;
+	}
+
+	//How long the link has to stay good before the video steps back up
+	public ConnectionSupervisor setRecoveryTime(long ms){
+		this.recoverNanos = TimeUnit.MILLISECONDS.toNanos(ms);
+		return this;
+	}
+
+	public synchronized ConnectionSupervisor start(){
+		if(task != null){
+			return this;
+		}
+		startedAt = System.nanoTime();
+		videoChangedAt = startedAt;
+		qualityAt = startedAt;
+		levelChangedAt = startedAt;
+		backoffNanos = minBackoffNanos;
+		streamonBackoffNanos = TimeUnit.MILLISECONDS.toNanos(VIDEO_STALL_MS);
+		repliesSeen = metrics.getCommandReplies();
+		timeoutsAtReply = metrics.getProbeTimeouts();
+		reassembledAt = metrics.getFramesReassembled();
+		droppedAt = tello.getFramesDropped();
+		tello.setSupervisor(this);
+		task = tello.schedule(new Runnable(){
+			@Override
+			public void run(){
+				try{
+					tick();
+				}catch(RuntimeException e){
+					event("supervisor error: " + e);
+				}
+			}
+		}, TICK_MS);
+		return this;
+	}
+
+	public synchronized void stop(){
+		if(task != null){
+			task.cancel(false);
+			task = null;
+			tello.setSupervisor(null);
+		}
+	}
+
+	public int getStatus(){
+		return status;
+	}
+
+	//0 is full quality, higher steps have a lower bitrate and frame rate
+	public int getLevel(){
+		return level;
+	}
+
+	//From the last "wifi?", -1 before the first answer
+	public int getSnr(){
+		return snr;
+	}
+
+	public long getReconnects(){
+		return reconnects;
+	}
+
+	//From losing the link to getting it back, for the last outage
+	public long getLastOutageMs(){
+		return TimeUnit.NANOSECONDS.toMillis(lastOutageNanos);
+	}
+
+	public long getTransportErrors(){
+		return transportErrors.get();
+	}
+
+	//Called on whichever thread hit the error. Counted here and summed up in the next event
+	boolean onTransportError(Exception e){
+		transportErrors.incrementAndGet();
+		lastTransportError = String.valueOf(e.getMessage());
+		return true;
+	}
+
+	private void tick(){
+		final long now = System.nanoTime();
+		if(!tello.isRunning() && !restarting){
+			return; //Stopped by the app, not ours to reconnect
+		}
+		tello.getState(state);
+		final long lastStateAt = state.sequence == 0 ? startedAt : Math.max(startedAt, state.receivedAt);
+		final long replies = metrics.getCommandReplies();
+		final long timeouts = metrics.getProbeTimeouts();
+		if(replies != repliesSeen){
+			repliesSeen = replies;
+			timeoutsAtReply = timeouts;
+		}
+		final boolean stale = now - lastStateAt > lostAfterNanos;
+		final boolean silent = timeouts - timeoutsAtReply >= TIMEOUTS_LOST;
+
+		if(status != LOST){
+			if(stale || silent){
+				lost(now, stale ? "no state for " + TimeUnit.NANOSECONDS.toMillis(now - lastStateAt) + " ms" : (timeouts - timeoutsAtReply) + " queries timed out");
+			}else{
+				checkVideo(now);
+				checkQuality(now);
+			}
+		}else if(!stale && !silent && !restarting){
+			recovered(now);
+		}else if((now >= nextAttemptAt || !stale) && (attempt == null || attempt.isDone())){
+			reconnect(now); //Straight away once state flows again, the drone is back and only needs to answer
+		}
+
+		flushEvent(now);
+	}
+
+	private void lost(long now, String reason){
+		status = LOST;
+		lostAt = now;
+		attempts = 0;
+		backoffNanos = minBackoffNanos;
+		nextAttemptAt = now;
+		event("link lost, " + reason);
+	}
+
+	//Every RESTART_EVERY attempts the sockets are reopened, which gets past a network that went away under them
+	private void reconnect(long now){
+		attempts++;
+		nextAttemptAt = now + backoffNanos;
+		backoffNanos = Math.min(maxBackoffNanos, backoffNanos * 2);
+		if(restarting || attempts % RESTART_EVERY == 0){
+			//Only a socket that can't be opened yet is retried. Anything else leaves Tello to the app instead of
+			//failing the same way on every tick
+			boolean retry = false;
+			restarting = true;
+			try{
+				tello.stop();
+				tello.start(); //Sends "command" itself
+			}catch(IOException e){
+				retry = true;
+				event("reconnect attempt " + attempts + " failed: " + e.getMessage());
+			}finally{
+				restarting = retry;
+			}
+			return;
+		}
+		//A reply of any kind shows up in the reply counter, which is all the next tick needs
+		attempt = tello.sendQuietly("command", ATTEMPT_TIMEOUT_MS);
+	}
+
+	private void recovered(long now){
+		lastOutageNanos = now - lostAt;
+		reconnects++;
+		status = level > 0 ? DEGRADED : CONNECTED;
+		//The drone may have rebooted, which turns the video off and resets its settings
+		if(tello.isStreamRequested()){
+			tello.sendQuietly("streamon", ATTEMPT_TIMEOUT_MS);
+		}
+		if(level > 0){
+			for(String command : LEVELS[level]){
+				tello.sendQuietly(command, ATTEMPT_TIMEOUT_MS);
+			}
+		}
+		videoChangedAt = now;
+		qualityAt = now;
+		reassembledAt = metrics.getFramesReassembled();
+		droppedAt = tello.getFramesDropped();
+		event("reconnected after " + TimeUnit.NANOSECONDS.toMillis(lastOutageNanos) + " ms, " + attempts + " attempts");
+	}
+
+	//State flows but video doesn't: streamon got lost or the drone forgot it
+	private void checkVideo(long now){
+		final long packets = metrics.getPackets(Transport.VIDEO);
+		if(packets != videoPackets || !tello.isStreamRequested()){
+			videoPackets = packets;
+			videoChangedAt = now;
+			streamonBackoffNanos = TimeUnit.MILLISECONDS.toNanos(VIDEO_STALL_MS);
+			return;
+		}
+		if(now - videoChangedAt >= TimeUnit.MILLISECONDS.toNanos(VIDEO_STALL_MS) && now >= nextStreamonAt){
+			tello.sendQuietly("streamon", ATTEMPT_TIMEOUT_MS);
+			nextStreamonAt = now + streamonBackoffNanos;
+			streamonBackoffNanos = Math.min(maxBackoffNanos, streamonBackoffNanos * 2);
+		}
+	}
+
+	private void checkQuality(long now){
+		if(now - snrQueriedAt >= TimeUnit.MILLISECONDS.toNanos(SNR_PERIOD_MS)){
+			snrQueriedAt = now;
+			tello.sendQuietly("wifi?", ATTEMPT_TIMEOUT_MS).whenComplete(new BiConsumer<String, Throwable>(){
+				@Override
+				public void accept(String reply, Throwable error){
+					if(error == null){
+						try{
+							snr = Integer.parseInt(reply.trim());
+						}catch(NumberFormatException e){
+							//"error" from firmware that doesn't know the command
+						}
+					}
+				}
+			});
+		}
+		if(now - qualityAt < TimeUnit.MILLISECONDS.toNanos(QUALITY_PERIOD_MS)){
+			return;
+		}
+		qualityAt = now;
+		final long reassembled = metrics.getFramesReassembled();
+		final long dropped = tello.getFramesDropped();
+		final long frames = reassembled - reassembledAt + dropped - droppedAt;
+		final double loss = frames < MIN_FRAMES ? -1 : (double) (dropped - droppedAt) / frames;
+		reassembledAt = reassembled;
+		droppedAt = dropped;
+
+		final int currentSnr = snr;
+		final boolean bad = (currentSnr >= 0 && currentSnr < snrLow) || loss > lossHigh;
+		final boolean good = (currentSnr < 0 || currentSnr >= snrGood) && loss < lossLow;
+		if(bad){
+			goodSince = 0;
+			if(level < LEVELS.length - 1 && now - levelChangedAt >= TimeUnit.MILLISECONDS.toNanos(DEGRADE_HOLD_MS)){
+				setLevel(level + 1, now, String.format(Locale.US, "snr %d, video loss %.1f%%", currentSnr, Math.max(0, loss) * 100));
+			}
+		}else if(good){
+			if(goodSince == 0){
+				goodSince = now;
+			}
+			if(level > 0 && now - goodSince >= recoverNanos && now - levelChangedAt >= recoverNanos){
+				setLevel(level - 1, now, "link good for " + TimeUnit.NANOSECONDS.toSeconds(now - goodSince) + " s");
+			}
+		}else{
+			goodSince = 0;
+		}
+	}
+
+	//Sends only the settings that differ from the current step
+	private void setLevel(int next, long now, String reason){
+		for(int i = 0; i < LEVELS[next].length; i++){
+			if(!LEVELS[next][i].equals(LEVELS[level][i])){
+				tello.sendQuietly(LEVELS[next][i], ATTEMPT_TIMEOUT_MS);
+			}
+		}
+		final boolean down = next > level;
+		level = next;
+		levelChangedAt = now;
+		status = next > 0 ? DEGRADED : CONNECTED;
+		event("video " + (down ? "down" : "up") + " to " + LEVELS[next][0] + ", " + LEVELS[next][1] + " (" + reason + ")");
+	}
+
+	//Keeps only the latest detail until the interval since the last event has passed
+	private void event(String detail){
+		if(pendingDetail != null){
+			coalesced++;
+		}
+		pendingDetail = detail;
+	}
+
+	private void flushEvent(long now){
+		final long errors = transportErrors.get();
+		if((pendingDetail == null && errors == reportedErrors) || (lastEventAt != 0 && now - lastEventAt < eventIntervalNanos)){
+			return;
+		}
+		StringBuilder sb = new StringBuilder();
+		if(pendingDetail != null){
+			sb.append(pendingDetail);
+			if(coalesced > 0){
+				sb.append(" (").append(coalesced).append(" earlier changes merged)");
+			}
+		}
+		if(errors != reportedErrors){
+			sb.append(sb.length() > 0 ? ", " : "").append(errors - reportedErrors).append(" socket errors, last: ").append(lastTransportError);
+			reportedErrors = errors;
+		}
+		pendingDetail = null;
+		coalesced = 0;
+		lastEventAt = now;
+
+		final String detail = sb.toString();
+		final int currentStatus = status;
+		final int currentLevel = level;
+		tello.log(Tello.LOG_INFO, "Link " + STATUS_NAMES[currentStatus] + ": " + detail);
+		final LinkListener l = listener;
+		if(l != null){
+			executor.execute(new Runnable(){
+				@Override
+				public void run(){
+					l.onLinkChanged(currentStatus, currentLevel, detail);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,246 @@
+/*
+*Copyright (C) 2021 Harshith Doddipalli
+*
+*Licensed under the Apache License, Version 2.0 (the "License");
+*you may not use this file except in compliance with the License.
+*You may obtain a copy of the License at
+*
+*	http://www.apache.org/licenses/LICENSE-2.0
+*
+*Unless required by applicable law or agreed to in writing, software
+*distributed under the License is distributed on an "AS IS" BASIS,
+*WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*See the License for the specific language governing permissions and
+*limitations under the License.
+*/
+
+package com.hdr.tello.v2;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.hdr.tello.v2.Tello.TelloListener;
+
+/*
+	Carries errors from Tello's threads to the app without flooding it. Errors are counted per source and
+	exception type. At most one flush is queued on the executor at any time, and flushes are at least the
+	interval apart. Each flush hands the listener one summary per source and type that occurred since the
+	previous flush, with the latest message and the number of repeats. A socket failing in a tight loop
+	becomes one line every interval, however many thousand times a second it throws.
+*/
+
+public class ErrorChannel {
+	private static final int MAX_ENTRIES = 64; //Anything past this is counted under "other"
+
+	private final ConcurrentHashMap<String, ConcurrentHashMap<Class<?>, Entry>> sources = new ConcurrentHashMap<>();
+	private final CopyOnWriteArrayList<Entry> entries = new CopyOnWriteArrayList<>();
+	private final Entry other = new Entry("other");
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final AtomicLong reported = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final ScheduledExecutorService timer;
+	private final TelloListener target;
+	private volatile Executor executor;
+	private volatile long intervalNanos = TimeUnit.MILLISECONDS.toNanos(250);
+	private volatile long lastFlushAt;
+
+	private final Runnable flush = new Runnable(){
+		@Override
+		public void run(){
+			flush();
+		}
+	};
+
+	private final Runnable post = new Runnable(){
+		@Override
+		public void run(){
+			executor.execute(flush);
+		}
+	};
+
+	//timer delays flushes that come too soon after the last one, executor runs them, target gets the summaries
+	public ErrorChannel(ScheduledExecutorService timer, Executor executor, TelloListener target){
+		this.timer = timer;
+		this.executor = executor;
+		this.target = target;
+		entries.add(other);
+	}
+
+	//Where the listener is called, the UI thread unless changed
+	public void setExecutor(Executor executor){
+		this.executor = executor;
+	}
+
+	//Least time between two flushes
+	public void setInterval(long ms){
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(ms);
+	}
+
+	//Safe to call from any thread, as often as errors happen. Doesn't allocate for a source and type seen before
+	public void report(String source, Throwable error){
+		reported.incrementAndGet();
+		final ConcurrentHashMap<Class<?>, Entry> types = sources.get(source);
+		Entry entry = types == null ? null : types.get(error.getClass());
+		if(entry == null){
+			entry = add(source, error.getClass());
+		}
+		entry.last = error;
+		entry.count.incrementAndGet();
+		if(scheduled.compareAndSet(false, true)){
+			final long wait = lastFlushAt + intervalNanos - System.nanoTime();
+			if(lastFlushAt == 0 || wait <= 0){
+				executor.execute(flush);
+			}else{
+				try{
+					timer.schedule(post, wait, TimeUnit.NANOSECONDS);
+				}catch(RuntimeException e){
+					executor.execute(flush); //Timer already shut down, this is the last one
+				}
+			}
+		}
+	}
+
+	private synchronized Entry add(String source, Class<?> type){
+		ConcurrentHashMap<Class<?>, Entry> types = sources.get(source);
+		if(types == null){
+			types = new ConcurrentHashMap<>();
+			sources.put(source, types);
+		}
+		Entry entry = types.get(type);
+		if(entry == null){
+			if(entries.size() >= MAX_ENTRIES){
+				types.put(type, other); //So the next report of it finds it without the lock
+				return other;
+			}
+			entry = new Entry(source);
+			types.put(type, entry);
+			entries.add(entry);
+		}
+		return entry;
+	}
+
+	//Runs on the executor
+	private void flush(){
+		lastFlushAt = System.nanoTime();
+		//Cleared before the counts are taken, so an error counted after this point queues the next flush
+		scheduled.set(false);
+		flushes.incrementAndGet();
+		for(Entry entry : entries){
+			final long count = entry.count.getAndSet(0);
+			if(count == 0){
+				continue;
+			}
+			final Throwable last = entry.last;
+			final String message = count == 1 ? String.valueOf(last.getMessage())
+					: String.format(Locale.US, "%s (%d times)", last.getMessage(), count);
+			delivered.incrementAndGet();
+			target.onErrorReceived(entry.source + ": " + last.toString(), message);
+		}
+	}
+
+	//Errors passed to report()
+	public long getReported(){
+		return reported.get();
+	}
+
+	//Summaries handed to the listener
+	public long getDelivered(){
+		return delivered.get();
+	}
+
+	//Runnables that went to the executor
+	public long getFlushes(){
+		return flushes.get();
+	}
+
+	private static class Entry {
+		final String source;
+		final AtomicLong count = new AtomicLong();
+		volatile Throwable last;
+
+		Entry(String source){
+			this.source = source;
+		}
+	}
+
+	//Socket failure storm: threads failing in a loop against a "UI thread" that takes 20 us per callback.
+	//Compares the depth of its queue when every error is posted against going through the channel.
+	//java ErrorChannel [threads] [seconds]
+	public static void main(String[] args) throws Exception {
+		final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		final long seconds = args.length > 1 ? Long.parseLong(args[1]) : 2;
+		final TelloListener slowUi = new TelloListener(){
+			@Override
+			public void onMessageReceived(String command, String reply){
+			}
+
+			@Override
+			public void onErrorReceived(String name, String message){
+				final long until = System.nanoTime() + 20000;
+				while(System.nanoTime() < until){
+				}
+			}
+		};
+		for(final boolean channel : new boolean[]{false, true}){
+			final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+			final ThreadPoolExecutor ui = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, queue);
+			final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+			final ErrorChannel errors = new ErrorChannel(timer, ui, slowUi);
+			final AtomicLong posted = new AtomicLong();
+			final CountDownLatch done = new CountDownLatch(threads);
+			final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+			ExecutorService storm = Executors.newFixedThreadPool(threads);
+			for(int t = 0; t < threads; t++){
+				final String source = t % 2 == 0 ? "video" : "state";
+				storm.execute(new Runnable(){
+					@Override
+					public void run(){
+						final Exception e = new java.net.SocketException("Network is unreachable");
+						while(System.nanoTime() < end){
+							if(channel){
+								errors.report(source, e);
+							}else{
+								ui.execute(new Runnable(){
+									@Override
+									public void run(){
+										slowUi.onErrorReceived(e.toString(), e.getMessage());
+									}
+								});
+							}
+							posted.incrementAndGet();
+							LockSupport.parkNanos(1000); //Roughly what a failing receive() costs
+						}
+						done.countDown();
+					}
+				});
+			}
+			int maxDepth = 0;
+			while(done.getCount() > 0){
+				maxDepth = Math.max(maxDepth, queue.size());
+				Thread.sleep(1);
+			}
+			final int leftAtEnd = queue.size();
+			storm.shutdown();
+			final long drainStarted = System.nanoTime();
+			ui.shutdown();
+			ui.awaitTermination(1, TimeUnit.MINUTES);
+			timer.shutdownNow();
+			System.out.printf(Locale.US, "%-14s %9d errors (%.0f/s), UI queue max %d, left %d, drained in %d ms, %d callbacks%n",
+					channel ? "ErrorChannel" : "post each", posted.get(), posted.get() / (double) seconds, maxDepth, leftAtEnd,
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - drainStarted), channel ? errors.getDelivered() : posted.get());
+		}
+	}
+}
@@ -0,0 +1,585 @@
+/*
+*Copyright (C) 2021 Harshith Doddipalli
+*
+*Licensed under the Apache License, Version 2.0 (the "License");
+*you may not use this file except in compliance with the License.
+*You may obtain a copy of the License at
+*
+*	http://www.apache.org/licenses/LICENSE-2.0
+*
+*Unless required by applicable law or agreed to in writing, software
+*distributed under the License is distributed on an "AS IS" BASIS,
+*WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*See the License for the specific language governing permissions and
+*limitations under the License.
+*/
+
+package com.hdr.tello.v2;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.hdr.tello.v2.Tello.TelemetryListener;
+import com.hdr.tello.v2.Tello.TelloListener;
+import com.hdr.tello.v2.Tello.TelloState;
+
+/*
+	Append-only binary log of a flight: every state packet, every command that waits for a reply and every reply.
+	rc and other commands the drone doesn't answer are left out, so a reply always follows its command. The file is a
+	32 byte header followed by 40 byte slots, written through a memory mapped window. Each slot starts with
+	its type, the number of slots the record takes, a text length and the microseconds since the previous
+	record. A state record holds the 16 fields as 16 bit deltas against the previous state, floats in
+	hundredths. A sync record holds the absolute time and every field in full. One is written every
+	SYNC_INTERVAL states and whenever a delta doesn't fit in 16 bits, so the reader can start decoding at any
+	sync. Commands and replies are raw ASCII spread over as many slots as they need, up to MAX_TEXT bytes as
+	the slot count is a signed byte. A crash leaves zeroed
+	slots behind the last record, which read as the end of the log.
+*/
+
+public class FlightLog implements Closeable {
+	public static final int END = 0;
+	public static final int STATE = 1;
+	public static final int SYNC = 2; //A state that doesn't depend on the ones before it
+	public static final int COMMAND = 3;
+	public static final int REPLY = 4;
+
+	private static final long MAGIC = 0x54454c4c4f4c4f47L; //"TELLOLOG"
+	private static final int VERSION = 1;
+	private static final int FILE_HEADER = 32;
+	private static final int SLOT = 40;
+	private static final int SLOT_HEADER = 8;
+	private static final int MAX_TEXT = Byte.MAX_VALUE * SLOT - SLOT_HEADER; //Longer text is cut
+	private static final int SYNC_INTERVAL = 100; //Ten seconds of state
+	private static final int WINDOW = SLOT * 26214; //About 1 MB mapped at a time
+	private static final int FIELDS = TelloState.FIELDS;
+
+	private final FileChannel channel;
+	private MappedByteBuffer window;
+	private long windowStart;
+	private long position = FILE_HEADER; //File offset of the next slot
+	private long lastRecordAt;           //System.nanoTime()
+	private final long startedAt;
+	private final int[] previous = new int[FIELDS];
+	private final int[] current = new int[FIELDS];
+	private int sinceSync = -1;
+	private long records;
+	private boolean closed;
+
+	public FlightLog(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		startedAt = System.nanoTime();
+		lastRecordAt = startedAt;
+		map(0);
+		window.putLong(MAGIC);
+		window.putInt(VERSION);
+		window.putInt(SLOT);
+		window.putLong(System.currentTimeMillis());
+		window.putLong(0);
+	}
+
+	//Hundredths for the float fields, everything else as sent
+	private static void encode(TelloState state, int[] out){
+		for(int field = 0; field < FIELDS; field++){
+			final long bits = state.bits(field);
+			out[field] = TelloState.isFloat(field) ? Math.round(Float.intBitsToFloat((int) bits) * 100f) : (int) bits;
+		}
+	}
+
+	private static void decode(int[] in, TelloState state){
+		for(int field = 0; field < FIELDS; field++){
+			if(TelloState.isFloat(field)){
+				state.set(field, in[field] / 100.0);
+			}else{
+				state.set(field, in[field]);
+			}
+		}
+	}
+
+	public void state(TelloState state){
+		state(state, System.nanoTime());
+	}
+
+	//now is System.nanoTime(), or a made up clock as long as it only goes forward
+	synchronized void state(TelloState state, long now){
+		if(closed){
+			return;
+		}
+		encode(state, current);
+		boolean fits = sinceSync >= 0 && sinceSync < SYNC_INTERVAL && TimeUnit.NANOSECONDS.toMicros(now - lastRecordAt) <= Integer.MAX_VALUE;
+		for(int field = 0; fits && field < FIELDS; field++){
+			final int delta = current[field] - previous[field];
+			fits = delta >= Short.MIN_VALUE && delta <= Short.MAX_VALUE;
+		}
+		try{
+			if(fits){
+				begin(STATE, 1, 0, now);
+				for(int field = 0; field < FIELDS; field++){
+					window.putShort((short) (current[field] - previous[field]));
+				}
+				sinceSync++;
+			}else{
+				begin(SYNC, 2, 0, now);
+				window.putLong(TimeUnit.NANOSECONDS.toMicros(now - startedAt));
+				for(int field = 0; field < FIELDS; field++){
+					window.putInt(current[field]);
+				}
+				sinceSync = 0;
+			}
+		}catch(IOException e){
+			closeQuietly();
+			return;
+		}
+		System.arraycopy(current, 0, previous, 0, FIELDS);
+	}
+
+	//The bytes from position to limit, which are left untouched
+	public void command(ByteBuffer data){
+		text(COMMAND, data, System.nanoTime());
+	}
+
+	public void reply(ByteBuffer data){
+		text(REPLY, data, System.nanoTime());
+	}
+
+	synchronized void text(int type, ByteBuffer data, long now){
+		if(closed){
+			return;
+		}
+		final int length = Math.min(data.remaining(), MAX_TEXT);
+		final int slots = (SLOT_HEADER + length + SLOT - 1) / SLOT;
+		try{
+			if(TimeUnit.NANOSECONDS.toMicros(now - lastRecordAt) > Integer.MAX_VALUE){
+				sinceSync = -1; //The gap only fits into a sync record, which the next state will be
+			}
+			begin(type, slots, length, now);
+			final int start = data.position();
+			for(int i = 0; i < length; i++){
+				window.put(data.get(start + i));
+			}
+		}catch(IOException e){
+			closeQuietly();
+		}
+	}
+
+	//Makes room for the record in the mapped window and writes its slot header
+	private void begin(int type, int slots, int length, long now) throws IOException {
+		final int size = slots * SLOT;
+		if(position + size > windowStart + window.capacity()){
+			map(position);
+		}
+		window.position((int) (position - windowStart));
+		window.put((byte) type);
+		window.put((byte) slots);
+		window.putShort((short) length);
+		window.putInt((int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMicros(now - lastRecordAt)));
+		lastRecordAt = now;
+		position += size;
+		records++;
+	}
+
+	private void map(long at) throws IOException {
+		window = channel.map(FileChannel.MapMode.READ_WRITE, at, WINDOW);
+		window.order(ByteOrder.LITTLE_ENDIAN);
+		windowStart = at;
+	}
+
+	public synchronized long getRecords(){
+		return records;
+	}
+
+	public synchronized long getBytes(){
+		return position;
+	}
+
+	private void closeQuietly(){
+		try{
+			close();
+		}catch(IOException e){
+		}
+	}
+
+	//Flushes the mapped pages and cuts the file at the last record
+	@Override
+	public synchronized void close() throws IOException {
+		if(closed){
+			return;
+		}
+		closed = true;
+		try{
+			window.force();
+			channel.truncate(position);
+		}finally{
+			channel.close();
+		}
+	}
+
+	//Reads a log back. Not thread safe
+	public static class Reader implements Closeable {
+		private final FileChannel channel;
+		private final ByteBuffer data;
+		private final long startWallClock;
+		private long[] syncSlots = new long[64]; //Offsets of the sync records, for seeking
+		private long[] syncTimes = new long[64];
+		private int syncs;
+		private long endMicros;
+		private int states;
+
+		private long offset;
+		private long time;
+		private int type;
+		private boolean synced;
+		private final int[] values = new int[FIELDS];
+		private final int[] saved = new int[FIELDS];
+		private byte[] text = new byte[64];
+		private int textLength;
+
+		public Reader(File file) throws IOException {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			data.order(ByteOrder.LITTLE_ENDIAN);
+			if(data.capacity() < FILE_HEADER || data.getLong(0) != MAGIC || data.getInt(8) != VERSION || data.getInt(12) != SLOT){
+				channel.close();
+				throw new IOException(file + " isn't a flight log");
+			}
+			startWallClock = data.getLong(16);
+			index();
+			rewind();
+		}
+
+		//One pass over the slot headers to find the sync records and the length of the flight
+		private void index(){
+			long at = FILE_HEADER;
+			long micros = 0;
+			while(at + SLOT <= data.capacity()){
+				final int recordType = data.get((int) at);
+				final int slots = data.get((int) at + 1);
+				if(recordType == END || slots <= 0 || at + slots * SLOT > data.capacity()){
+					break;
+				}
+				micros += data.getInt((int) at + 4);
+				if(recordType == SYNC){
+					micros = data.getLong((int) at + SLOT_HEADER);
+					if(syncs == syncSlots.length){
+						syncSlots = Arrays.copyOf(syncSlots, syncs * 2);
+						syncTimes = Arrays.copyOf(syncTimes, syncs * 2);
+					}
+					syncSlots[syncs] = at;
+					syncTimes[syncs] = micros;
+					syncs++;
+				}
+				if(recordType == STATE || recordType == SYNC){
+					states++;
+				}
+				at += slots * SLOT;
+			}
+			endMicros = micros;
+		}
+
+		//System.currentTimeMillis() when the log was started
+		public long getStartWallClock(){
+			return startWallClock;
+		}
+
+		public long getDurationMicros(){
+			return endMicros;
+		}
+
+		public int getStateCount(){
+			return states;
+		}
+
+		public void rewind(){
+			offset = FILE_HEADER;
+			time = 0;
+			synced = false;
+		}
+
+		//Positions the reader so the next record is the first one at or after micros from the start
+		public void seek(long micros){
+			int low = 0;
+			int high = syncs - 1;
+			int found = -1;
+			while(low <= high){
+				final int mid = (low + high) >>> 1;
+				if(syncTimes[mid] <= micros){
+					found = mid;
+					low = mid + 1;
+				}else{
+					high = mid - 1;
+				}
+			}
+			if(found < 0){
+				rewind();
+			}else{
+				offset = syncSlots[found];
+				time = syncTimes[found] - data.getInt((int) offset + 4);
+				synced = false;
+			}
+			while(true){
+				final long before = offset;
+				final long beforeTime = time;
+				final boolean beforeSynced = synced;
+				System.arraycopy(values, 0, saved, 0, FIELDS);
+				if(next() == END || time >= micros){
+					//Step back so that record is the next one, keeping the state decoded up to it
+					offset = before;
+					time = beforeTime;
+					synced = beforeSynced;
+					System.arraycopy(saved, 0, values, 0, FIELDS);
+					return;
+				}
+			}
+		}
+
+		//Reads the next record and returns its type. State records before the first sync are skipped, they only
+		//make sense on top of one
+		public int next(){
+			while(offset + SLOT <= data.capacity()){
+				final int at = (int) offset;
+				type = data.get(at);
+				final int slots = data.get(at + 1);
+				if(type == END || slots <= 0 || offset + slots * SLOT > data.capacity()){
+					break;
+				}
+				offset += slots * SLOT;
+				time += data.getInt(at + 4);
+				switch(type){
+					case SYNC:
+						time = data.getLong(at + SLOT_HEADER);
+						for(int field = 0; field < FIELDS; field++){
+							values[field] = data.getInt(at + SLOT_HEADER + 8 + field * 4);
+						}
+						synced = true;
+						return type;
+					case STATE:
+						if(!synced){
+							continue;
+						}
+						for(int field = 0; field < FIELDS; field++){
+							values[field] += data.getShort(at + SLOT_HEADER + field * 2);
+						}
+						return type;
+					case COMMAND:
+					case REPLY:
+						textLength = data.getShort(at + 2);
+						if(text.length < textLength){
+							text = new byte[textLength];
+						}
+						for(int i = 0; i < textLength; i++){
+							text[i] = data.get(at + SLOT_HEADER + i);
+						}
+						return type;
+					default:
+						continue; //A newer record type
+				}
+			}
+			type = END;
+			return END;
+		}
+
+		//Time of the last record read, in microseconds from the start of the log
+		public long getTimeMicros(){
+			return time;
+		}
+
+		//The state as of the last record read, with receivedAt in nanoseconds from the start of the log
+		public void getState(TelloState out){
+			decode(values, out);
+			out.receivedAt = time * 1000;
+		}
+
+		//Command or reply text of the last record read
+		public String getText(){
+			return new String(text, 0, textLength, StandardCharsets.US_ASCII).trim();
+		}
+
+		//Plays the log from the current position into the listeners, speed times faster than it was recorded. 0 or
+		//less goes as fast as possible. Replies are reported with the command they answered. Either listener may be
+		//null. Blocks until the end of the log
+		public void replay(double speed, TelemetryListener telemetry, TelloListener commands) throws InterruptedException {
+			final TelloState state = new TelloState();
+			final long startedAt = System.nanoTime();
+			long firstMicros = -1;
+			long sequence = 0;
+			String lastCommand = "";
+			int recordType;
+			while((recordType = next()) != END){
+				if(firstMicros < 0){
+					firstMicros = time;
+				}
+				if(speed > 0){
+					final long due = startedAt + (long) ((time - firstMicros) * 1000 / speed);
+					final long wait = due - System.nanoTime();
+					if(wait > 0){
+						TimeUnit.NANOSECONDS.sleep(wait);
+					}
+				}
+				switch(recordType){
+					case STATE:
+					case SYNC:
+						if(telemetry != null){
+							getState(state);
+							state.sequence = ++sequence;
+							telemetry.onTelemetry(state);
+						}
+						break;
+					case COMMAND:
+						lastCommand = getText();
+						break;
+					case REPLY:
+						if(commands != null){
+							commands.onMessageReceived(lastCommand, getText());
+						}
+						break;
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	//Write rate and size against text, then replay and seek. java FlightLog out.tlog [minutes]
+	public static void main(String[] args) throws Exception {
+		final File file = new File(args.length > 0 ? args[0] : "flight.tlog");
+		final int minutes = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		final int count = minutes * 60 * 10;
+		final long period = TimeUnit.MILLISECONDS.toNanos(100);
+		final java.util.Random random = new java.util.Random(7);
+		final ByteBuffer command = ByteBuffer.wrap("forward 50".getBytes(StandardCharsets.US_ASCII));
+		final ByteBuffer reply = ByteBuffer.wrap("ok".getBytes(StandardCharsets.US_ASCII));
+
+		//A plausible flight: slow drift, noisy accelerometer, battery running down
+		final TelloState[] states = new TelloState[count];
+		long textBytes = 0;
+		for(int i = 0; i < count; i++){
+			final TelloState state = states[i] = new TelloState();
+			state.pitch = random.nextInt(7) - 3;
+			state.roll = random.nextInt(7) - 3;
+			state.yaw = (i / 10) % 360 - 180;
+			state.vgx = random.nextInt(21) - 10;
+			state.templ = 60 + i / 600;
+			state.temph = state.templ + 2;
+			state.tof = 100 + random.nextInt(5);
+			state.h = 80 + (i / 50) % 20;
+			state.bat = 100 - i / 360;
+			state.baro = 190.5f + random.nextInt(100) / 100f;
+			state.time = i / 10;
+			state.agx = random.nextInt(2000) / 100f - 10;
+			state.agy = random.nextInt(2000) / 100f - 10;
+			state.agz = -1000 + random.nextInt(2000) / 100f;
+			for(int field = 0; field < FIELDS; field++){
+				textBytes += TelloState.NAMES[field].length() + 2 + state.format(field).length();
+			}
+			textBytes += 2; //"\r\n"
+			if(i % 20 == 0){
+				textBytes += command.remaining() + reply.remaining() + 2;
+			}
+		}
+
+		final FlightLog log = new FlightLog(file);
+		final long clock = System.nanoTime();
+		final long started = System.nanoTime();
+		for(int i = 0; i < count; i++){
+			log.state(states[i], clock + i * period);
+			if(i % 20 == 0){
+				log.text(COMMAND, command, clock + i * period + 1000000);
+				log.text(REPLY, reply, clock + i * period + 30000000);
+			}
+		}
+		final double elapsed = (System.nanoTime() - started) / 1e9;
+		log.close();
+		System.out.printf("%d records in %.3f s: %.0f records/s%n", log.getRecords(), elapsed, log.getRecords() / elapsed);
+		System.out.printf("%.1f KB per flight minute, text would be %.1f KB (%.1fx)%n", file.length() / 1024.0 / minutes,
+				textBytes / 1024.0 / minutes, (double) textBytes / file.length());
+
+		try(Reader reader = new Reader(file)){
+			final long readStarted = System.nanoTime();
+			final int[] seen = new int[2];
+			reader.replay(0, new TelemetryListener(){
+				@Override
+				public void onTelemetry(TelloState s){
+					seen[0]++;
+				}
+			}, new TelloListener(){
+				@Override
+				public void onMessageReceived(String c, String r){
+					seen[1]++;
+				}
+
+				@Override
+				public void onErrorReceived(String c, String r){
+				}
+			});
+			System.out.printf("Replayed %d states and %d replies in %.3f s%n", seen[0], seen[1], (System.nanoTime() - readStarted) / 1e9);
+
+			final TelloState state = new TelloState();
+			final long seekStarted = System.nanoTime();
+			int mismatches = 0;
+			for(int i = 0; i < 1000; i++){
+				final int target = random.nextInt(count);
+				reader.seek(target * period / 1000);
+				reader.next();
+				reader.getState(state);
+				for(int field = 0; field < FIELDS; field++){
+					if(!state.format(field).equals(states[target].format(field))){
+						mismatches++;
+						break;
+					}
+				}
+			}
+			System.out.printf("1000 seeks in %.3f s, %d states differed from what was logged%n", (System.nanoTime() - seekStarted) / 1e9, mismatches);
+		}
+
+		//Text records of every size up to past the limit, each followed by a state that has to survive them
+		final File longFile = new File(file.getPath() + ".text");
+		final FlightLog textLog = new FlightLog(longFile);
+		final int[] lengths = {0, 1, SLOT - SLOT_HEADER, SLOT - SLOT_HEADER + 1, 2048, MAX_TEXT, MAX_TEXT + 1, 10000};
+		final StringBuilder longText = new StringBuilder();
+		for(int i = 0; i < 10000; i++){
+			longText.append((char) ('a' + i % 26));
+		}
+		for(int i = 0; i < lengths.length; i++){
+			textLog.text(COMMAND, ByteBuffer.wrap(longText.substring(0, lengths[i]).getBytes(StandardCharsets.US_ASCII)), clock + i * period);
+			textLog.state(states[i], clock + i * period + 1000);
+		}
+		textLog.close();
+		int textFailures = 0;
+		try(Reader reader = new Reader(longFile)){
+			final TelloState state = new TelloState();
+			for(int i = 0; i < lengths.length; i++){
+				if(reader.next() != COMMAND || !reader.getText().equals(longText.substring(0, Math.min(lengths[i], MAX_TEXT)))){
+					textFailures++;
+				}
+				final int recordType = reader.next();
+				if(recordType != STATE && recordType != SYNC){
+					textFailures++;
+					continue;
+				}
+				reader.getState(state);
+				if(!state.format(0).equals(states[i].format(0))){
+					textFailures++;
+				}
+			}
+			if(reader.next() != END){
+				textFailures++;
+			}
+		}
+		longFile.delete();
+		System.out.printf("%d text records up to %d bytes read back, %d failures%n", lengths.length, lengths[lengths.length - 1], textFailures);
+		if(textFailures > 0){
+			throw new AssertionError("Long text records don't survive a round trip");
+		}
+	}
+}
@@ -0,0 +1,268 @@
+/*
+*Copyright (C) 2021 Harshith Doddipalli
+*
+*Licensed under the Apache License, Version 2.0 (the "License");
+*you may not use this file except in compliance with the License.
+*You may obtain a copy of the License at
+*
+*	http://www.apache.org/licenses/LICENSE-2.0
+*
+*Unless required by applicable law or agreed to in writing, software
+*distributed under the License is distributed on an "AS IS" BASIS,
+*WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*See the License for the specific language governing permissions and
+*limitations under the License.
+*/
+
+package com.hdr.tello.v2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import com.hdr.tello.v2.Tello.CommandTiming;
+import com.hdr.tello.v2.Tello.TelloState;
+
+/*
+	Runs a list of SDK commands one after another. Every step gets a timeout sized to how long the drone
+	needs for it (distance over the current speed, fixed times for takeoff, land and flips), so long moves
+	aren't cut off. The next command goes out from the reply callback of the previous one, and the state
+	between steps comes from the telemetry cache instead of extra queries.
+
+	Scripts hold one command per line or separated by ';', '#' starts a comment:
+		takeoff
+		forward 50; flip b
+		land
+*/
+
+public class Mission {
+	public static final int DEFAULT_SPEED = CommandTiming.DEFAULT_SPEED; //cm/s, what the drone flies at until "speed" is sent
+
+	private final List<Step> steps;
+	private long marginMs = CommandTiming.MARGIN_MS;
+	private String abortCommand = "stop";
+	private volatile Tello tello;
+	private volatile int current = -1;
+	private volatile CompletableFuture<String> inFlight;
+	private volatile boolean aborted;
+	private volatile CompletableFuture<List<Step>> result; //Read by abort() and the reply callbacks without the lock
+
+	public Mission(List<String> commands){
+		this(commands, DEFAULT_SPEED);
+	}
+
+	//speed is what the drone is set to when the mission starts, in cm/s
+	public Mission(List<String> commands, int speed){
+		ArrayList<Step> list = new ArrayList<>(commands.size());
+		for(String command : commands){
+			final Step step = new Step(command.trim());
+			speed = step.plan(speed);
+			list.add(step);
+		}
+		steps = Collections.unmodifiableList(list);
+	}
+
+	public static Mission parse(String script){
+		ArrayList<String> commands = new ArrayList<>();
+		for(String line : script.split("\n")){
+			final int comment = line.indexOf('#');
+			if(comment >= 0){
+				line = line.substring(0, comment);
+			}
+			for(String command : line.split(";")){
+				if(!command.trim().isEmpty()){
+					commands.add(command.trim());
+				}
+			}
+		}
+		return new Mission(commands);
+	}
+
+	//Added on top of every planned duration before a step counts as timed out
+	public Mission setTimeoutMargin(long ms){
+		this.marginMs = ms;
+		return this;
+	}
+
+	//Sent straight away on abort(). "stop" hovers in place, "land" or "emergency" are the other choices
+	public Mission setAbortCommand(String command){
+		this.abortCommand = command;
+		return this;
+	}
+
+	public List<Step> getSteps(){
+		return steps;
+	}
+
+	//Index of the step being run, -1 before the start
+	public int getCurrentStep(){
+		return current;
+	}
+
+	//Completes with the steps once all of them answered "ok". Fails on the first error reply or timeout, or with a
+	//CancellationException after abort(). A mission runs once
+	public synchronized CompletableFuture<List<Step>> run(Tello tello){
+		if(result != null){
+			throw new IllegalStateException("Mission already started");
+		}
+		this.tello = tello;
+		result = new CompletableFuture<>();
+		next(0);
+		return result;
+	}
+
+	//Gives up on the step in flight and sends the abort command without queueing it. Commands sent after this go out
+	//straight away instead of waiting for the step's timeout
+	public void abort(){
+		if(aborted){
+			return;
+		}
+		aborted = true;
+		final CompletableFuture<String> step = inFlight;
+		if(step != null){
+			step.cancel(false);
+		}
+		if(tello != null){
+			tello.sendImmediately(abortCommand);
+		}
+		if(result != null){
+			result.completeExceptionally(new CancellationException("Mission aborted at step " + current));
+		}
+	}
+
+	public boolean isAborted(){
+		return aborted;
+	}
+
+	private void next(final int index){
+		if(aborted){
+			return;
+		}
+		if(index == steps.size()){
+			result.complete(steps);
+			return;
+		}
+		current = index;
+		final Step step = steps.get(index);
+		final long timeout = step.query ? CommandTiming.QUERY_TIMEOUT_MS : step.expectedMs * 3 / 2 + marginMs;
+		step.sentAt = System.nanoTime();
+		final CompletableFuture<String> future = tello.sendCommand(step.command, timeout, CommandTiming.retries(step.command));
+		inFlight = future;
+		future.whenComplete(new BiConsumer<String, Throwable>(){
+			@Override
+			public void accept(String reply, Throwable error){
+				finish(index, step, reply, error);
+			}
+		});
+	}
+
+	//Runs on the thread that completed the command, normally the command channel
+	private void finish(int index, Step step, String reply, Throwable error){
+		step.latencyNanos = System.nanoTime() - step.sentAt;
+		tello.getState(step.state); //Whatever the drone reported last, no round trip
+		if(aborted){
+			return;
+		}
+		if(error != null){
+			step.reply = error.getMessage();
+			result.completeExceptionally(new MissionException(index, step, error));
+		}else if(reply.startsWith("error")){
+			step.reply = reply;
+			result.completeExceptionally(new MissionException(index, step, null));
+		}else{
+			step.reply = reply;
+			next(index + 1);
+		}
+	}
+
+	//One line per step with its latency against the plan
+	public String report(){
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < steps.size(); i++){
+			final Step step = steps.get(i);
+			sb.append(String.format(Locale.US, "%2d %-20s %-8s %7d ms (planned %d ms) h %d cm bat %d%%%n", i, step.command,
+					step.reply, step.getLatencyMs(), step.expectedMs, step.state.h, step.state.bat));
+		}
+		return sb.toString();
+	}
+
+	public static class Step {
+		private final String command;
+		private long expectedMs;
+		private boolean query;
+		private volatile String reply;
+		private volatile long sentAt;
+		private volatile long latencyNanos = -1;
+		private final TelloState state = new TelloState();
+
+		private Step(String command){
+			this.command = command;
+		}
+
+		//Works out how long the drone takes for this step. Returns the speed in force after it
+		private int plan(int speed){
+			final String[] parts = command.split("\\s+");
+			query = parts[0].endsWith("?");
+			expectedMs = CommandTiming.expectedMs(command, speed);
+			if(parts[0].equals("speed") && parts.length > 1){
+				try{
+					final int next = (int) Double.parseDouble(parts[1]);
+					if(next > 0){
+						return next;
+					}
+				}catch(NumberFormatException e){
+				}
+			}
+			return speed;
+		}
+
+		public String getCommand(){
+			return command;
+		}
+
+		//Planned duration, the timeout is derived from it
+		public long getExpectedMs(){
+			return expectedMs;
+		}
+
+		//The drone's reply, or the failure. null until the step finished
+		public String getReply(){
+			return reply;
+		}
+
+		//From sending the command to its reply, -1 until then
+		public long getLatencyMs(){
+			return latencyNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+		}
+
+		//Telemetry as it was when the step finished
+		public TelloState getState(){
+			return state;
+		}
+
+		@Override
+		public String toString(){
+			return command;
+		}
+	}
+
+	public static class MissionException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		private final int step;
+
+		MissionException(int step, Step failed, Throwable cause){
+			super("Step " + step + " \"" + failed.command + "\" failed: " + failed.reply, cause);
+			this.step = step;
+		}
+
+		public int getStep(){
+			return step;
+		}
+	}
+}
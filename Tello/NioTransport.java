@@ -0,0 +1,211 @@
+/*
+*Copyright (C) 2021 Harshith Doddipalli
+*
+*Licensed under the Apache License, Version 2.0 (the "License");
+*you may not use this file except in compliance with the License.
+*You may obtain a copy of the License at
+*
+*	http://www.apache.org/licenses/LICENSE-2.0
+*
+*Unless required by applicable law or agreed to in writing, software
+*distributed under the License is distributed on an "AS IS" BASIS,
+*WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*See the License for the specific language governing permissions and
+*limitations under the License.
+*/
+
+package com.hdr.tello.v2;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+	All three ports on non-blocking DatagramChannels served by one selector thread. Packets are read into
+	direct buffers taken from a small pool, so the kernel copies straight into memory the parsers read from.
+*/
+
+public class NioTransport implements Transport {
+	private static final int PACKET_SIZE = 2048;
+	private static final int POOL_SIZE = 4;
+	private static final long MIN_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+	private final int receiveBufferSize;
+	private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>(); //Selector thread only
+	private volatile DatagramChannel command; //Read by send() without the lock, null once closed
+	private DatagramChannel state;
+	private DatagramChannel video;
+	private Selector selector;
+	private Thread thread;
+	private volatile InetSocketAddress drone;
+	private volatile boolean running;
+
+	public NioTransport(){
+		this(0);
+	}
+
+	//receiveBufferSize sets SO_RCVBUF on every channel, 0 keeps the system default. A bigger buffer on the
+	//video port rides out an I-frame burst while the selector thread is busy
+	public NioTransport(int receiveBufferSize){
+		this.receiveBufferSize = receiveBufferSize;
+		for(int i = 0; i < POOL_SIZE; i++){
+			pool.push(ByteBuffer.allocateDirect(PACKET_SIZE));
+		}
+	}
+
+	@Override
+	public synchronized void open(InetSocketAddress drone, int statePort, int videoPort, final Receiver receiver) throws IOException {
+		this.drone = drone;
+		selector = Selector.open();
+		try{
+			//The fixed ports first, so the ephemeral command port can't be handed one of them between two opens
+			state = channel(new InetSocketAddress(statePort), STATE);
+			video = channel(new InetSocketAddress(videoPort), VIDEO);
+			command = channel(new InetSocketAddress(0), COMMAND);
+		}catch(IOException e){
+			close();
+			throw e;
+		}
+		running = true;
+		final Selector loopSelector = selector;
+		final DatagramChannel[] channels = {command, state, video};
+		thread = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				try{
+					loop(loopSelector, receiver);
+				}finally{
+					release(loopSelector, channels);
+				}
+			}
+		}, "Tello-transport");
+		thread.start();
+	}
+
+	private DatagramChannel channel(InetSocketAddress local, int port) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		//The ports can be bound again straight after close(), by this transport or another one. Not the ephemeral
+		//one, with SO_REUSEADDR the kernel may pick a port that is bound already and the two share its packets
+		channel.setOption(StandardSocketOptions.SO_REUSEADDR, local.getPort() != 0);
+		if(receiveBufferSize > 0){
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+		}
+		channel.bind(local);
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ, port);
+		return channel;
+	}
+
+	private void loop(Selector selector, Receiver receiver){
+		long backoffNanos = 0;
+		while(running){
+			try{
+				selector.select();
+				backoffNanos = 0;
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()){
+					SelectionKey key = keys.next();
+					keys.remove();
+					drain((DatagramChannel) key.channel(), (Integer) key.attachment(), receiver);
+				}
+			}catch(ClosedSelectorException e){
+				return;
+			}catch(IOException e){
+				if(!running){
+					return;
+				}
+				receiver.onError(COMMAND, e);
+				//A selector that keeps failing would otherwise spin and flood the error channel. close() unparks
+				backoffNanos = backoffNanos == 0 ? MIN_BACKOFF_NANOS : Math.min(backoffNanos * 2, MAX_BACKOFF_NANOS);
+				LockSupport.parkNanos(backoffNanos);
+			}
+		}
+	}
+
+	//Reads everything queued on the channel before going back to select()
+	private void drain(DatagramChannel channel, int port, Receiver receiver){
+		ByteBuffer buffer = acquire();
+		try{
+			while(true){
+				buffer.clear();
+				if(channel.receive(buffer) == null){
+					return;
+				}
+				buffer.flip();
+				receiver.onPacket(port, buffer);
+			}
+		}catch(Exception e){
+			if(running){
+				receiver.onError(port, e);
+			}
+		}finally{
+			pool.push(buffer);
+		}
+	}
+
+	private ByteBuffer acquire(){
+		ByteBuffer buffer = pool.poll();
+		return buffer != null ? buffer : ByteBuffer.allocateDirect(PACKET_SIZE);
+	}
+
+	@Override
+	public void send(ByteBuffer data) throws IOException {
+		final DatagramChannel channel = command;
+		if(channel == null){
+			throw new ClosedChannelException();
+		}
+		channel.send(data, drone);
+	}
+
+	//The selector thread closes the selector and channels on its way out, closing them under it would break the
+	//iteration over the selected keys. Called from the selector thread itself it doesn't wait
+	@Override
+	public synchronized void close(){
+		running = false;
+		if(selector == null){
+			return;
+		}
+		if(thread == null){
+			release(selector, new DatagramChannel[]{command, state, video}); //open() failed before the thread started
+		}else{
+			selector.wakeup();
+			LockSupport.unpark(thread);
+			if(thread != Thread.currentThread()){
+				try{
+					thread.join();
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		thread = null;
+		selector = null;
+		command = state = video = null;
+	}
+
+	private static void release(Selector selector, DatagramChannel[] channels){
+		try{
+			selector.close();
+		}catch(IOException e){
+		}
+		for(DatagramChannel channel : channels){
+			if(channel != null){
+				try{
+					channel.close();
+				}catch(IOException e){
+				}
+			}
+		}
+	}
+}
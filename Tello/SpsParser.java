@@ -0,0 +1,152 @@
+/*
+*Copyright (C) 2021 Harshith Doddipalli
+*
+*Licensed under the Apache License, Version 2.0 (the "License");
+*you may not use this file except in compliance with the License.
+*You may obtain a copy of the License at
+*
+*	http://www.apache.org/licenses/LICENSE-2.0
+*
+*Unless required by applicable law or agreed to in writing, software
+*distributed under the License is distributed on an "AS IS" BASIS,
+*WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*See the License for the specific language governing permissions and
+*limitations under the License.
+*/
+
+package com.hdr.tello.v2;
+
+//Reads the picture size out of a sequence parameter set (H.264 7.3.2.1.1)
+class SpsParser {
+	private final byte[] data;
+	private final int end;
+	private int pos;   //Byte position
+	private int bit;   //Bits already used in data[pos]
+	private int zeros; //Zero bytes in a row, for skipping emulation prevention bytes
+
+	private SpsParser(byte[] data, int offset, int length){
+		this.data = data;
+		this.pos = offset;
+		this.end = offset + length;
+	}
+
+	//offset points at the NAL header. Returns {width, height} or null if the SPS is cut short
+	static int[] parseSize(byte[] nal, int offset, int length){
+		try{
+			return new SpsParser(nal, offset + 1, length - 1).parse();
+		}catch(ArrayIndexOutOfBoundsException e){
+			return null;
+		}
+	}
+
+	private int[] parse(){
+		final int profile = u(8);
+		u(16); //Constraint flags and level
+		ue();  //seq_parameter_set_id
+		int chromaFormat = 1;
+		if(profile == 100 || profile == 110 || profile == 122 || profile == 244 || profile == 44 || profile == 83
+				|| profile == 86 || profile == 118 || profile == 128 || profile == 138 || profile == 139 || profile == 134 || profile == 135){
+			chromaFormat = ue();
+			if(chromaFormat == 3){
+				u(1); //separate_colour_plane_flag
+			}
+			ue(); //bit_depth_luma_minus8
+			ue(); //bit_depth_chroma_minus8
+			u(1); //qpprime_y_zero_transform_bypass_flag
+			if(u(1) == 1){
+				for(int i = 0; i < (chromaFormat != 3 ? 8 : 12); i++){
+					if(u(1) == 1){
+						skipScalingList(i < 6 ? 16 : 64);
+					}
+				}
+			}
+		}
+		ue(); //log2_max_frame_num_minus4
+		final int pocType = ue();
+		if(pocType == 0){
+			ue();
+		}else if(pocType == 1){
+			u(1);
+			se();
+			se();
+			final int cycle = ue();
+			for(int i = 0; i < cycle; i++){
+				se();
+			}
+		}
+		ue(); //max_num_ref_frames
+		u(1); //gaps_in_frame_num_value_allowed_flag
+		final int widthMbs = ue() + 1;
+		final int heightMaps = ue() + 1;
+		final int frameMbsOnly = u(1);
+		if(frameMbsOnly == 0){
+			u(1); //mb_adaptive_frame_field_flag
+		}
+		u(1); //direct_8x8_inference_flag
+		int cropLeft = 0, cropRight = 0, cropTop = 0, cropBottom = 0;
+		if(u(1) == 1){
+			cropLeft = ue();
+			cropRight = ue();
+			cropTop = ue();
+			cropBottom = ue();
+		}
+		final int cropUnitX = chromaFormat == 1 || chromaFormat == 2 ? 2 : 1;
+		final int cropUnitY = (chromaFormat == 1 ? 2 : 1) * (2 - frameMbsOnly);
+		final int width = widthMbs * 16 - cropUnitX * (cropLeft + cropRight);
+		final int height = (2 - frameMbsOnly) * heightMaps * 16 - cropUnitY * (cropTop + cropBottom);
+		return width > 0 && height > 0 ? new int[]{width, height} : null;
+	}
+
+	private void skipScalingList(int size){
+		int last = 8;
+		int next = 8;
+		for(int j = 0; j < size; j++){
+			if(next != 0){
+				next = (last + se() + 256) % 256;
+			}
+			last = next == 0 ? last : next;
+		}
+	}
+
+	private int readBit(){
+		if(bit == 0){
+			if(pos >= end){
+				throw new ArrayIndexOutOfBoundsException(pos);
+			}
+			if(zeros >= 2 && data[pos] == 3){
+				pos++; //emulation_prevention_three_byte
+				zeros = 0;
+			}
+			zeros = data[pos] == 0 ? zeros + 1 : 0;
+		}
+		final int value = (data[pos] >> (7 - bit)) & 1;
+		if(++bit == 8){
+			bit = 0;
+			pos++;
+		}
+		return value;
+	}
+
+	private int u(int bits){
+		int value = 0;
+		for(int i = 0; i < bits; i++){
+			value = value << 1 | readBit();
+		}
+		return value;
+	}
+
+	private int ue(){
+		int leadingZeros = 0;
+		while(readBit() == 0){
+			if(++leadingZeros > 31){
+				throw new ArrayIndexOutOfBoundsException(pos);
+			}
+		}
+		return (int) ((1L << leadingZeros) - 1 + u(leadingZeros));
+	}
+
+	private int se(){
+		final int k = ue();
+		return (k & 1) == 1 ? (k + 1) / 2 : -(k / 2);
+	}
+}
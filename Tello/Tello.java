@@ -18,22 +18,48 @@ package com.hdr.tello.v2;
 
 import android.content.Context;
 import android.graphics.SurfaceTexture;
+import android.media.Image;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
 import android.view.Surface;
 import android.view.TextureView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.net.InetSocketAddress;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
@@ -44,46 +70,124 @@ import java.nio.charset.StandardCharsets;
 	Created by Harshith on 16 July, 2021
 */
 
-public class Tello {
-	public String LOG = "";
+public class Tello implements Closeable {
+	public static final int LOG_DEBUG = 0;
+	public static final int LOG_INFO = 1;
+	public static final int LOG_ERROR = 2;
+	
+	private static final int LOG_CAPACITY = 256;
 	
 	private Context context;
-	private DatagramSocket socket1;
-	private DatagramSocket socket2;
-	private DatagramSocket socket3;
-	private InetAddress mainIP;
-	private TextView logView;
+	private Transport transport;
+	private String host;
+	private int commandPort;
+	private int statePort;
+	private int videoPort;
+	private volatile CommandChannel commandChannel; //A new one for every start(), null while stopped
+	private volatile boolean running;
+	private boolean closed;
+	private boolean videoStarted;
+	private ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+		@Override
+		public Thread newThread(Runnable r){
+			Thread t = new Thread(r, "Tello-timer");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	private RcStreamer rcStreamer = new RcStreamer();
+	private volatile long lastCommandAt = System.nanoTime(); //Last datagram on the command port, rc included
+	private volatile long keepaliveIdleNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_KEEPALIVE_MS);
+	private ScheduledFuture<?> keepaliveTask;
+	private AtomicLong keepalivesSent = new AtomicLong();
+	private AtomicLong commandsSent = new AtomicLong();
+	private volatile double commandUtilisation; //Share of the last keepalive period spent waiting for replies
+	private long utilisationSampledAt;           //Timer thread only
+	private long utilisationBusyNanos;
+	private ThreadLocal<CommandEncoder> encoders = new ThreadLocal<CommandEncoder>(){
+		@Override
+		protected CommandEncoder initialValue(){
+			return new CommandEncoder();
+		}
+	};
+	private volatile TextView logView;
+	private RingLogger logger = new RingLogger(LOG_CAPACITY);
+	private LogSink logSink = new LogSink();
 	private TextureView m_surface;	
-        private MediaCodec m_codec;
+        private volatile MediaCodec m_codec;
         private DecodeFramesTask m_frameTask;
 	private VideoReceiver provider;
+	private StatusReceiver statusReceiver;
 	
-	private byte[] header_sps = {0, 0, 0, 1, 103, 66, 0, 42, (byte) 149, (byte) 168, 30, 0, (byte) 137, (byte) 249, 102, (byte) 224, 32, 32, 32, 64};
-        private byte[] header_pps = {0, 0, 0, 1, 104, (byte) 206, 60, (byte) 128, 0, 0, 0, 1, 6, (byte) 229, 1, (byte) 151, (byte) 128};
+	private volatile VideoFormat videoFormat;  //From the latest in-band SPS and PPS
+	private volatile Surface outputSurface;
 	
-	private byte[] frame = new byte[0];
-	private byte[] buffer1;
-	private byte[] buffer2 = new byte[0];
+	private static final int FRAME_QUEUE_SIZE = 8;
+	private static final int FRAME_POOL_SIZE = FRAME_QUEUE_SIZE + 3; //Plus one being filled, one being decoded and a spare
+	private static final int RECORD_QUEUE_SIZE = 60; //Two seconds of video the disk may fall behind by
 	
-	private HaspMap<String, String> statsMap = new HashMap<>(); //Refer to SDK for getting keys
+	//Frames the recorder holds on to come back to the pool too, instead of being allocated again for every frame
+	private FramePool framePool = new FramePool(FRAME_POOL_SIZE, FRAME_POOL_SIZE + RECORD_QUEUE_SIZE);
+	private FrameQueue frameQueue = new FrameQueue(FRAME_QUEUE_SIZE, FrameQueue.DROP_UNTIL_KEY_FRAME, framePool);
+	private AtomicLong framesDecoded = new AtomicLong();
+	private LatencyHistogram frameQueueLatency = new LatencyHistogram();   //First slice received -> frame queued
+	private LatencyHistogram frameReleaseLatency = new LatencyHistogram(); //Frame queued -> output released to the surface
+	private volatile RecordingTask recording;
+	private TelloMetrics metrics = new TelloMetrics();
+	private ScheduledFuture<?> metricsDump;
+	private FileChannel metricsFile;
+	private volatile FlightLog flightLog;
+	private volatile ConnectionSupervisor supervisor;
+	private volatile boolean streamRequested; //streamon() was the last of streamon() and streamoff()
+	private volatile FrameSubscription[] encodedTaps = new FrameSubscription[0];
+	private volatile FrameSubscription[] decodedTaps = new FrameSubscription[0];
+	private static final int DECODED_POOL_SIZE = 4;
+	private ArrayBlockingQueue<VideoFrame> decodedPool = new ArrayBlockingQueue<>(DECODED_POOL_SIZE);
+	private AtomicLong recordingDropped = new AtomicLong();
+	
+	private StateStore stateStore = new StateStore();
+	private volatile long stateMaxAgeNanos = TimeUnit.MILLISECONDS.toNanos(500);
+	private volatile int lastSpeed; //0 until it is set or queried, it isn't part of the state stream
+	private volatile long lastSpeedAt; //When the drone last confirmed lastSpeed, ages like a state packet
+	private ThreadLocal<TelloState> stateSnapshots = new ThreadLocal<TelloState>(){
+		@Override
+		protected TelloState initialValue(){
+			return new TelloState();
+		}
+	};
+	private volatile TelemetrySubscription[] subscriptions = new TelemetrySubscription[0];
+	private Executor uiExecutor; //Where listeners are called, the main thread unless given to the constructor
 	
 	public TelloListener listener;
+	private ErrorChannel errors;
+	
+	private static final byte[] VERB_UP = ascii("up");
+	private static final byte[] VERB_DOWN = ascii("down");
+	private static final byte[] VERB_LEFT = ascii("left");
+	private static final byte[] VERB_RIGHT = ascii("right");
+	private static final byte[] VERB_FORWARD = ascii("forward");
+	private static final byte[] VERB_BACK = ascii("back");
+	private static final byte[] VERB_CW = ascii("cw");
+	private static final byte[] VERB_CCW = ascii("ccw");
+	private static final byte[] VERB_FLIP = ascii("flip");
+	private static final byte[] VERB_GO = ascii("go");
+	private static final byte[] VERB_CURVE = ascii("curve");
+	private static final byte[] VERB_SPEED = ascii("speed");
+	private static final byte[] VERB_RC = ascii("rc");
+	
+	public static final String DEFAULT_HOST = "192.168.10.1";
+	public static final int DEFAULT_COMMAND_PORT = 8889;
+	public static final int DEFAULT_STATE_PORT = 8890;
+	public static final int DEFAULT_VIDEO_PORT = 11111;
 	
+	private static final long DEFAULT_KEEPALIVE_MS = 10000; //The drone lands by itself after 15 s without a command
+	private static final byte[] KEEPALIVE = ascii("command");
+	
+	//The decoder thread picks surface changes up before its next frame
 	private TextureView.SurfaceTextureListener textureListener = new TextureView.SurfaceTextureListener(){
 		@Override
 		public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
-			MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, 960, 720);
-			format.setByteBuffer("csd-0", ByteBuffer.wrap(header_sps));
-			format.setByteBuffer("csd-1", ByteBuffer.wrap(header_pps));
-			format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 960*720);
-
-			try {
-				m_codec = MediaCodec.createDecoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
-				m_codec.configure(format, new Surface(m_surface.getSurfaceTexture()), null, 0);
-				m_codec.start();
-			}catch(Exception e){
-				sendExcept(e);
-			}
+			outputSurface = new Surface(surface);
 		}
 		
 		@Override
@@ -92,6 +196,7 @@ public class Tello {
 		
 		@Override
 		public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
+			outputSurface = null;
 			return false;
 		}
 		
@@ -105,26 +210,163 @@ public class Tello {
 		void onErrorReceived(String param1, String param2);
 	}
 	
+	//The state passed in is reused for the next update, copy it if you need to keep it
+	public interface TelemetryListener{
+		void onTelemetry(TelloState state);
+	}
+	
+	//The frame goes back to its pool when onFrame() returns, unless it is retained
+	public interface FrameListener{
+		void onFrame(VideoFrame frame);
+	}
+	
 	public Tello(Context _context){
-		this.context = _context;
-		connect();
+		this(_context, DEFAULT_HOST, DEFAULT_COMMAND_PORT, DEFAULT_STATE_PORT, DEFAULT_VIDEO_PORT);
+	}
+	
+	//host and commandPort are where commands go. statePort and videoPort are the local ports the drone streams to.
+	//Point it at a TelloSimulator on 127.0.0.1 to run without a drone
+	public Tello(Context _context, String host, int commandPort, int statePort, int videoPort){
+		this(_context, host, commandPort, statePort, videoPort, new NioTransport());
+	}
+	
+	public Tello(Context _context, String host, int commandPort, int statePort, int videoPort, Transport transport){
+		this(_context, host, commandPort, statePort, videoPort, transport, mainThread());
 	}
 	
-	private void connect(){
+	//Listener callbacks, toasts and the default for subscriptions go to callbackExecutor instead of the main thread.
+	//With a null context and no video out nothing Android is called, so it runs on a plain JVM against TelloSimulator
+	public Tello(Context _context, String host, int commandPort, int statePort, int videoPort, Transport transport, Executor callbackExecutor){
+		this.context = _context;
+		this.host = host;
+		this.commandPort = commandPort;
+		this.statePort = statePort;
+		this.videoPort = videoPort;
+		this.transport = transport;
+		this.uiExecutor = callbackExecutor;
+		errors = new ErrorChannel(scheduler, uiExecutor, new TelloListener(){
+			@Override
+			public void onMessageReceived(String name, String message){
+			}
+			
+			@Override
+			public void onErrorReceived(String name, String message){
+				log(LOG_ERROR, name + ", " + message);
+				onError(name, message);
+			}
+		});
+		provider = new VideoReceiver();
+		statusReceiver = new StatusReceiver();
 		try{
-			mainIP = InetAddress.getByName("192.168.10.1");
-			socket1 = new DatagramSocket(8889);
-			InetSocketAddress videoIP = new InetSocketAddress("0.0.0.0", 11111);
-			socket2 = new DatagramSocket(videoIP);
-			InetSocketAddress statusIP = new InetSocketAddress("0.0.0.0", 8890);
-			socket3 = new DatagramSocket(statusIP);
+			start();
 			showMessage("Networking components successfully initiated.");
-			sendCommand("command");
 		}catch(Exception e){
 			log("init", e);
 		}
-		provider = new VideoReceiver();
-		m_framesTask = new DecodeFramesTask();
+	}
+	
+	//Opens the sockets, starts the threads and puts the drone into SDK mode. The constructor already does this, so
+	//it is only needed after stop(). Video comes back too if it was started before. Safe on any thread, it touches
+	//no UI
+	public synchronized void start() throws IOException {
+		if(closed){
+			throw new IllegalStateException("Tello is closed");
+		}
+		if(running){
+			return;
+		}
+		final CommandChannel channel = new CommandChannel();
+		commandChannel = channel; //Before the first reply can arrive
+		try{
+			//Tello answers to whatever port the command came from, so the local command port is ephemeral
+			transport.open(new InetSocketAddress(host, commandPort), statePort, videoPort, new Dispatcher());
+		}catch(IOException e){
+			commandChannel = null;
+			transport.close();
+			throw e;
+		}
+		channel.start();
+		statusReceiver.start();
+		running = true;
+		if(videoStarted){
+			startVideoThreads();
+		}
+		log(LOG_INFO, "Connected to " + host + ":" + commandPort);
+		sendCommand("command");
+		setKeepalive(TimeUnit.NANOSECONDS.toMillis(keepaliveIdleNanos));
+	}
+	
+	//Stops every thread and closes the sockets, so the ports are free for another Tello. Queued commands fail and the
+	//decoder is released. Listeners, subscriptions and counters stay for the next start()
+	public synchronized void stop(){
+		if(!running){
+			return;
+		}
+		running = false;
+		if(keepaliveTask != null){
+			keepaliveTask.cancel(false);
+			keepaliveTask = null;
+		}
+		rcStreamer.stopTask();
+		transport.close(); //Returns once no more packets are being delivered
+		statusReceiver.kill();
+		stopVideoThreads();
+		final CommandChannel channel = commandChannel;
+		commandChannel = null;
+		channel.kill();
+		join(channel);
+		log(LOG_INFO, "Disconnected");
+	}
+	
+	public boolean isRunning(){
+		return running;
+	}
+	
+	//Stops for good. Also ends the recording, flight log, metrics dump and frame listener threads, and the timers
+	@Override
+	public synchronized void close(){
+		if(closed){
+			return;
+		}
+		stop();
+		closed = true;
+		stopRecording();
+		stopFlightLog();
+		stopMetricsDump();
+		for(FrameSubscription subscription : encodedTaps){
+			subscription.cancel();
+		}
+		for(FrameSubscription subscription : decodedTaps){
+			subscription.cancel();
+		}
+		for(TelemetrySubscription subscription : subscriptions){
+			subscription.cancel();
+		}
+		rcStreamer.shutdown();
+		scheduler.shutdownNow();
+	}
+	
+	private static Executor mainThread(){
+		final Handler handler = new Handler(Looper.getMainLooper());
+		return new Executor(){
+			@Override
+			public void execute(Runnable r){
+				handler.post(r);
+			}
+		};
+	}
+	
+	//Interrupts the thread out of any wait and waits for it to end
+	private static void join(Thread thread){
+		if(thread == Thread.currentThread()){
+			return;
+		}
+		thread.interrupt();
+		try{
+			thread.join();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
 	}
 	
 	public void setTelloListener(TelloListener mListener){
@@ -134,16 +376,42 @@ public class Tello {
 	public void setVideoOut(TextureView mTextureView){
 		this.m_surface = mTextureView;
 		m_surface.setSurfaceTextureListener(textureListener);
+		if(m_surface.isAvailable()){
+			outputSurface = new Surface(m_surface.getSurfaceTexture());
+		}
+	}
+	
+	//The decoder is created right away and configured from the first SPS and PPS in the stream. Until a surface is
+	//set with setVideoOut() it decodes into buffers
+	public synchronized void startVideo(){
+		videoStarted = true;
+		if(running){
+			startVideoThreads();
+		}
 	}
 	
-	public void startVideo() throws TelloVideoException {
-		if(m_surface == null){
-			throw new TelloVideoException("Caused by calling startVideo() without calling setVideoOut(TextureView).");
+	//Stops decoding and releases the decoder. The drone keeps streaming until streamoff()
+	public synchronized void stopVideo(){
+		videoStarted = false;
+		stopVideoThreads();
+	}
+	
+	private void startVideoThreads(){
+		if(m_frameTask != null){
 			return;
 		}
-		
+		m_frameTask = new DecodeFramesTask();
+		m_frameTask.start();
 		provider.start();
-		m_framesTask.start();
+	}
+	
+	private void stopVideoThreads(){
+		provider.kill();
+		if(m_frameTask != null){
+			m_frameTask.kill();
+			join(m_frameTask);
+			m_frameTask = null;
+		}
 	}
 	
 	public void takeoff(){
@@ -155,10 +423,12 @@ public class Tello {
 	}
 	
 	public void streamon(){
+		streamRequested = true;
 		sendCommand("streamon");
 	}
 	
 	public void streamoff(){
+		streamRequested = false;
 		sendCommand("streamoff");
 	}
 	
@@ -169,461 +439,2695 @@ public class Tello {
 	
 	//Commands from here that need a value of x, y or z have an input range from 20cm - 500cm. Rotation range is from 1 - 3600
 	public void up(int x){
-		if(x < 20){
-			x = 20;
-		}else if(x > 500){
-			x = 500;
-		}
-		sendCommand("up " + String.valueOf(x));
+		sendMove(encoder().verb(VERB_UP).arg(x, 20, 500), CommandTiming.travelMs(clamp(x, 20, 500), timingSpeed()));
 	}
 	
 	public void down(int x){
-		if(x < 20){
-			x = 20;
-		}else if(x > 500){
-			x = 500;
-		}
-		sendCommand("down " + String.valueOf(x));
+		sendMove(encoder().verb(VERB_DOWN).arg(x, 20, 500), CommandTiming.travelMs(clamp(x, 20, 500), timingSpeed()));
 	}
 	
 	public void left(int x){
-		if(x < 20){
-			x = 20;
-		}else if(x > 500){
-			x = 500;
-		}
-		sendCommand("left " + String.valueOf(x));
+		sendMove(encoder().verb(VERB_LEFT).arg(x, 20, 500), CommandTiming.travelMs(clamp(x, 20, 500), timingSpeed()));
 	}
 	
 	public void right(int x){
-		if(x < 20){
-			x = 20;
-		}else if(x > 500){
-			x = 500;
-		}
-		sendCommand("up " + String.valueOf(x));
+		sendMove(encoder().verb(VERB_RIGHT).arg(x, 20, 500), CommandTiming.travelMs(clamp(x, 20, 500), timingSpeed()));
 	}
 	
 	public void forward(int x){
-		if(x < 20){
-			x = 20;
-		}else if(x > 500){
-			x = 500;
-		}
-		sendCommand("forward " + String.valueOf(x));
+		sendMove(encoder().verb(VERB_FORWARD).arg(x, 20, 500), CommandTiming.travelMs(clamp(x, 20, 500), timingSpeed()));
 	}
 	
 	public void back(int x){
-		if(x < 20){
-			x = 20;
-		}else if(x > 500){
-			x = 500;
-		}
-		sendCommand("back " + String.valueOf(x));
+		sendMove(encoder().verb(VERB_BACK).arg(x, 20, 500), CommandTiming.travelMs(clamp(x, 20, 500), timingSpeed()));
 	}
 	
 	public void cw(int x){
-		if(x < 1){
-			x = 1;
-		}else if(x > 3600){
-			x = 3600;
-		}
-		sendCommand("cw " + String.valueOf(x));
+		sendMove(encoder().verb(VERB_CW).arg(x, 1, 3600), CommandTiming.rotationMs(clamp(x, 1, 3600)));
 	}
 	
 	public void ccw(int x){
-		if(x < 1){
-			x = 1;
-		}else if(x > 3600){
-			x = 3600;
-		}
-		sendCommand("ccw " + String.valueOf(x));
+		sendMove(encoder().verb(VERB_CCW).arg(x, 1, 3600), CommandTiming.rotationMs(clamp(x, 1, 3600)));
 	}
 	
 	public boolean flip(String dir){
 		if((dir.equals("l") || dir.equals("r")) || (dir.equals("f") || dir.equals("b"))){
-			sendCommand("flip " + dir);
+			sendMove(encoder().verb(VERB_FLIP).arg(dir.charAt(0)), CommandTiming.FLIP_MS);
 			return true;
 		}
 		return false;
 	}
 	
 	public void go(int x, int y, int z, int speed){
-		if(x < 20){
-			x = 20;
-		}else if(x > 500){
-			x = 500;
-		}
-		if(y < 20){
-			y = 20;
-		}else if(y > 500){
-			y = 500;
-		}
-		if(z < 20){
-			z = 20;
-		}else if(z > 500){
-			z = 500;
-		}
-		if(speed < 10){
-			speed = 10;
-		}else if(speed > 100){
-			speed = 100;
-		}
-		sendCommand("go " + String.valueOf(x) + " " + String.valueOf(y) + " " + String.valueOf(z) + " " + String.valueOf(speed));
+		sendMove(encoder().verb(VERB_GO).arg(x, 20, 500).arg(y, 20, 500).arg(z, 20, 500).arg(speed, 10, 100),
+				CommandTiming.goMs(clamp(x, 20, 500), clamp(y, 20, 500), clamp(z, 20, 500), clamp(speed, 10, 100)));
 	}
 	
 	public void curve(int x1, int y1, int z1, int x2, int y2, int z2, int speed){
-		if(x1 < 20){
-			x1 = 20;
-		}else if(x1 > 500){
-			x1 = 500;
-		}
-		if(y1 < 20){
-			y1 = 20;
-		}else if(y1 > 500){
-			y1 = 500;
-		}
-		if(z1 < 20){
-			z1 = 20;
-		}else if(z1 > 500){
-			z1 = 500;
-		}
-		if(x2 < 20){
-			x2 = 20;
-		}else if(x2 > 500){
-			x2 = 500;
-		}
-		if(y2 < 20){
-			y2 = 20;
-		}else if(y2 > 500){
-			y2 = 500;
-		}
-		if(z2 < 20){
-			z2 = 20;
-		}else if(z2 > 500){
-			z2 = 500;
-		}
-		if(speed < 10){
-			speed = 10;
-		}else if(speed > 60){
-			speed = 60;
-		}
-		sendCommand("curve " + String.valueOf(x1) + " " + String.valueOf(y1) + " " + String.valueOf(z1) + " " + String.valueOf(x2) + " " + String.valueOf(y2) + " " + String.valueOf(z2) + " " + String.valueOf(speed));
+		sendMove(encoder().verb(VERB_CURVE).arg(x1, 20, 500).arg(y1, 20, 500).arg(z1, 20, 500)
+				.arg(x2, 20, 500).arg(y2, 20, 500).arg(z2, 20, 500).arg(speed, 10, 60),
+				CommandTiming.curveMs(clamp(x1, 20, 500), clamp(y1, 20, 500), clamp(z1, 20, 500),
+						clamp(x2, 20, 500), clamp(y2, 20, 500), clamp(z2, 20, 500), clamp(speed, 10, 60)));
 	}
 	
 	//Set commands
+	//The speed is only remembered once the drone has answered ok, a refused or lost command leaves it as it was
 	public void speed(int spd){
-		if(spd < 10){
-			spd = 10;
-		}else if(spd > 100){
-			spd = 100;
-		}
-		sendCommand("speed " + String.valueOf(spd));
+		final int speed = clamp(spd, 10, 100);
+		sendEncoded(encoder().verb(VERB_SPEED).arg(speed, 10, 100)).whenComplete(new BiConsumer<String, Throwable>(){
+			@Override
+			public void accept(String reply, Throwable error){
+				if(error == null && "ok".equals(reply.trim())){
+					setLastSpeed(speed);
+				}
+			}
+		});
+	}
+	
+	private void setLastSpeed(int speed){
+		lastSpeedAt = System.nanoTime();
+		lastSpeed = speed;
 	}
 	
 	public void rc(int a, int b, int c, int d){
-		if(a < -100){
-			a = -100;
-		}else if(a > 100){
-			a = 100;
+		if(rcStreamer.isRunning()){
+			rcStreamer.set(clamp(a, -100, 100), clamp(b, -100, 100), clamp(c, -100, 100), clamp(d, -100, 100));
+			return;
+		}
+		//The SDK never answers rc, so don't wait for a reply
+		CommandEncoder e = encoder().verb(VERB_RC).arg(a, -100, 100).arg(b, -100, 100).arg(c, -100, 100).arg(d, -100, 100);
+		sendCommand(e.toBytes(), 0, 0);
+	}
+	
+	//Sends the latest rc values at a fixed rate (1 - 100 Hz) until stopRcStream() is called. While it runs,
+	//rc() only updates the values that go out with the next packet
+	public void startRcStream(int hz){
+		rcStreamer.start(clamp(hz, 1, 100));
+	}
+	
+	//Stops streaming and centres the sticks
+	public void stopRcStream(){
+		rcStreamer.stop();
+	}
+	
+	public double getRcSendRate(){
+		return rcStreamer.getRate();
+	}
+	
+	//Deviation of each send from the fixed cadence, in microseconds
+	public LatencyHistogram getRcJitter(){
+		return rcStreamer.jitter;
+	}
+	
+	//Sends a cheap command whenever nothing went out on the command port for idleMs, so the drone doesn't land on
+	//its own after 15 s. It is only queued while the channel is idle, so it never waits for or holds up a reply.
+	//0 turns it off
+	public synchronized void setKeepalive(long idleMs){
+		keepaliveIdleNanos = TimeUnit.MILLISECONDS.toNanos(idleMs);
+		if(keepaliveTask != null){
+			keepaliveTask.cancel(false);
+			keepaliveTask = null;
+		}
+		if(!running){
+			return; //Scheduled by start()
+		}
+		//Also samples the channel utilisation, so it keeps running when the keepalive is off
+		final long period = idleMs > 0 ? Math.max(10, Math.min(1000, idleMs / 4)) : 1000;
+		keepaliveTask = scheduler.scheduleWithFixedDelay(new Runnable(){
+			@Override
+			public void run(){
+				keepalive();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+	
+	//Runs on the timer thread
+	private void keepalive(){
+		final CommandChannel channel = commandChannel;
+		if(channel == null){
+			return;
 		}
-		if(b < -100){
-			b = -100;
-		}else if(b > 100){
-			b = 100;
+		final long now = System.nanoTime();
+		final long busy = channel.getBusyNanos(now);
+		if(utilisationSampledAt != 0 && now > utilisationSampledAt){
+			commandUtilisation = (double) (busy - utilisationBusyNanos) / (now - utilisationSampledAt);
 		}
-		if(c < -100){
-			c = -100;
-		}else if(c > 100){
-			c = 100;
+		utilisationSampledAt = now;
+		utilisationBusyNanos = busy;
+		
+		final long idle = keepaliveIdleNanos;
+		if(idle > 0 && now - lastCommandAt >= idle && channel.isIdle()){
+			keepalivesSent.incrementAndGet();
+			PendingCommand pending = new PendingCommand(KEEPALIVE, CommandTiming.QUERY_TIMEOUT_MS, 0);
+			pending.quiet = true;
+			channel.enqueue(pending);
 		}
-		if(d < -100){
-			d = -100;
-		}else if(d > 100){
-			d = 100;
+	}
+	
+	public long getKeepalivesSent(){
+		return keepalivesSent.get();
+	}
+	
+	//Share of the last keepalive period (a second by default) the command channel spent waiting for a reply, 0 to 1
+	public double getCommandChannelUtilisation(){
+		return commandUtilisation;
+	}
+	
+	//Commands waiting behind the one in flight
+	public int getCommandQueueDepth(){
+		final CommandChannel channel = commandChannel;
+		return channel == null ? 0 : channel.queue.size();
+	}
+	
+	//Datagrams sent on the command port, rc and retries included
+	public long getCommandsSent(){
+		return commandsSent.get();
+	}
+	
+	//Every datagram to the drone's command port goes through here, so the keepalive knows when the drone last heard
+	//from us
+	private void sendDatagram(ByteBuffer data) throws IOException {
+		transport.send(data);
+		lastCommandAt = System.nanoTime();
+		commandsSent.incrementAndGet();
+	}
+	
+	//For commands that get a reply, each one is followed by its reply in the flight log
+	private void logCommand(ByteBuffer data){
+		final FlightLog log = flightLog;
+		if(log != null){
+			log.command(data);
 		}
-		sendCommand("rc " + String.valueOf(a) + " " + String.valueOf(b) + " " + String.valueOf(c) + " " + String.valueOf(d));
 	}
 	
 	public void hover(){
 		sendCommand("stop");
 	}
 	
-	//Get commands
+	//Get commands. Values that are also in the state stream are answered from the latest state packet while it is
+	//younger than setStateMaxAge(), and only queried over the command channel when it is older
 	public String getSpeed(){
-		return sendCommandToGet("speed?"); // Units: cm/s
+		final int speed = lastSpeed;
+		if(speed > 0 && System.nanoTime() - lastSpeedAt <= stateMaxAgeNanos){
+			return String.valueOf((float) speed); //Same format as the speed? reply
+		}
+		final String reply = sendCommandToGet("speed?"); // Units: cm/s
+		try{
+			setLastSpeed((int) Float.parseFloat(reply.trim()));
+		}catch(NumberFormatException e){
+		}
+		return reply;
 	}
 	
 	public String getBattery(){
-		return sendCommandToGet("battery?");
+		return query("battery?");
 	}
 	
 	public String getTime(){
-		return sendCommandToGet("time?");
+		return query("time?");
 	}
 	
 	public String getHeight(){
-		return sendCommandToGet("height?");
+		return query("height?");
 	}
 	
 	public String getTemp(){
-		return sendCommandToGet("temp?");
+		return query("temp?");
 	}
 	
 	public String getAttitude(){
-		return sendCommandToGet("attitude?");
+		return query("attitude?");
 	}
 	
 	public String getBaro(){
-		return sendCommandToGet("baro?");
+		return query("baro?");
 	}
 	
 	public String getAcceleration(){
-		return sendCommandToGet("acceleration?");
+		return query("acceleration?");
 	}
 	
 	public String getTOF(){
-		return sendCommandToGet("tof?");
+		return query("tof?");
 	}
 	
-	public String getWiFiSNR(){
-		return sendCommandToGet("wifi?");
+	//Answers a read command from the latest state when it is fresh enough, otherwise asks the drone
+	private String query(String command){
+		final TelloState state = freshState();
+		if(state == null){
+			return sendCommandToGet(command);
+		}
+		return state.reply(command);
 	}
 	
-	public HashMap<String, String> getStatus(){
-		return statsMap;
+	//How old the last state packet may be for the getters to answer from it. 0 always queries the drone
+	public void setStateMaxAge(long ms){
+		stateMaxAgeNanos = TimeUnit.MILLISECONDS.toNanos(ms);
 	}
 	
-	private void log(String txt){
-		LOG = LOG + "\n" + txt;
-		logView.setText(LOG);
+	//The calling thread's snapshot of the latest state, or null when there is none fresh enough
+	private TelloState freshState(){
+		final TelloState state = stateSnapshots.get();
+		stateStore.read(state);
+		if(state.sequence == 0 || System.nanoTime() - state.receivedAt > stateMaxAgeNanos){
+			return null;
+		}
+		return state;
 	}
 	
-	private void log(String tag, Exception e){
-		log(tag + ": " + e.toString() + ", " + e.getMessage());
+	public String getWiFiSNR(){
+		return sendCommandToGet("wifi?");
 	}
 	
-	private void showMessage(String msg){
-		Toast.makeText(context, msg, Toast.LENGTH_SHORT).show();
+	//A copy of the latest state packet keyed like the SDK (pitch, roll, yaw, ..., agz). Prefer getState() which doesn't
+	//create any strings
+	public HashMap<String, String> getStatus(){
+		HashMap<String, String> map = new HashMap<>();
+		TelloState state = getState();
+		if(state.sequence == 0){
+			return map;
+		}
+		for(int field = 0; field < TelloState.FIELDS; field++){
+			map.put(TelloState.NAMES[field], state.format(field));
+		}
+		return map;
 	}
 	
-	private void onMessage(String cmd, String resp){
-		if(listener != null) listener.onMessageReceived(cmd, resp);
+	public TelloState getState(){
+		TelloState state = new TelloState();
+		stateStore.read(state);
+		return state;
 	}
 	
-	private void onError(String name, String msg){
-		if(listener != null) listener.onErrorReceived(name, msg);
+	//Fills the given snapshot with the latest state without allocating
+	public void getState(TelloState out){
+		stateStore.read(out);
 	}
 	
-	public void sendCommand(String command){
-		(new CommandTask()).execute(command);
+	//Delivers state updates on the UI thread, at most maxHz times a second
+	public TelemetrySubscription subscribe(TelemetryListener listener, double maxHz){
+		return subscribe(listener, maxHz, uiExecutor);
 	}
 	
-	public String sendCommandToGet(String command){
-		return (new CommandTask()).execute(command).get();
+	//Delivers state updates through the given executor, at most maxHz times a second. Updates that arrive while the
+	//previous one is still waiting to be delivered are merged into it, only the latest state is ever handed over
+	public TelemetrySubscription subscribe(TelemetryListener listener, double maxHz, Executor executor){
+		TelemetrySubscription subscription = new TelemetrySubscription(listener, maxHz, executor);
+		synchronized(this){
+			TelemetrySubscription[] grown = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+			grown[grown.length - 1] = subscription;
+			subscriptions = grown;
+		}
+		return subscription;
 	}
 	
-	public void sendExcept(final Exception e){
-		context.runOnUiThread(new Runnable(){
+	//Hands frames to the listener on a thread of its own, at most maxFps a second. type is VideoFrame.ENCODED for
+	//the H.264 access units as they arrive or VideoFrame.DECODED for YUV pictures
+	public FrameSubscription addFrameListener(FrameListener listener, int type, double maxFps){
+		final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory(){
 			@Override
-			public void run(){
-				onError(e.toString(), e.getMessage());
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "Tello-frames");
+				t.setDaemon(true);
+				return t;
 			}
 		});
+		FrameSubscription subscription = addFrameListener(listener, type, maxFps, executor);
+		subscription.ownedExecutor = executor;
+		return subscription;
 	}
 	
-	private class CommandTask extends AsyncTask<String, String, String> {	
-		@Override
-		protected String doInBackground(String... strings) {
-			final String command = strings[0];
-			byte[] buf = command.getBytes();
-			DatagramPacket packet = new DatagramPacket(buf, buf.length, mainIP, 8889);
-			try {
-				socket1.send(packet);
-				buf = new byte[128];
-				packet = new DatagramPacket(buf, buf.length);
-				socket1.setSoTimeout(250);
-				socket1.receive(packet);
-				String doneText = new String(buf, 0, packet.getLength(), StandardCharsets.UTF_8);
-				publishProgress(command, doneText, "ok");
-			} catch (Exception e) {
-				publishProgress(e.toString(), e.getMessage(), "fail");
-			}
-			return "";
-		}
-		
-		@Override
-		protected void onProgressUpdate(String... args){
-			final String command = args[0];
-			final String message = args[1];
-			final String status  = args[2];
-			
-			if(status.equals("ok")){
-				onMessage(command, message);
+	//Frames that arrive while the listener is still busy with the previous one are skipped, so a slow consumer only
+	//lowers its own rate. Decoded frames are only produced while no surface is set with setVideoOut(), MediaCodec
+	//either renders a picture or hands it out, not both
+	public FrameSubscription addFrameListener(FrameListener listener, int type, double maxFps, Executor executor){
+		FrameSubscription subscription = new FrameSubscription(listener, type, maxFps, executor);
+		synchronized(this){
+			FrameSubscription[] taps = type == VideoFrame.DECODED ? decodedTaps : encodedTaps;
+			taps = Arrays.copyOf(taps, taps.length + 1);
+			taps[taps.length - 1] = subscription;
+			if(type == VideoFrame.DECODED){
+				decodedTaps = taps;
 			}else{
-				onError(command, message);
+				encodedTaps = taps;
 			}
 		}
-
-		@Override
-		protected void onPostExecute(String s) {
-			super.onPostExecute(s);
-		}
-        }
+		return subscription;
+	}
 	
-	private class VideoReceiver extends Thread {
-		private boolean keepRunning = true;
-
-		@Override
-		public void run() {
-			byte[] slice = new byte[1470];
-			DatagramPacket packet = new DatagramPacket(slice, slice.length);
+	private synchronized void removeFrameListener(FrameSubscription subscription){
+		ArrayList<FrameSubscription> left = new ArrayList<>(Arrays.asList(decodedTaps));
+		left.remove(subscription);
+		decodedTaps = left.toArray(new FrameSubscription[0]);
+		left = new ArrayList<>(Arrays.asList(encodedTaps));
+		left.remove(subscription);
+		encodedTaps = left.toArray(new FrameSubscription[0]);
+	}
+	
+	private synchronized void unsubscribe(TelemetrySubscription subscription){
+		ArrayList<TelemetrySubscription> left = new ArrayList<>(Arrays.asList(subscriptions));
+		left.remove(subscription);
+		subscriptions = left.toArray(new TelemetrySubscription[0]);
+	}
+	
+	//Frames handed to the decoder
+	public long getFramesDecoded(){
+		return framesDecoded.get();
+	}
+	
+	//Frames thrown away because data was lost or they couldn't be decoded without a lost frame, plus frames the
+	//decoder was too slow for
+	public long getFramesDropped(){
+		return provider.lossDropped.get() + frameQueue.dropped.get();
+	}
+	
+	//How often the stream had to be resynchronised on an IDR frame
+	public long getVideoLossEvents(){
+		return provider.lossEvents.get();
+	}
+	
+	public LatencyHistogram getFrameQueueLatency(){
+		return frameQueueLatency;
+	}
+	
+	public LatencyHistogram getFrameReleaseLatency(){
+		return frameReleaseLatency;
+	}
+	
+	//Frames reassembled and waiting for the decoder
+	public int getDecoderQueueDepth(){
+		return frameQueue.size();
+	}
+	
+	//The live counters and histograms
+	public TelloMetrics getMetrics(){
+		return metrics;
+	}
+	
+	//Reads every counter and copies every histogram without stopping the threads that record them
+	public TelloMetrics.Snapshot getMetricsSnapshot(){
+		return metrics.snapshot(this);
+	}
+	
+	//Appends one line of metrics to the file every periodMs, with rates over the period. Runs on the timer thread
+	public synchronized void startMetricsDump(File file, long periodMs) throws IOException {
+		stopMetricsDump();
+		final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		metricsFile = channel;
+		metricsDump = scheduler.scheduleWithFixedDelay(new Runnable(){
+			private TelloMetrics.Snapshot previous;
 			
-			while(keepRunning) {
+			@Override
+			public void run(){
+				final TelloMetrics.Snapshot snapshot = getMetricsSnapshot();
+				final String line = snapshot.format(previous) + "\n";
+				previous = snapshot;
 				try{
-					socket2.receive(packet);
-					processData(slice, packet.getLength());
-				}catch(Exception e){
-					sendExcept(e);
+					channel.write(ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII)));
+				}catch(IOException e){
+					synchronized(Tello.this){
+						if(metricsFile == channel){ //Not a dump that was already replaced
+							log("metrics", e);
+							stopMetricsDump();
+						}
+					}
 				}
 			}
+		}, periodMs, periodMs, TimeUnit.MILLISECONDS);
+	}
+	
+	public synchronized void stopMetricsDump(){
+		if(metricsDump != null){
+			metricsDump.cancel(false);
+			metricsDump = null;
 		}
-		
-		private void processData(byte[] slice, int len){
-			buffer1 = new byte[buffer2.length+len];
-			if(buffer2.length == 0){
-				System.arraycopy(slice, 2, buffer1, 0, slice.length-2);
-			}else{
-				System.arraycopy(buffer2, 0, buffer1, 0, buffer2.length);
-				System.arraycopy(slice, 2, buffer1, buffer2.length, slice.length-2);
+		if(metricsFile != null){
+			try{
+				metricsFile.close();
+			}catch(IOException e){
+				log("metrics", e);
 			}
-			buffer2 = buffer1;
-			checkEOF(len);
+			metricsFile = null;
 		}
-		
-		private void checkEOF(int len){
-			if(len != 1460){
-				frame = buffer2;
-				buffer2 = new byte[0];
-				log("Frame size: " + String.valueOf(frame.length));
+	}
+	
+	//Logs every state packet, command and reply to a compact binary file, read back with FlightLog.Reader. About
+	//40 bytes per state packet, written from the threads that receive them. Only commands that are answered are
+	//logged, so rc packets don't come between a command and its reply
+	public synchronized void startFlightLog(File file) throws IOException {
+		stopFlightLog();
+		flightLog = new FlightLog(file);
+		log(LOG_INFO, "Logging flight to " + file);
+	}
+	
+	public synchronized void stopFlightLog(){
+		final FlightLog log = flightLog;
+		if(log != null){
+			flightLog = null;
+			try{
+				log.close();
+			}catch(IOException e){
+				log("flight log", e);
 			}
 		}
-
-		public void kill(){
-			keepRunning = false;
+	}
+	
+	//Records the video while it is displayed. A file ending in .mp4 gets fragmented MP4, anything else the raw H.264
+	//stream. Frames are shared with the decoder rather than copied and written on their own thread. If the disk falls
+	//behind, the recording skips ahead to the next key frame and the live view is left alone
+	public void startRecording(File file) throws IOException {
+		stopRecording();
+		RecordingTask task = new RecordingTask(VideoRecorder.open(file));
+		task.start();
+		recording = task;
+		log(LOG_INFO, "Recording to " + file);
+	}
+	
+	//Writes out what is still queued and closes the file in the background
+	public void stopRecording(){
+		RecordingTask task = recording;
+		recording = null;
+		if(task != null){
+			task.kill();
 		}
 	}
 	
-	private class StatusReceiver extends Thread {
-		private boolean keepRunning = true;
-		public String stats = "";
-
-		@Override
-		public void run() {
-			byte[] slice = new byte[1024];
-			DatagramPacket packet = new DatagramPacket(slice, slice.length);
-			
-			while(keepRunning) {
-				try{
-					socket3.receive(packet);
-					processData(slice, packet.getLength());
-				}catch(Exception e){
-					sendExcept(e);
-				}
+	public boolean isRecording(){
+		return recording != null;
+	}
+	
+	//Frames left out of recordings because the writer couldn't keep up
+	public long getRecordingFramesDropped(){
+		return recordingDropped.get();
+	}
+	
+	//Shows the most recent log lines in the given view, refreshed at most once per display frame
+	public void setLogView(TextView view){
+		this.logView = view;
+		logSink.schedule();
+	}
+	
+	//Lines below this level are dropped before they are even built
+	public void setLogLevel(int level){
+		logger.level = level;
+	}
+	
+	//The last lines that were logged, oldest first
+	public String getLog(){
+		return logger.dump();
+	}
+	
+	private boolean isLoggable(int level){
+		return level >= logger.level;
+	}
+	
+	private void log(String txt){
+		log(LOG_INFO, txt);
+	}
+	
+	void log(int level, String txt){
+		if(isLoggable(level)){
+			logger.append(txt);
+			if(logView != null){
+				logSink.schedule();
 			}
 		}
-		
-		private void processData(byte[] slice, int len){
-			stats = new String(slice, 0, len, StandardCharsets.UTF_8);
-			if(isEnd(stats)){
-				kill();
-				return;
-			}
-			processString(stats);
+	}
+	
+	private void log(String tag, Exception e){
+		log(LOG_ERROR, tag + ": " + e.toString() + ", " + e.getMessage());
+	}
+	
+	//Toasts only work on the UI thread, and this is called from the timer and transport threads too
+	private void showMessage(final String msg){
+		if(context == null){
+			return; //Nothing to show it on
 		}
-		
-		private void processString(String data){
-			for(final String entry : data.split(";")){
-				if(entry == ""){
-					continue;
-				}
-				final String[] parts = entry.split(":");
-				if(parts.length == 2){
-					statsMap.put(parts[0], parts[1]);
-				}else{
-					continue;
-				}
+		uiExecutor.execute(new Runnable(){
+			@Override
+			public void run(){
+				Toast.makeText(context, msg, Toast.LENGTH_SHORT).show();
 			}
-		}
-		
-		private boolean isEnd(String stat){
-			if(stat.equals("end")){
-				return true;
+		});
+	}
+	
+	private void onMessage(String cmd, String resp){
+		if(listener != null) listener.onMessageReceived(cmd, resp);
+	}
+	
+	private void onError(String name, String msg){
+		if(listener != null) listener.onErrorReceived(name, msg);
+	}
+	
+	//For the supervisor, which runs on the timer thread like the keepalive
+	ScheduledFuture<?> schedule(Runnable task, long periodMs){
+		return scheduler.scheduleWithFixedDelay(task, periodMs, periodMs, TimeUnit.MILLISECONDS);
+	}
+	
+	void setSupervisor(ConnectionSupervisor supervisor){
+		this.supervisor = supervisor;
+	}
+	
+	Executor getUiExecutor(){
+		return uiExecutor;
+	}
+	
+	boolean isStreamRequested(){
+		return streamRequested;
+	}
+	
+	//The drone sent "end" on the state port. Stopped from the timer thread, as the transport can't wait for its own
+	//thread to finish delivering this packet
+	private void onEndMessage(){
+		try{
+			scheduler.execute(new Runnable(){
+				@Override
+				public void run(){
+					stop();
+					showMessage("Tello has sent an end message. Every process has been stopped. Call start() to connect again.");
+				}
+			});
+		}catch(RejectedExecutionException e){
+			//close() got there first and has stopped everything already
+		}
+	}
+	
+	//Once per loss, the stream stays frozen until the next IDR frame
+	//Goes through the error channel like any other error, a burst of losses on a bad link becomes one summary
+	private void onVideoLoss(String reason){
+		sendExcept("video", new VideoLossException(reason));
+	}
+	
+	//Waits as long as the drone needs for the command, a move until it has been flown. Only queries are retried
+	public CompletableFuture<String> sendCommand(String command){
+		return sendCommand(command, CommandTiming.timeoutMs(command, timingSpeed()), CommandTiming.retries(command));
+	}
+	
+	public CompletableFuture<String> sendCommand(String command, long timeoutMs, int retries){
+		return sendCommand(command.getBytes(StandardCharsets.US_ASCII), timeoutMs, retries);
+	}
+	
+	//Commands are sent one at a time in the order they were given, each reply completes the future of its own command.
+	//A timeout of 0 sends the command without waiting for a reply
+	private CompletableFuture<String> sendCommand(byte[] command, long timeoutMs, int retries){
+		PendingCommand pending = new PendingCommand(command, timeoutMs, retries);
+		final CommandChannel channel = commandChannel;
+		if(channel == null){
+			pending.future.completeExceptionally(new IllegalStateException("Command channel isn't connected"));
+		}else{
+			channel.enqueue(pending);
+		}
+		return pending.future;
+	}
+	
+	//Queued like any other command but never reported to the listener, for commands Tello sends on its own
+	CompletableFuture<String> sendQuietly(String command, long timeoutMs){
+		PendingCommand pending = new PendingCommand(command.getBytes(StandardCharsets.US_ASCII), timeoutMs, 0);
+		pending.quiet = true;
+		final CommandChannel channel = commandChannel;
+		if(channel == null){
+			pending.future.completeExceptionally(new IllegalStateException("Command channel isn't connected"));
+		}else{
+			channel.enqueue(pending);
+		}
+		return pending.future;
+	}
+	
+	//Sends right away instead of waiting behind the command in flight, for stop or emergency during a long move. The
+	//reply isn't waited for, and the channel throws away replies it has queued before its next command. The command in
+	//flight is given up on, its reply couldn't be told apart from this one's
+	void sendImmediately(String command){
+		try{
+			final ByteBuffer data = ByteBuffer.wrap(command.getBytes(StandardCharsets.US_ASCII));
+			logCommand(data);
+			sendDatagram(data);
+		}catch(Exception e){
+			sendExcept("command", e);
+		}
+		final CommandChannel channel = commandChannel;
+		if(channel != null){
+			channel.stale = true;
+			channel.abandon(command);
+		}
+	}
+	
+	//Blocks until the reply arrives. Returns "" if the command failed or timed out
+	public String sendCommandToGet(String command){
+		try{
+			return sendCommand(command).get();
+		}catch(Exception e){
+			return "";
+		}
+	}
+	
+	//For commands the drone answers straight away
+	private CompletableFuture<String> sendEncoded(CommandEncoder e){
+		return sendCommand(e.toBytes(), CommandTiming.QUERY_TIMEOUT_MS, 0);
+	}
+	
+	//A movement is only answered once it has been flown, so it is waited for as long as it takes
+	private CompletableFuture<String> sendMove(CommandEncoder e, long expectedMs){
+		return sendCommand(e.toBytes(), CommandTiming.timeoutMs(expectedMs), 0);
+	}
+	
+	//The speed the drone was last set to, for sizing the timeouts of moves
+	private int timingSpeed(){
+		final int speed = lastSpeed;
+		return speed > 0 ? speed : CommandTiming.DEFAULT_SPEED;
+	}
+	
+	private CommandEncoder encoder(){
+		return encoders.get();
+	}
+	
+	private static int clamp(int value, int min, int max){
+		return value < min ? min : (value > max ? max : value);
+	}
+	
+	public void sendExcept(Exception e){
+		sendExcept("tello", e);
+	}
+	
+	//Counted per source and type and handed to the listener as rate limited summaries, see ErrorChannel
+	private void sendExcept(String source, Exception e){
+		errors.report(source, e);
+	}
+	
+	//Where onErrorReceived() is called, the UI thread unless changed. Also takes the batches of repeated errors
+	public void setErrorExecutor(Executor executor){
+		errors.setExecutor(executor);
+	}
+	
+	//Least time between two batches of errors, 250 ms unless changed
+	public void setErrorInterval(long ms){
+		errors.setInterval(ms);
+	}
+	
+	public ErrorChannel getErrorChannel(){
+		return errors;
+	}
+	
+	//A command that couldn't be sent or was interrupted, with the verb it was for
+	private static class CommandFailedException extends IOException {
+		private static final long serialVersionUID = 1L;
+		
+		CommandFailedException(String verb, Exception cause){
+			super(verb + " failed: " + cause, cause);
+		}
+	}
+	
+	//No stack trace, it would only ever point at the video receiver
+	private static class VideoLossException extends IOException {
+		private static final long serialVersionUID = 1L;
+		
+		VideoLossException(String reason){
+			super("Video data lost (" + reason + "), waiting for the next key frame");
+		}
+		
+		@Override
+		public synchronized Throwable fillInStackTrace(){
+			return this;
+		}
+	}
+	
+	//How long to wait for each command and whether it may be sent again. The drone only answers a movement once it
+	//has flown it, so moves are given their planned duration (distance over speed, fixed times for takeoff, land and
+	//flips) half again plus a margin. Everything else is answered within a few round trips
+	static class CommandTiming {
+		static final int DEFAULT_SPEED = 10; //cm/s, what the drone flies at until "speed" is sent
+		static final long QUERY_TIMEOUT_MS = 250;
+		static final int QUERY_RETRIES = 2;
+		static final long MARGIN_MS = 2000;
+		static final long TAKEOFF_MS = 7000;
+		static final long LAND_MS = 7000;
+		static final long FLIP_MS = 3000;
+		private static final double ROTATION_DEG_PER_S = 60;
+		
+		//Queries and entering SDK mode, the only commands that are safe to repeat and whose silence says the link is down.
+		//A retried movement could be flown twice
+		static boolean isProbe(String command){
+			return command.endsWith("?") || command.equals("command");
+		}
+		
+		static int retries(String command){
+			return isProbe(command) ? QUERY_RETRIES : 0;
+		}
+		
+		static long timeoutMs(String command, int speed){
+			return timeoutMs(expectedMs(command, speed));
+		}
+		
+		static long timeoutMs(long expectedMs){
+			return expectedMs > 0 ? expectedMs * 3 / 2 + MARGIN_MS : QUERY_TIMEOUT_MS;
+		}
+		
+		//How long the drone takes for a command at the given speed in cm/s, 0 for one it answers straight away
+		static long expectedMs(String command, int speed){
+			final String[] parts = command.trim().split("\\s+");
+			final double[] args = new double[parts.length - 1];
+			for(int i = 0; i < args.length; i++){
+				try{
+					args[i] = Double.parseDouble(parts[i + 1]);
+				}catch(NumberFormatException e){
+					args[i] = 0; //flip direction, mission pad ids
+				}
+			}
+			switch(parts[0]){
+				case "takeoff":
+					return TAKEOFF_MS;
+				case "land":
+					return LAND_MS;
+				case "flip":
+					return FLIP_MS;
+				case "up":
+				case "down":
+				case "left":
+				case "right":
+				case "forward":
+				case "back":
+					return travelMs(arg(args, 0), speed);
+				case "cw":
+				case "ccw":
+					return rotationMs(arg(args, 0));
+				case "go": //go x y z speed
+				case "jump": //jump x y z speed yaw mid1 mid2
+					return goMs(arg(args, 0), arg(args, 1), arg(args, 2), arg(args, 3));
+				case "curve": //curve x1 y1 z1 x2 y2 z2 speed
+					return curveMs(arg(args, 0), arg(args, 1), arg(args, 2), arg(args, 3), arg(args, 4), arg(args, 5), arg(args, 6));
+				default:
+					return 0;
 			}
-			return false;
 		}
-
-		public void kill(){
-			keepRunning = false;
-			provider.kill();
-			m_frameTask.kill();
-			showMessage("Tello has sent an end message. Every process has been stopped. Reconnect Tello and Relaunch the app to continue.");
-			context.finishAffinity();
+		
+		static long travelMs(double distanceCm, double speed){
+			return speed <= 0 ? 0 : (long) (Math.abs(distanceCm) / speed * 1000);
+		}
+		
+		static long rotationMs(double degrees){
+			return (long) (Math.abs(degrees) / ROTATION_DEG_PER_S * 1000);
+		}
+		
+		static long goMs(double x, double y, double z, double speed){
+			return travelMs(Math.sqrt(x * x + y * y + z * z), speed);
+		}
+		
+		//The arc is taken as its two chords
+		static long curveMs(double x1, double y1, double z1, double x2, double y2, double z2, double speed){
+			final double first = Math.sqrt(x1 * x1 + y1 * y1 + z1 * z1);
+			final double second = Math.sqrt((x2 - x1) * (x2 - x1) + (y2 - y1) * (y2 - y1) + (z2 - z1) * (z2 - z1));
+			return travelMs(first + second, speed);
+		}
+		
+		private static double arg(double[] args, int i){
+			return i < args.length ? args[i] : 0;
 		}
 	}
 	
-	private class DecodeFramesTask extends Thread {
-		public boolean keepRunning = true;
+	//Also what TelloSwarm queues per drone
+	static class PendingCommand {
+		final byte[] payload;
+		final long timeoutMs;
+		final int retries;
+		final CompletableFuture<String> future = new CompletableFuture<>();
+		final boolean probe; //A query or "command", see CommandTiming.isProbe()
+		boolean quiet; //Not reported to the listener, for the keepalive
+		private String command;
+		
+		PendingCommand(byte[] payload, long timeoutMs, int retries){
+			this.payload = payload;
+			this.timeoutMs = timeoutMs;
+			this.retries = retries;
+			this.probe = (payload.length > 0 && payload[payload.length - 1] == '?') || Arrays.equals(payload, KEEPALIVE);
+		}
+		
+		//Only built when a listener or an error needs the text
+		String command(){
+			if(command == null){
+				command = new String(payload, StandardCharsets.US_ASCII);
+			}
+			return command;
+		}
+		
+		String verb(){
+			final String text = command();
+			final int space = text.indexOf(' ');
+			return space < 0 ? text : text.substring(0, space);
+		}
+	}
+	
+	private static byte[] ascii(String s){
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	//Writes a verb and its clamped integer arguments as ASCII straight into a reusable buffer
+	static class CommandEncoder {
+		private final byte[] buf = new byte[64];
+		private int pos;
+		
+		CommandEncoder verb(byte[] verb){
+			System.arraycopy(verb, 0, buf, 0, verb.length);
+			pos = verb.length;
+			return this;
+		}
+		
+		CommandEncoder arg(int value, int min, int max){
+			value = value < min ? min : (value > max ? max : value);
+			buf[pos++] = ' ';
+			if(value < 0){
+				buf[pos++] = '-';
+				value = -value;
+			}
+			int digits = 1;
+			for(int v = value; v >= 10; v /= 10){
+				digits++;
+			}
+			for(int i = pos + digits - 1; i >= pos; i--){
+				buf[i] = (byte) ('0' + value % 10);
+				value /= 10;
+			}
+			pos += digits;
+			return this;
+		}
+		
+		CommandEncoder arg(char token){
+			buf[pos++] = ' ';
+			buf[pos++] = (byte) token;
+			return this;
+		}
+		
+		//Copies the command into the given buffer and returns its length
+		int writeTo(byte[] out){
+			System.arraycopy(buf, 0, out, 0, pos);
+			return pos;
+		}
+		
+		//A queued command has to own its bytes, this is the only allocation
+		byte[] toBytes(){
+			return Arrays.copyOf(buf, pos);
+		}
+	}
+	
+	//The only thread that sends commands. Tello replies carry no id, so one command is kept in flight at a time
+	//and the next reply always belongs to it
+	private class CommandChannel extends Thread {
+		private static final long POLL_MS = 100;
+		private final String wakeUp = new String("wake up"); //Compared by reference, no reply is this instance
+		
+		private volatile boolean keepRunning = true;
+		private LinkedBlockingQueue<PendingCommand> queue = new LinkedBlockingQueue<>();
+		private ArrayBlockingQueue<String> replies = new ArrayBlockingQueue<>(16);
+		private volatile boolean stale; //A timed out or bypassed command may still be answered, its reply must not go to the next one
+		private volatile long busySince; //When the command in flight went out, 0 while idle
+		private volatile PendingCommand current;
+		private AtomicLong busyNanos = new AtomicLong();
+		
+		void enqueue(PendingCommand pending){
+			queue.offer(pending);
+		}
+		
+		//Fails the command in flight and stops waiting for its reply, so the next one goes out straight away
+		void abandon(String by){
+			final PendingCommand pending = current;
+			if(pending == null){
+				return;
+			}
+			pending.future.completeExceptionally(new CancellationException(pending.command() + " given up for " + by));
+			replies.offer(wakeUp);
+		}
+		
+		//Called on the transport thread
+		void onReply(ByteBuffer packet){
+			final FlightLog log = flightLog;
+			if(log != null){
+				log.reply(packet);
+			}
+			final byte[] text = new byte[packet.remaining()];
+			packet.get(text);
+			replies.offer(new String(text, StandardCharsets.UTF_8));
+		}
 		
 		@Override
 		public void run(){
 			while(keepRunning){
+				PendingCommand pending;
 				try{
-					Thread.sleep(50); //20 fps
-				}catch(Exception e){
-					sendExcept(e);
+					pending = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+				}catch(InterruptedException e){
+					break;
 				}
-				
-				if(frame.length == 0){
-					continue;
+				if(pending == null || pending.future.isDone()){
+					continue; //Nothing to do, or cancelled by the caller
 				}
-				
-				int inputIndex = m_codec.dequeueInputBuffer(-1);
-				
-				if(inputIndex >= 0){
-					ByteBuffer buffer = m_codec.getInputBuffer(inputIndex);
-					buffer.reset();
-					buffer.put(frame);
-					m_codec.queueInputBuffer(inputIndex, 0, frame.length, 0, 0);
+				busySince = System.nanoTime();
+				current = pending;
+				execute(pending);
+				current = null;
+				busyNanos.addAndGet(System.nanoTime() - busySince);
+				busySince = 0;
+			}
+			PendingCommand left;
+			while((left = queue.poll()) != null){
+				left.future.completeExceptionally(new IllegalStateException("Command channel closed"));
+			}
+		}
+		
+		private void execute(final PendingCommand pending){
+			final ByteBuffer buf = ByteBuffer.wrap(pending.payload);
+			try{
+				if(pending.timeoutMs == 0){
+					//Fire and forget
+					sendDatagram(buf);
+					pending.future.complete("");
+					return;
 				}
-
-				MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-				int outputIndex = m_codec.dequeueOutputBuffer(info, 0);
-				if (outputIndex >= 0){
-					m_codec.releaseOutputBuffer(outputIndex, true);
+				for(int attempt = 0; attempt <= pending.retries; attempt++){
+					if(stale){
+						//Throw away replies that arrived after their command had already timed out
+						replies.clear();
+						stale = false;
+					}
+					buf.rewind();
+					logCommand(buf);
+					sendDatagram(buf);
+					final long sentAt = System.nanoTime();
+					final long deadline = sentAt + TimeUnit.MILLISECONDS.toNanos(pending.timeoutMs);
+					String doneText = replies.poll(pending.timeoutMs, TimeUnit.MILLISECONDS);
+					while(doneText == wakeUp && !pending.future.isDone()){
+						doneText = replies.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS); //Meant for the command before
+					}
+					if(pending.future.isDone()){
+						stale = true; //Given up on or cancelled while waiting, its reply may still come
+						return;
+					}
+					if(doneText == null){
+						stale = true;
+						metrics.onCommandTimeout(pending.probe);
+						continue;
+					}
+					metrics.onCommandReply(pending.verb(), TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentAt));
+					pending.future.complete(doneText);
+					postReply(pending, doneText);
+					return;
 				}
+				final TimeoutException timeout = new TimeoutException(pending.command() + " timed out after " + pending.timeoutMs + "ms");
+				pending.future.completeExceptionally(timeout);
+				postError(pending, timeout);
+			}catch(Exception e){
+				pending.future.completeExceptionally(e);
+				postError(pending, e);
 			}
-			onProcessEnded();
+		}
+		
+		private void postReply(PendingCommand pending, final String reply){
+			if(listener == null || pending.quiet){
+				return;
+			}
+			final String command = pending.command();
+			uiExecutor.execute(new Runnable(){
+				@Override
+				public void run(){
+					onMessage(command, reply);
+				}
+			});
+		}
+		
+		//Rate limited with every other error. Counted per verb, so "forward 50" and "forward 60" timing out add up
+		//Every command reports under the one source, so the error channel doesn't keep an entry per verb. The verb
+		//goes in the message instead, a timeout's already names the command
+		private void postError(PendingCommand pending, Exception e){
+			if(pending.quiet){
+				return;
+			}
+			sendExcept("command", e instanceof TimeoutException ? e : new CommandFailedException(pending.verb(), e));
+		}
+		
+		boolean isIdle(){
+			return busySince == 0 && queue.isEmpty();
+		}
+		
+		//Total time spent waiting for replies, including the command in flight
+		long getBusyNanos(long now){
+			final long since = busySince;
+			return busyNanos.get() + (since == 0 ? 0 : Math.max(0, now - since));
 		}
 		
 		public void kill(){
-			this.keepRunning = false;
+			keepRunning = false;
 		}
-
-		private void onProcessEnded(){
-			try {
-				m_codec.stop();
-				m_codec.release();
+	}
+	
+	//Routes datagrams from the transport to the part of Tello that owns the port
+	private class Dispatcher implements Transport.Receiver {
+		@Override
+		public void onPacket(int port, ByteBuffer packet){
+			metrics.onPacket(port, packet.remaining());
+			switch(port){
+				case Transport.COMMAND:
+					commandChannel.onReply(packet);
+					break;
+				case Transport.STATE:
+					statusReceiver.onPacket(packet);
+					break;
+				case Transport.VIDEO:
+					provider.onPacket(packet);
+					break;
+			}
+		}
+		
+		@Override
+		public void onError(int port, Exception e){
+			onLinkError(e);
+		}
+	}
+	
+	//Socket errors come in bursts when the Wi-Fi drops. A running supervisor folds them into its link events
+	private void onLinkError(Exception e){
+		final ConnectionSupervisor s = supervisor;
+		if(s == null || !s.onTransportError(e)){
+			sendExcept("network", e);
+		}
+	}
+	
+	//Streams rc packets from a thread of its own, so the keepalive or a supervisor restart blocking the Tello timer
+	//can't hold a packet back. The four channels are packed into one long so a packet never mixes values from two
+	//different rc() calls, and the packet buffer is reused for every send
+	private class RcStreamer implements Runnable {
+		final LatencyHistogram jitter = new LatencyHistogram();
+		
+		private final AtomicLong sticks = new AtomicLong();
+		private final CommandEncoder encoder = new CommandEncoder();
+		private final byte[] buf = new byte[32];
+		private final ByteBuffer packet = ByteBuffer.wrap(buf);
+		private volatile ScheduledFuture<?> task;
+		private ScheduledExecutorService timer; //Started with the first stream
+		private boolean shutDown;
+		private long periodNanos;
+		private long startedAt;
+		private long lastSentAt;
+		private volatile long sent;
+		
+		synchronized void start(int hz){
+			if(shutDown){
+				throw new IllegalStateException("Tello is closed");
+			}
+			stopTask();
+			if(timer == null){
+				timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+					@Override
+					public Thread newThread(Runnable r){
+						Thread t = new Thread(r, "Tello-rc");
+						t.setDaemon(true);
+						t.setPriority(Thread.MAX_PRIORITY); //The drone feels the jitter
+						return t;
+					}
+				});
+			}
+			periodNanos = TimeUnit.SECONDS.toNanos(1) / hz;
+			sent = 0;
+			lastSentAt = 0;
+			startedAt = System.nanoTime();
+			task = timer.scheduleAtFixedRate(this, 0, periodNanos, TimeUnit.NANOSECONDS);
+		}
+		
+		synchronized void stop(){
+			if(stopTask()){
+				set(0, 0, 0, 0);
+				timer.execute(this);
+			}
+		}
+		
+		synchronized void shutdown(){
+			shutDown = true;
+			stopTask();
+			if(timer != null){
+				timer.shutdownNow();
+				timer = null;
+			}
+		}
+		
+		boolean isRunning(){
+			return task != null;
+		}
+		
+		void set(int a, int b, int c, int d){
+			sticks.set((a & 0xFFFFL) | (b & 0xFFFFL) << 16 | (c & 0xFFFFL) << 32 | (d & 0xFFFFL) << 48);
+		}
+		
+		double getRate(){
+			final long elapsed = System.nanoTime() - startedAt;
+			return elapsed <= 0 ? 0 : sent * 1e9 / elapsed;
+		}
+		
+		@Override
+		public void run(){
+			final long now = System.nanoTime();
+			if(lastSentAt != 0){
+				jitter.record(TimeUnit.NANOSECONDS.toMicros(Math.abs(now - lastSentAt - periodNanos)));
+			}
+			lastSentAt = now;
+			
+			final long v = sticks.get();
+			encoder.verb(VERB_RC).arg((short) v, -100, 100).arg((short) (v >>> 16), -100, 100)
+					.arg((short) (v >>> 32), -100, 100).arg((short) (v >>> 48), -100, 100);
+			final int pos = encoder.writeTo(buf);
+			try{
+				packet.clear();
+				packet.limit(pos);
+				sendDatagram(packet);
+				sent++;
 			}catch(Exception e){
-				sendExcept(e);
+				onLinkError(e);
+			}
+		}
+		
+		private boolean stopTask(){
+			final ScheduledFuture<?> t = task;
+			task = null;
+			if(t == null){
+				return false;
+			}
+			t.cancel(false);
+			return true;
+		}
+	}
+	
+	//Fixed size log. Any thread can append without locking, the oldest lines are overwritten once it is full
+	private static class RingLogger {
+		volatile int level = LOG_INFO;
+		
+		private final AtomicReferenceArray<Entry> entries;
+		private final AtomicLong written = new AtomicLong();
+		private final int mask;
+		
+		private static class Entry {
+			final long sequence;
+			final String text;
+			
+			Entry(long sequence, String text){
+				this.sequence = sequence;
+				this.text = text;
+			}
+		}
+		
+		RingLogger(int capacity){
+			entries = new AtomicReferenceArray<>(capacity); //Power of two
+			mask = capacity - 1;
+		}
+		
+		void append(String text){
+			final long sequence = written.getAndIncrement();
+			entries.set((int) sequence & mask, new Entry(sequence, text));
+		}
+		
+		long count(){
+			return written.get();
+		}
+		
+		String dump(){
+			final long end = written.get();
+			StringBuilder sb = new StringBuilder();
+			for(long i = Math.max(0, end - entries.length()); i < end; i++){
+				final Entry e = entries.get((int) i & mask);
+				if(e != null && e.sequence == i){ //Skips slots that are being written or were already overwritten
+					if(sb.length() > 0){
+						sb.append('\n');
+					}
+					sb.append(e.text);
+				}
 			}
+			return sb.toString();
 		}
 	}
 	
-	private class TelloVideoException extends NullPointerException{
+	//Copies the log into logView from a Choreographer callback, so any number of lines logged within one frame
+	//cost a single setText
+	private class LogSink implements Choreographer.FrameCallback, Runnable {
+		private final AtomicBoolean pending = new AtomicBoolean();
+		private long shown = -1;
+		
+		void schedule(){
+			if(pending.compareAndSet(false, true)){
+				uiExecutor.execute(this);
+			}
+		}
+		
+		@Override
+		public void run(){
+			Choreographer.getInstance().postFrameCallback(this);
+		}
+		
 		@Override
-		public TelloVideoException(String message){
-			super(message);
+		public void doFrame(long frameTimeNanos){
+			pending.set(false);
+			final TextView view = logView;
+			final long count = logger.count();
+			if(view != null && count != shown){
+				shown = count;
+				view.setText(logger.dump());
+			}
+		}
+	}
+	
+	//Bytes lost on the way can't be repaired, and every P-frame after them references a broken picture. So as soon as
+	//loss shows up the frame being built is thrown away and nothing but an IDR frame is let through until one arrives
+	private class VideoReceiver implements NalParser.Sink {
+		private static final int SLICE_SIZE = 1460;
+		private static final int MIN_FRAME_LIMIT = 960 * 720;
+		
+		private volatile boolean keepRunning;
+		private volatile boolean resetRequested;
+		private NalParser parser = new NalParser(this);
+		private Frame current;
+		private long sequence;
+		private long receivedAt;
+		private int nalStart;
+		private int maxFrameSize = MIN_FRAME_LIMIT;
+		private byte[] sps;
+		private int[] spsSize;
+		private byte[] pps;
+		private boolean awaitKeyFrame = true; //Nothing before the first IDR can be decoded either
+		private boolean inSync;
+		volatile boolean resyncRequested; //Set by the decoder when the codec rejects a frame
+		final AtomicLong lossDropped = new AtomicLong();
+		final AtomicLong lossEvents = new AtomicLong();
+
+		//Whatever was half built when the stream stopped can't be finished, so it starts over at the next IDR frame.
+		//The transport thread may still be inside onPacket() from before kill(), so it does the reset itself
+		public void start(){
+			resetRequested = true;
+			keepRunning = true;
+		}
+		
+		private void reset(){
+			resetRequested = false;
+			if(current != null){
+				framePool.release(current);
+				current = null;
+			}
+			parser = new NalParser(this);
+			awaitKeyFrame = true;
+			inSync = false;
+		}
+		
+		//Called on the transport thread for every datagram from the video port
+		public void onPacket(ByteBuffer packet){
+			if(!keepRunning){
+				return;
+			}
+			if(resetRequested){
+				reset();
+			}
+			receivedAt = System.nanoTime();
+			final int len = packet.remaining();
+			if(len == 0 || len > SLICE_SIZE){
+				lost("unexpected slice size " + len);
+			}else if(!parser.inNal() && !NalParser.startsWithStartCode(packet)){
+				//The last slice ended a frame, so this one has to open the next. Its beginning went missing
+				lost("slice without a start code");
+			}
+			parser.feed(packet);
+			checkEOF(len);
+		}
+		
+		private void lost(String reason){
+			if(current != null){
+				current.corrupt = true;
+			}else{
+				resync(reason);
+			}
+		}
+		
+		private void resync(String reason){
+			if(inSync){
+				lossEvents.incrementAndGet();
+				onVideoLoss(reason);
+			}
+			awaitKeyFrame = true;
+			inSync = false;
+		}
+		
+		//The drone repeats SPS and PPS before every IDR. Only a set that differs from the last one is copied, and only
+		//a changed pair makes the decoder reconfigure
+		private void onParameterSet(int type){
+			final byte[] data = current.data;
+			final int length = current.length - nalStart;
+			final byte[] known = type == NalParser.NAL_SPS ? sps : pps;
+			if(known != null && known.length == length && regionEquals(known, data, nalStart, length)){
+				return;
+			}
+			final byte[] copy = Arrays.copyOfRange(data, nalStart, current.length);
+			if(type == NalParser.NAL_SPS){
+				final int[] size = SpsParser.parseSize(copy, 4, copy.length - 4);
+				if(size == null){
+					current.corrupt = true;
+					return;
+				}
+				sps = copy;
+				spsSize = size;
+				maxFrameSize = Math.max(MIN_FRAME_LIMIT, size[0] * size[1]);
+			}else{
+				pps = copy;
+			}
+			if(sps != null && pps != null){
+				videoFormat = new VideoFormat(sps, pps, spsSize[0], spsSize[1]);
+				log(LOG_INFO, "Video format " + spsSize[0] + "x" + spsSize[1]);
+			}
+		}
+		
+		private boolean regionEquals(byte[] a, byte[] b, int offset, int length){
+			for(int i = 0; i < length; i++){
+				if(a[i] != b[offset + i]){
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		private void drop(Frame f){
+			lossDropped.incrementAndGet();
+			framePool.release(f);
+		}
+		
+		private void checkEOF(int len){
+			//Frame boundaries come from the start codes. A short slice only tells us the last NAL unit is complete
+			//so it can be handed over now instead of waiting for the next frame's start code
+			if(len != SLICE_SIZE){
+				parser.flush();
+			}
+		}
+		
+		@Override
+		public void onNalStart(){
+			if(current == null){
+				current = framePool.acquire();
+				current.receivedAt = receivedAt;
+			}
+			nalStart = current.length;
+		}
+		
+		@Override
+		public void onNalData(ByteBuffer data, int offset, int length){
+			if(current.length + length > maxFrameSize){
+				current.corrupt = true; //Can only be several frames run together
+				return;
+			}
+			current.append(data, offset, length);
+		}
+		
+		@Override
+		public void onNalEnd(int type, boolean valid){
+			if(!valid){
+				current.corrupt = true;
+			}else if(type == NalParser.NAL_SPS || type == NalParser.NAL_PPS){
+				onParameterSet(type);
+			}
+			if(type == NalParser.NAL_IDR){
+				current.keyFrame = true;
+			}
+			if(NalParser.isSlice(type)){
+				if(resyncRequested){
+					resyncRequested = false;
+					resync("decoder error");
+				}
+				if(current.corrupt){
+					drop(current);
+					current = null;
+					resync("broken NAL unit");
+					return;
+				}
+				if(awaitKeyFrame && !current.keyFrame){
+					drop(current);
+					current = null;
+					return;
+				}
+				awaitKeyFrame = false;
+				inSync = true;
+				//SPS, PPS and SEI stay in the buffer and go out together with the picture they belong to
+				final int size = current.length;
+				current.sequence = ++sequence;
+				metrics.onFrameReassembled();
+				current.queuedAt = System.nanoTime();
+				frameQueueLatency.record(TimeUnit.NANOSECONDS.toMicros(current.queuedAt - current.receivedAt));
+				final RecordingTask recorder = recording;
+				if(recorder != null){
+					recorder.offer(current); //Before the decoder can release it
+				}
+				final FrameSubscription[] taps = encodedTaps;
+				if(taps.length > 0){
+					if(current.view == null){
+						current.view = new VideoFrame(current); //Made once per pooled frame
+					}
+					final VideoFrame view = current.view;
+					for(FrameSubscription tap : taps){
+						tap.offer(view);
+					}
+				}
+				frameQueue.offer(current);
+				current = null;
+				if(isLoggable(LOG_DEBUG)){
+					log(LOG_DEBUG, "Frame size: " + String.valueOf(size));
+				}
+			}
+		}
+
+		public void kill(){
+			keepRunning = false;
+		}
+	}
+	
+	private class StatusReceiver {
+		private volatile boolean keepRunning;
+		private TelloState scratch = new TelloState();
+		private byte[] slice = new byte[1024];
+
+		//Called on the transport thread for every datagram from the state port
+		public void onPacket(ByteBuffer packet){
+			if(!keepRunning){
+				return;
+			}
+			final int len = Math.min(packet.remaining(), slice.length);
+			packet.get(slice, 0, len);
+			processData(slice, len);
+		}
+		
+		private void processData(byte[] slice, int len){
+			if(isEnd(slice, len)){
+				keepRunning = false;
+				onEndMessage();
+				return;
+			}
+			if(StateParser.parse(slice, 0, len, scratch)){
+				scratch.receivedAt = System.nanoTime();
+				stateStore.publish(scratch);
+				metrics.onStatePacket(scratch.receivedAt);
+				final FlightLog log = flightLog;
+				if(log != null){
+					log.state(scratch);
+				}
+				//Subscribers only get a task scheduled, nothing they do can hold up this loop
+				for(TelemetrySubscription subscription : subscriptions){
+					subscription.offer(scratch.receivedAt);
+				}
+			}
+		}
+		
+		private boolean isEnd(byte[] slice, int len){
+			return len == 3 && slice[0] == 'e' && slice[1] == 'n' && slice[2] == 'd';
+		}
+
+		public void start(){
+			keepRunning = true;
+		}
+
+		public void kill(){
+			keepRunning = false;
+		}
+	}
+	
+	public class TelemetrySubscription implements Runnable {
+		private final TelemetryListener listener;
+		private final Executor executor;
+		private final long minIntervalNanos;
+		private final TelloState state = new TelloState();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		private volatile long lastDeliveredAt;
+		private volatile boolean cancelled;
+		
+		private final Runnable post = new Runnable(){
+			@Override
+			public void run(){
+				executor.execute(TelemetrySubscription.this);
+			}
+		};
+		
+		private TelemetrySubscription(TelemetryListener listener, double maxHz, Executor executor){
+			this.listener = listener;
+			this.executor = executor;
+			this.minIntervalNanos = maxHz <= 0 ? 0 : (long) (1e9 / maxHz);
+		}
+		
+		public void cancel(){
+			cancelled = true;
+			unsubscribe(this);
+		}
+		
+		//A state that comes in too soon after the last delivery is held until the interval is up, so the newest one
+		//still goes out when the drone goes quiet
+		private void offer(long now){
+			if(cancelled || !scheduled.compareAndSet(false, true)){
+				return; //The delivery already queued reads the newest state when it runs
+			}
+			final long wait = lastDeliveredAt + minIntervalNanos - now;
+			if(lastDeliveredAt == 0 || wait <= 0){
+				executor.execute(this);
+			}else{
+				try{
+					scheduler.schedule(post, wait, TimeUnit.NANOSECONDS);
+				}catch(RejectedExecutionException e){
+					scheduled.set(false); //Tello is closed
+				}
+			}
+		}
+		
+		@Override
+		public void run(){
+			try{
+				if(!cancelled){
+					lastDeliveredAt = System.nanoTime();
+					stateStore.read(state); //Whatever is newest by now
+					listener.onTelemetry(state);
+				}
+			}finally{
+				scheduled.set(false);
+			}
+		}
+	}
+	
+	public class FrameSubscription implements Runnable {
+		private final FrameListener listener;
+		private final int type;
+		private final Executor executor;
+		private final long minIntervalNanos;
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		private final AtomicLong delivered = new AtomicLong();
+		private final AtomicLong skipped = new AtomicLong();
+		private ExecutorService ownedExecutor;
+		private long lastAcceptedAt; //Producer thread only
+		private volatile VideoFrame pending;
+		private volatile boolean cancelled;
+		
+		private FrameSubscription(FrameListener listener, int type, double maxFps, Executor executor){
+			this.listener = listener;
+			this.type = type;
+			this.executor = executor;
+			this.minIntervalNanos = maxFps <= 0 ? 0 : (long) (1e9 / maxFps);
+		}
+		
+		public void cancel(){
+			cancelled = true;
+			removeFrameListener(this);
+			if(ownedExecutor != null){
+				ownedExecutor.shutdown();
+			}
+		}
+		
+		public long getDelivered(){
+			return delivered.get();
+		}
+		
+		//Frames left out because the listener was busy or the rate limit was reached
+		public long getSkipped(){
+			return skipped.get();
+		}
+		
+		//Checked before a decoded frame is copied out of the codec, so nobody pays for frames nobody takes
+		private boolean wants(long now){
+			return !cancelled && !scheduled.get() && (lastAcceptedAt == 0 || now - lastAcceptedAt >= minIntervalNanos);
+		}
+		
+		private void offer(VideoFrame frame){
+			final long now = System.nanoTime();
+			if(!wants(now) || !scheduled.compareAndSet(false, true)){
+				skipped.incrementAndGet();
+				return;
+			}
+			lastAcceptedAt = now;
+			frame.retain();
+			pending = frame;
+			executor.execute(this);
+		}
+		
+		@Override
+		public void run(){
+			final VideoFrame frame = pending;
+			pending = null;
+			try{
+				if(!cancelled){
+					listener.onFrame(frame);
+					delivered.incrementAndGet();
+				}
+			}finally{
+				frame.release();
+				scheduled.set(false);
+			}
+		}
+	}
+	
+	//A frame handed to a FrameListener. Encoded frames are one access unit in Annex-B format and share their memory
+	//with the decoder. Decoded frames are YUV 4:2:0 planes copied once out of the codec's buffer, with the strides
+	//the codec used. Both come from pools: a listener that keeps a frame past onFrame() has to retain() it and
+	//release() it when done
+	public class VideoFrame {
+		public static final int ENCODED = 0;
+		public static final int DECODED = 1;
+		
+		private final int type;
+		private final Frame source; //Encoded only
+		private ByteBuffer data;
+		private final AtomicInteger refs = new AtomicInteger();
+		private ByteBuffer[] planes = new ByteBuffer[3];
+		private int[] rowStrides = new int[3];
+		private int[] pixelStrides = new int[3];
+		private int width;
+		private int height;
+		private long timestampUs;
+		private long sequence;
+		
+		private VideoFrame(Frame source){
+			this.type = source == null ? DECODED : ENCODED;
+			this.source = source;
+		}
+		
+		public int getType(){
+			return type;
+		}
+		
+		//Arrival time of the first slice, on the System.nanoTime() clock
+		public long getTimestampUs(){
+			return type == ENCODED ? TimeUnit.NANOSECONDS.toMicros(source.receivedAt) : timestampUs;
+		}
+		
+		public long getSequence(){
+			return type == ENCODED ? source.sequence : sequence;
+		}
+		
+		public boolean isKeyFrame(){
+			return type == ENCODED && source.keyFrame;
+		}
+		
+		//The access unit, read only. Each call returns its own position and limit
+		public ByteBuffer getData(){
+			if(data == null || data.array() != source.data){
+				data = ByteBuffer.wrap(source.data);
+			}
+			ByteBuffer view = data.duplicate();
+			view.limit(source.length);
+			return view.asReadOnlyBuffer();
+		}
+		
+		public int getWidth(){
+			return width;
+		}
+		
+		public int getHeight(){
+			return height;
+		}
+		
+		//Y, U and V in that order, read only
+		public ByteBuffer getPlane(int plane){
+			return planes[plane].asReadOnlyBuffer();
+		}
+		
+		public int getRowStride(int plane){
+			return rowStrides[plane];
+		}
+		
+		public int getPixelStride(int plane){
+			return pixelStrides[plane];
+		}
+		
+		public void retain(){
+			if(type == ENCODED){
+				source.retain();
+			}else{
+				refs.incrementAndGet();
+			}
+		}
+		
+		public void release(){
+			if(type == ENCODED){
+				framePool.release(source);
+			}else if(refs.decrementAndGet() == 0){
+				decodedPool.offer(this);
+			}
+		}
+		
+		//Copies the picture out so the codec buffer can go back right away
+		private void copyFrom(Image image, long timestampUs, long sequence){
+			final Image.Plane[] imagePlanes = image.getPlanes();
+			for(int i = 0; i < 3; i++){
+				final ByteBuffer src = imagePlanes[i].getBuffer();
+				if(planes[i] == null || planes[i].capacity() < src.remaining()){
+					planes[i] = ByteBuffer.allocateDirect(src.remaining());
+				}
+				planes[i].clear();
+				planes[i].put(src);
+				planes[i].flip();
+				rowStrides[i] = imagePlanes[i].getRowStride();
+				pixelStrides[i] = imagePlanes[i].getPixelStride();
+			}
+			this.width = image.getWidth();
+			this.height = image.getHeight();
+			this.timestampUs = timestampUs;
+			this.sequence = sequence;
+			this.refs.set(1);
+		}
+	}
+	
+	private class DecodeFramesTask extends Thread {
+		private static final long WAIT_NANOS = 100 * 1000 * 1000; //Only bounds how long kill() takes to be noticed
+		private static final long INPUT_TIMEOUT_US = 10 * 1000;
+		private static final int IN_FLIGHT = 32;
+		
+		private volatile boolean keepRunning = true;
+		private long lastSequence;
+		private MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+		//Queue times of the frames inside the codec, looked up by presentation time when the output comes back
+		private long[] inFlightPts = new long[IN_FLIGHT];
+		private long[] inFlightQueuedAt = new long[IN_FLIGHT];
+		private int inFlightNext;
+		private VideoFormat configuredFormat;
+		private Surface configuredSurface;
+		private boolean configured;
+		private long outputSequence;
+		
+		@Override
+		public void run(){
+			try{
+				//Creating the codec is the slow part, it is done before the first frame arrives
+				m_codec = MediaCodec.createDecoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+			}catch(Exception e){
+				sendExcept("decoder", e);
+				return;
+			}
+			while(keepRunning){
+				//Wakes up as soon as the receiver queues a frame
+				Frame frame = frameQueue.take(WAIT_NANOS);
+				if(frame == null){
+					drainOutput();
+					continue;
+				}
+				if(frame.sequence <= lastSequence){
+					frameQueue.duplicated.incrementAndGet();
+					framePool.release(frame);
+					continue;
+				}
+				lastSequence = frame.sequence;
+				
+				try{
+					if(updateConfiguration() && !frame.keyFrame){
+						//A freshly configured decoder has no reference picture for this frame
+						provider.resyncRequested = true;
+					}else{
+						decode(frame);
+					}
+				}catch(Exception e){
+					sendExcept("decoder", e);
+				}
+				framePool.release(frame);
+				drainOutput();
+			}
+			onProcessEnded();
+		}
+		
+		//Configures the codec when the stream parameters or the output surface changed. Returns true if it did
+		private boolean updateConfiguration(){
+			final VideoFormat format = videoFormat;
+			final Surface surface = outputSurface;
+			if(format == null || (format == configuredFormat && surface == configuredSurface)){
+				return false;
+			}
+			if(configured){
+				m_codec.stop(); //Back to the uninitialised state, ready to be configured again
+				configured = false;
+			}
+			MediaFormat mediaFormat = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, format.width, format.height);
+			mediaFormat.setByteBuffer("csd-0", ByteBuffer.wrap(format.sps));
+			mediaFormat.setByteBuffer("csd-1", ByteBuffer.wrap(format.pps));
+			mediaFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, format.width * format.height);
+			m_codec.configure(mediaFormat, surface, null, 0);
+			m_codec.start();
+			configured = true;
+			configuredFormat = format;
+			configuredSurface = surface;
+			Arrays.fill(inFlightQueuedAt, 0);
+			return true;
+		}
+		
+		private void decode(Frame frame){
+			final MediaCodec codec = m_codec;
+			if(!configured){
+				return; //No SPS and PPS yet
+			}
+			int inputIndex;
+			while((inputIndex = codec.dequeueInputBuffer(INPUT_TIMEOUT_US)) < 0){
+				//All input buffers are busy. Free some by rendering what is done
+				drainOutput();
+				if(!keepRunning){
+					return;
+				}
+			}
+			//Presentation time is the arrival of the first slice, so the codec's timestamps reflect the network
+			final long pts = TimeUnit.NANOSECONDS.toMicros(frame.receivedAt);
+			ByteBuffer buffer = codec.getInputBuffer(inputIndex);
+			buffer.clear();
+			buffer.put(frame.data, 0, frame.length);
+			try{
+				codec.queueInputBuffer(inputIndex, 0, frame.length, pts, 0);
+			}catch(MediaCodec.CodecException e){
+				provider.resyncRequested = true;
+				throw e;
+			}
+			framesDecoded.incrementAndGet();
+			inFlightPts[inFlightNext] = pts;
+			inFlightQueuedAt[inFlightNext] = frame.queuedAt;
+			inFlightNext = (inFlightNext + 1) % IN_FLIGHT;
+		}
+		
+		private void drainOutput(){
+			final MediaCodec codec = m_codec;
+			if(!configured){
+				return;
+			}
+			try{
+				int outputIndex;
+				while((outputIndex = codec.dequeueOutputBuffer(info, 0)) != MediaCodec.INFO_TRY_AGAIN_LATER){
+					if(outputIndex >= 0){
+						if(configuredSurface == null){
+							tapDecoded(codec, outputIndex);
+						}
+						codec.releaseOutputBuffer(outputIndex, configuredSurface != null);
+						recordRelease(info.presentationTimeUs);
+					}
+				}
+			}catch(Exception e){
+				sendExcept("decoder", e);
+			}
+		}
+		
+		private void tapDecoded(MediaCodec codec, int outputIndex){
+			outputSequence++;
+			final FrameSubscription[] taps = decodedTaps;
+			final long now = System.nanoTime();
+			boolean wanted = false;
+			for(FrameSubscription tap : taps){
+				wanted |= tap.wants(now);
+			}
+			if(!wanted){
+				for(FrameSubscription tap : taps){
+					tap.skipped.incrementAndGet();
+				}
+				return;
+			}
+			final Image image = codec.getOutputImage(outputIndex);
+			if(image == null){
+				return;
+			}
+			VideoFrame frame = decodedPool.poll();
+			if(frame == null){
+				frame = new VideoFrame(null);
+			}
+			try{
+				frame.copyFrom(image, info.presentationTimeUs, outputSequence);
+			}finally{
+				image.close();
+			}
+			for(FrameSubscription tap : taps){
+				tap.offer(frame);
+			}
+			frame.release(); //The taps hold their own references
+		}
+		
+		private void recordRelease(long pts){
+			final long now = System.nanoTime();
+			for(int i = 0; i < IN_FLIGHT; i++){
+				if(inFlightPts[i] == pts && inFlightQueuedAt[i] != 0){
+					frameReleaseLatency.record(TimeUnit.NANOSECONDS.toMicros(now - inFlightQueuedAt[i]));
+					inFlightQueuedAt[i] = 0;
+					return;
+				}
+			}
+		}
+		
+		public void kill(){
+			this.keepRunning = false;
+		}
+
+		private void onProcessEnded(){
+			try {
+				if(configured){
+					m_codec.stop();
+				}
+				m_codec.release();
+			}catch(Exception e){
+				sendExcept("decoder", e);
+			}
+			m_codec = null;
+			//Frames that came in after the last take() belong to a stream the next decoder starts over on
+			Frame frame;
+			while((frame = frameQueue.poll()) != null){
+				framePool.release(frame);
+			}
+		}
+	}
+	
+	//One state packet from port 8890. Angles in degrees, speeds in dm/s, temperatures in C, distances in cm,
+	//baro in m, time in s and accelerations in 0.001g
+	public static class TelloState {
+		static final int PITCH = 0, ROLL = 1, YAW = 2, VGX = 3, VGY = 4, VGZ = 5, TEMPL = 6, TEMPH = 7;
+		static final int TOF = 8, H = 9, BAT = 10, BARO = 11, TIME = 12, AGX = 13, AGY = 14, AGZ = 15;
+		static final int FIELDS = 16;
+		static final String[] NAMES = {"pitch", "roll", "yaw", "vgx", "vgy", "vgz", "templ", "temph", "tof", "h", "bat", "baro", "time", "agx", "agy", "agz"};
+		
+		public int pitch, roll, yaw;
+		public int vgx, vgy, vgz;
+		public int templ, temph;
+		public int tof, h, bat;
+		public float baro;
+		public int time;
+		public float agx, agy, agz;
+		public long receivedAt; //System.nanoTime() of the packet
+		public long sequence;   //Increases with every packet, 0 until the first one arrives
+		
+		static boolean isFloat(int field){
+			return field == BARO || field == AGX || field == AGY || field == AGZ;
+		}
+		
+		void set(int field, double value){
+			switch(field){
+				case PITCH: pitch = (int) value; break;
+				case ROLL: roll = (int) value; break;
+				case YAW: yaw = (int) value; break;
+				case VGX: vgx = (int) value; break;
+				case VGY: vgy = (int) value; break;
+				case VGZ: vgz = (int) value; break;
+				case TEMPL: templ = (int) value; break;
+				case TEMPH: temph = (int) value; break;
+				case TOF: tof = (int) value; break;
+				case H: h = (int) value; break;
+				case BAT: bat = (int) value; break;
+				case BARO: baro = (float) value; break;
+				case TIME: time = (int) value; break;
+				case AGX: agx = (float) value; break;
+				case AGY: agy = (float) value; break;
+				case AGZ: agz = (float) value; break;
+			}
+		}
+		
+		//Raw bits of a field, floats as their IEEE representation
+		long bits(int field){
+			switch(field){
+				case PITCH: return pitch;
+				case ROLL: return roll;
+				case YAW: return yaw;
+				case VGX: return vgx;
+				case VGY: return vgy;
+				case VGZ: return vgz;
+				case TEMPL: return templ;
+				case TEMPH: return temph;
+				case TOF: return tof;
+				case H: return h;
+				case BAT: return bat;
+				case BARO: return Float.floatToRawIntBits(baro);
+				case TIME: return time;
+				case AGX: return Float.floatToRawIntBits(agx);
+				case AGY: return Float.floatToRawIntBits(agy);
+				case AGZ: return Float.floatToRawIntBits(agz);
+			}
+			return 0;
+		}
+		
+		void setBits(int field, long bits){
+			if(isFloat(field)){
+				set(field, Float.intBitsToFloat((int) bits));
+			}else{
+				set(field, (int) bits);
+			}
+		}
+		
+		//Formats a field the way the drone sends it, floats with two decimals
+		String format(int field){
+			if(!isFloat(field)){
+				return String.valueOf(bits(field));
+			}
+			final float value = Float.intBitsToFloat((int) bits(field));
+			if(Float.isNaN(value) || Float.isInfinite(value)){
+				return String.valueOf(value);
+			}
+			//Magnitude rounded half up like printf, Math.round on a negative value would round -0.125 to -0.12
+			final long hundredths = Math.round(Math.abs(value) * 100.0);
+			final long cents = hundredths % 100;
+			return (value < 0 || bits(field) < 0 ? "-" : "") + hundredths / 100 + (cents < 10 ? ".0" : ".") + cents;
+		}
+		
+		//What the drone replies to a read command, built from this state. null for a command the state doesn't cover
+		String reply(String command){
+			switch(command){
+				case "battery?": return String.valueOf(bat);
+				case "time?": return time + "s";
+				case "height?": return h / 10 + "dm";
+				case "temp?": return templ + "~" + temph + "C";
+				case "attitude?": return "pitch:" + pitch + ";roll:" + roll + ";yaw:" + yaw + ";";
+				case "baro?": return format(BARO);
+				case "acceleration?": return "agx:" + format(AGX) + ";agy:" + format(AGY) + ";agz:" + format(AGZ) + ";";
+				case "tof?": return tof * 10 + "mm";
+			}
+			return null;
+		}
+		
+		public void copyFrom(TelloState other){
+			for(int field = 0; field < FIELDS; field++){
+				setBits(field, other.bits(field));
+			}
+			receivedAt = other.receivedAt;
+			sequence = other.sequence;
+		}
+	}
+	
+	//Single pass parser for "pitch:0;roll:0;...;agz:-999.00;\r\n". Keys are matched as packed bytes, so no Strings
+	//are created. Unknown keys (mission pad fields on the EDU) are skipped
+	static class StateParser {
+		private static final long[] KEYS = new long[TelloState.FIELDS];
+		
+		static {
+			for(int field = 0; field < TelloState.FIELDS; field++){
+				long key = 0;
+				for(char c : TelloState.NAMES[field].toCharArray()){
+					key = key << 8 | c;
+				}
+				KEYS[field] = key;
+			}
+		}
+		
+		//Returns false if the packet held no known field
+		static boolean parse(byte[] data, int offset, int length, TelloState out){
+			final int end = offset + length;
+			boolean found = false;
+			int i = offset;
+			while(i < end){
+				long key = 0;
+				int keyLength = 0;
+				while(i < end && data[i] != ':' && data[i] != ';'){
+					if(data[i] > ' ' && keyLength++ < 8){
+						key = key << 8 | (data[i] & 0xFF);
+					}
+					i++;
+				}
+				if(i >= end || data[i] == ';'){
+					i++;
+					continue;
+				}
+				i++; //':'
+				
+				boolean negative = false;
+				boolean digits = false;
+				long whole = 0;
+				long fraction = 0;
+				long scale = 1;
+				if(i < end && data[i] == '-'){
+					negative = true;
+					i++;
+				}
+				while(i < end && data[i] >= '0' && data[i] <= '9'){
+					whole = whole * 10 + (data[i++] - '0');
+					digits = true;
+				}
+				if(i < end && data[i] == '.'){
+					i++;
+					while(i < end && data[i] >= '0' && data[i] <= '9'){
+						if(scale < 1000000){
+							fraction = fraction * 10 + (data[i] - '0');
+							scale *= 10;
+						}
+						i++;
+					}
+				}
+				while(i < end && data[i] != ';'){
+					i++; //Values like mpry:0,0,0 aren't numbers
+				}
+				i++;
+				
+				final int field = fieldOf(key);
+				if(field >= 0 && digits){
+					double value = whole + (double) fraction / scale;
+					out.set(field, negative ? -value : value);
+					found = true;
+				}
+			}
+			return found;
+		}
+		
+		private static int fieldOf(long key){
+			for(int field = 0; field < KEYS.length; field++){
+				if(KEYS[field] == key){
+					return field;
+				}
+			}
+			return -1;
+		}
+	}
+	
+	//Publishes state snapshots with a seqlock. The writer makes the sequence odd while it writes, readers retry
+	//until they copied every field between two reads of the same even sequence, so they never see a half written state
+	static class StateStore {
+		private final AtomicLong sequence = new AtomicLong();
+		private final AtomicLongArray values = new AtomicLongArray(TelloState.FIELDS + 1);
+		
+		//Single writer
+		void publish(TelloState state){
+			sequence.incrementAndGet();
+			for(int field = 0; field < TelloState.FIELDS; field++){
+				values.set(field, state.bits(field));
+			}
+			values.set(TelloState.FIELDS, state.receivedAt);
+			sequence.incrementAndGet();
+		}
+		
+		void read(TelloState out){
+			while(true){
+				final long before = sequence.get();
+				if((before & 1) != 0){
+					Thread.yield();
+					continue;
+				}
+				for(int field = 0; field < TelloState.FIELDS; field++){
+					out.setBits(field, values.get(field));
+				}
+				out.receivedAt = values.get(TelloState.FIELDS);
+				if(sequence.get() == before){
+					out.sequence = before / 2;
+					return;
+				}
+			}
+		}
+	}
+	
+	//Lock-free latency histogram in microseconds, laid out like HdrHistogram: every power of two is split into 16
+	//linear sub-buckets, so any recorded value is known to within 1/16 of itself
+	public static class LatencyHistogram {
+		private static final int SUB_BITS = 4;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+		private static final int MAX_MAGNITUDE = 40; //About 12 days in microseconds
+		private static final int BUCKETS = SUB_BUCKETS + (MAX_MAGNITUDE - SUB_BITS + 1) * SUB_BUCKETS;
+		
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final AtomicLong total = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+		
+		public void record(long micros){
+			if(micros < 0){
+				micros = 0;
+			}
+			counts.incrementAndGet(bucket(micros));
+			total.incrementAndGet();
+			sum.addAndGet(micros);
+			long m;
+			while(micros > (m = max.get()) && !max.compareAndSet(m, micros)){
+			}
+		}
+		
+		public long getCount(){
+			return total.get();
+		}
+		
+		public long getMax(){
+			return max.get();
+		}
+		
+		public double getMean(){
+			final long count = total.get();
+			return count == 0 ? 0 : (double) sum.get() / count;
+		}
+		
+		//Upper bound in microseconds of the bucket holding the given percentile (0 - 100)
+		public long getPercentile(double percentile){
+			final long target = (long) Math.ceil(total.get() * percentile / 100.0);
+			long seen = 0;
+			for(int i = 0; i < BUCKETS; i++){
+				seen += counts.get(i);
+				if(seen >= target && seen > 0){
+					return Math.min(upperBound(i), max.get());
+				}
+			}
+			return 0;
+		}
+		
+		//A copy that stops changing, so several percentiles can be read from the same data. The writers aren't held up,
+		//a value recorded while copying may be in some of the totals and not in others
+		public LatencyHistogram snapshot(){
+			LatencyHistogram copy = new LatencyHistogram();
+			long count = 0;
+			for(int i = 0; i < BUCKETS; i++){
+				final long c = counts.get(i);
+				if(c != 0){
+					copy.counts.set(i, c);
+					count += c;
+				}
+			}
+			copy.total.set(count);
+			copy.sum.set(sum.get());
+			copy.max.set(max.get());
+			return copy;
+		}
+		
+		@Override
+		public String toString(){
+			StringBuilder sb = new StringBuilder();
+			for(int i = 0; i < BUCKETS; i++){
+				final long c = counts.get(i);
+				if(c != 0){
+					sb.append("<=").append(upperBound(i)).append("us: ").append(c).append('\n');
+				}
+			}
+			return sb.toString();
+		}
+		
+		private static int bucket(long micros){
+			if(micros < SUB_BUCKETS){
+				return (int) micros;
+			}
+			final int magnitude = Math.min(MAX_MAGNITUDE, 63 - Long.numberOfLeadingZeros(micros));
+			final int sub = (int) (micros >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1);
+			return Math.min(BUCKETS - 1, SUB_BUCKETS + (magnitude - SUB_BITS) * SUB_BUCKETS + sub);
+		}
+		
+		private static long upperBound(int bucket){
+			if(bucket < SUB_BUCKETS){
+				return bucket;
+			}
+			final int magnitude = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+			final int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+			return ((long) (SUB_BUCKETS + sub + 1) << (magnitude - SUB_BITS)) - 1;
+		}
+	}
+	
+	//Writes frames to a VideoRecorder. Frames are retained rather than copied, the receive thread only bumps a counter
+	//and queues them
+	private class RecordingTask extends Thread {
+		private static final long WAIT_NANOS = 100 * 1000 * 1000;
+		
+		private final VideoRecorder recorder;
+		private final ArrayBlockingQueue<Frame> queue = new ArrayBlockingQueue<>(RECORD_QUEUE_SIZE);
+		private volatile boolean keepRunning = true;
+		private boolean awaitKeyFrame = true; //Receive thread only
+		
+		RecordingTask(VideoRecorder recorder){
+			super("Tello-recorder");
+			this.recorder = recorder;
+		}
+		
+		//Called on the receive thread. A full queue loses this frame and everything up to the next key frame
+		void offer(Frame frame){
+			if(!keepRunning || (awaitKeyFrame && !frame.keyFrame)){
+				return;
+			}
+			frame.retain();
+			if(queue.offer(frame)){
+				awaitKeyFrame = false;
+			}else{
+				framePool.release(frame);
+				recordingDropped.incrementAndGet();
+				awaitKeyFrame = true;
+			}
+		}
+		
+		@Override
+		public void run(){
+			try{
+				while(keepRunning || !queue.isEmpty()){
+					Frame frame = queue.poll(WAIT_NANOS, TimeUnit.NANOSECONDS);
+					if(frame == null){
+						continue;
+					}
+					try{
+						recorder.writeFrame(frame.data, 0, frame.length, TimeUnit.NANOSECONDS.toMicros(frame.receivedAt), frame.keyFrame);
+					}finally{
+						framePool.release(frame);
+					}
+				}
+			}catch(Exception e){
+				sendExcept("recorder", e);
+				keepRunning = false;
+				if(recording == this){
+					recording = null;
+				}
+			}finally{
+				Frame frame;
+				while((frame = queue.poll()) != null){
+					framePool.release(frame);
+				}
+				try{
+					recorder.close();
+					log(LOG_INFO, "Recording stopped, " + recorder.getFramesWritten() + " frames");
+				}catch(IOException e){
+					sendExcept("recorder", e);
+				}
+			}
+		}
+		
+		public void kill(){
+			keepRunning = false;
+		}
+	}
+	
+	//Decoder parameters taken from the stream. A new instance means the SPS or PPS changed
+	private static class VideoFormat {
+		final byte[] sps; //With start code
+		final byte[] pps;
+		final int width;
+		final int height;
+		
+		VideoFormat(byte[] sps, byte[] pps, int width, int height){
+			this.sps = sps;
+			this.pps = pps;
+			this.width = width;
+			this.height = height;
+		}
+	}
+	
+	//A reassembled H.264 frame. The backing array is reused across frames and only ever grows
+	static class Frame {
+		private static final int INITIAL_CAPACITY = 64 * 1024;
+		
+		byte[] data = new byte[INITIAL_CAPACITY];
+		int length;
+		boolean keyFrame;
+		boolean corrupt;
+		long sequence;
+		long receivedAt; //System.nanoTime() of the first slice
+		long queuedAt;
+		final AtomicInteger refs = new AtomicInteger(1); //The decoder, the recorder and frame listeners may all hold a frame
+		VideoFrame view;
+		
+		void retain(){
+			refs.incrementAndGet();
+		}
+		
+		//Copies len bytes starting at the absolute offset, the source position is restored afterwards
+		void append(ByteBuffer src, int offset, int len){
+			if(length + len > data.length){
+				int capacity = data.length;
+				while(capacity < length + len){
+					capacity <<= 1;
+				}
+				byte[] grown = new byte[capacity];
+				System.arraycopy(data, 0, grown, 0, length);
+				data = grown;
+			}
+			final int position = src.position();
+			src.position(offset);
+			src.get(data, length, len);
+			src.position(position);
+			length += len;
+		}
+		
+		void clear(){
+			length = 0;
+			keyFrame = false;
+			corrupt = false;
+		}
+	}
+	
+	//Incremental Annex-B parser. Start codes are found even when they are split across slices, and every NAL unit
+	//is passed on with a four byte start code in front of it. Nothing is allocated while parsing
+	static class NalParser {
+		static final int NAL_SLICE = 1;
+		static final int NAL_IDR = 5;
+		static final int NAL_SEI = 6;
+		static final int NAL_SPS = 7;
+		static final int NAL_PPS = 8;
+		
+		private static final byte[] START_CODE = {0, 0, 0, 1};
+		private static final byte[] ZEROS = new byte[64];
+		
+		interface Sink {
+			void onNalStart();
+			void onNalData(ByteBuffer data, int offset, int length);
+			//valid is false when the NAL header can't be right, which means bytes were lost or mixed up
+			void onNalEnd(int type, boolean valid);
+		}
+		
+		private final Sink sink;
+		private final ByteBuffer startCode = ByteBuffer.wrap(START_CODE);
+		private final ByteBuffer zeroRun = ByteBuffer.wrap(ZEROS);
+		private boolean inNal;
+		private boolean expectHeader;
+		private int header;
+		private int zeros;   //Zero bytes in a row, possibly reaching back into earlier slices
+		private int carried; //The part of those zeros that came from earlier slices and hasn't been passed on yet
+		
+		NalParser(Sink sink){
+			this.sink = sink;
+		}
+		
+		static boolean isSlice(int type){
+			return type == NAL_SLICE || type == NAL_IDR;
+		}
+		
+		//Reads the remaining bytes of the buffer with absolute gets, its position is left alone
+		void feed(ByteBuffer data){
+			final int offset = data.position();
+			final int end = data.limit();
+			int runStart = offset;
+			for(int i = offset; i < end; i++){
+				final byte b = data.get(i);
+				if(expectHeader){
+					header = b & 0xFF;
+					expectHeader = false;
+				}
+				if(b == 0){
+					zeros++;
+					continue;
+				}
+				if(b == 1 && zeros >= 2){
+					//Zeros in front of a start code are either part of it or trailing_zero_8bits, never NAL data
+					if(inNal){
+						emit(data, runStart, i - Math.min(zeros, i - offset));
+						end();
+					}
+					inNal = true;
+					expectHeader = true;
+					sink.onNalStart();
+					sink.onNalData(startCode, 0, START_CODE.length);
+					runStart = i + 1;
+				}else if(carried > 0){
+					//The zeros held back at the end of the last slice turned out to be data
+					emitZeros(carried);
+				}
+				zeros = 0;
+				carried = 0;
+			}
+			final int trailing = Math.min(zeros, end - offset);
+			emit(data, runStart, end - trailing);
+			carried = Math.min(zeros, carried + trailing);
+		}
+		
+		//Ends the NAL unit in progress. Zeros still held back are dropped as trailing zeros
+		void flush(){
+			if(inNal && !expectHeader){
+				end();
+			}
+			inNal = false;
+			expectHeader = false;
+			zeros = 0;
+			carried = 0;
+		}
+		
+		boolean inNal(){
+			return inNal;
+		}
+		
+		static boolean startsWithStartCode(ByteBuffer data){
+			final int p = data.position();
+			if(data.remaining() < 3 || data.get(p) != 0 || data.get(p + 1) != 0){
+				return false;
+			}
+			return data.get(p + 2) == 1 || (data.remaining() > 3 && data.get(p + 2) == 0 && data.get(p + 3) == 1);
+		}
+		
+		//forbidden_zero_bit must be clear, the type must be one H.264 defines, and IDR, SPS and PPS must be reference data
+		static boolean isValidHeader(int header){
+			final int type = header & 0x1F;
+			final int refIdc = (header >> 5) & 0x3;
+			if((header & 0x80) != 0 || type == 0 || type > 23){
+				return false;
+			}
+			return refIdc != 0 || (type != NAL_IDR && type != NAL_SPS && type != NAL_PPS);
+		}
+		
+		private void end(){
+			sink.onNalEnd(header & 0x1F, isValidHeader(header));
+		}
+		
+		private void emit(ByteBuffer data, int from, int to){
+			if(inNal && to > from){
+				sink.onNalData(data, from, to - from);
+			}
+		}
+		
+		private void emitZeros(int count){
+			if(!inNal){
+				return;
+			}
+			while(count > 0){
+				final int n = Math.min(count, ZEROS.length);
+				sink.onNalData(zeroRun, 0, n);
+				count -= n;
+			}
+		}
+	}
+	
+	//Bounded lock-free ring between the video receiver (producer) and the decoder (consumer).
+	//Only the producer moves the tail. The head is normally moved by the consumer, but when the ring is full the
+	//producer takes frames off the head as well, so both sides advance it with a CAS. Dropped frames go back to the pool
+	static class FrameQueue {
+		static final int DROP_OLDEST = 0;
+		static final int DROP_UNTIL_KEY_FRAME = 1;
+		
+		final AtomicLong dropped = new AtomicLong();
+		final AtomicLong duplicated = new AtomicLong();
+		
+		private final Frame[] slots;
+		private final int mask;
+		private final int policy;
+		private final FramePool pool;
+		private final AtomicLong head = new AtomicLong();
+		private final AtomicLong tail = new AtomicLong();
+		private boolean waitForKeyFrame; //Producer only
+		private volatile Thread waiter;
+		
+		FrameQueue(int capacity, int policy, FramePool pool){
+			if(Integer.bitCount(capacity) != 1){
+				throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+			}
+			this.slots = new Frame[capacity];
+			this.mask = capacity - 1;
+			this.policy = policy;
+			this.pool = pool;
+		}
+		
+		//Producer side
+		void offer(Frame f){
+			if(waitForKeyFrame){
+				if(!f.keyFrame){
+					drop(f);
+					return;
+				}
+				waitForKeyFrame = false;
+			}
+			final long t = tail.get();
+			if(t - head.get() == slots.length){
+				if(policy == DROP_OLDEST){
+					dropHead();
+				}else{
+					//Frames after a gap can't be decoded until the next IDR, so skip straight to it
+					dropAll();
+					if(!f.keyFrame){
+						waitForKeyFrame = true;
+						drop(f);
+						return;
+					}
+				}
+			}
+			slots[(int) t & mask] = f;
+			tail.set(t + 1); //A full volatile write, so a consumer that just parked can't miss it
+			final Thread w = waiter;
+			if(w != null){
+				LockSupport.unpark(w);
+			}
+		}
+		
+		//Consumer side. Returns null when the ring is empty
+		Frame poll(){
+			while(true){
+				final long h = head.get();
+				if(h == tail.get()){
+					return null;
+				}
+				final Frame f = slots[(int) h & mask];
+				if(head.compareAndSet(h, h + 1)){
+					return f;
+				}
+				//The producer dropped this frame under us, try the next one
+			}
+		}
+		
+		//Consumer side. Parks until a frame is offered or the timeout runs out
+		Frame take(long timeoutNanos){
+			Frame f = poll();
+			if(f != null){
+				return f;
+			}
+			waiter = Thread.currentThread();
+			try{
+				f = poll();
+				if(f == null){
+					LockSupport.parkNanos(this, timeoutNanos);
+					f = poll();
+				}
+			}finally{
+				waiter = null;
+			}
+			return f;
+		}
+		
+		int size(){
+			return (int) (tail.get() - head.get());
+		}
+		
+		private boolean dropHead(){
+			while(true){
+				final long h = head.get();
+				if(h == tail.get()){
+					return false;
+				}
+				final Frame f = slots[(int) h & mask];
+				if(head.compareAndSet(h, h + 1)){
+					drop(f);
+					return true;
+				}
+			}
+		}
+		
+		//Moves the head to the tail in one step. Frames taken off one by one would let the consumer get one from the
+		//middle, which can't be decoded without the ones dropped before it
+		private void dropAll(){
+			while(true){
+				final long h = head.get();
+				final long t = tail.get();
+				if(head.compareAndSet(h, t)){
+					for(long i = h; i < t; i++){
+						drop(slots[(int) i & mask]);
+					}
+					return;
+				}
+			}
+		}
+		
+		private void drop(Frame f){
+			dropped.incrementAndGet();
+			pool.release(f);
+		}
+	}
+	
+	//Preallocated frames shared by the receiver and the decoder so reassembly doesn't allocate in steady state
+	static class FramePool {
+		private final ArrayBlockingQueue<Frame> free;
+		
+		//size frames are made up front, up to capacity are kept once they have been needed
+		FramePool(int size, int capacity){
+			free = new ArrayBlockingQueue<>(capacity);
+			for(int i = 0; i < size; i++){
+				free.offer(new Frame());
+			}
+		}
+		
+		Frame acquire(){
+			Frame f = free.poll();
+			if(f == null){
+				f = new Frame(); //Only if every frame is still in flight
+			}
+			f.refs.set(1);
+			return f;
+		}
+		
+		//Drops one reference, the last one puts the frame back
+		void release(Frame f){
+			if(f.refs.decrementAndGet() == 0){
+				f.clear();
+				free.offer(f);
+			}
 		}
 	}
 }
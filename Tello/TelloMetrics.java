@@ -0,0 +1,226 @@
+/*
+*Copyright (C) 2021 Harshith Doddipalli
+*
+*Licensed under the Apache License, Version 2.0 (the "License");
+*you may not use this file except in compliance with the License.
+*You may obtain a copy of the License at
+*
+*	http://www.apache.org/licenses/LICENSE-2.0
+*
+*Unless required by applicable law or agreed to in writing, software
+*distributed under the License is distributed on an "AS IS" BASIS,
+*WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*See the License for the specific language governing permissions and
+*limitations under the License.
+*/
+
+package com.hdr.tello.v2;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.hdr.tello.v2.Tello.LatencyHistogram;
+
+/*
+	Counters and histograms for the network, video, command and telemetry paths. Recording is one or two
+	atomic operations on the thread that already does the work. Readers take a Snapshot at any time without
+	stopping the writers, so two counters in a snapshot may be a packet apart.
+*/
+
+public class TelloMetrics {
+	private static final String[] PORTS = {"command", "state", "video"};
+	private static final long STATE_PERIOD_MICROS = 100 * 1000; //The drone sends state at 10 Hz
+
+	private final AtomicLongArray packets = new AtomicLongArray(PORTS.length);
+	private final AtomicLongArray bytes = new AtomicLongArray(PORTS.length);
+	private final AtomicLong framesReassembled = new AtomicLong();
+	private final AtomicLong commandTimeouts = new AtomicLong();
+	private final AtomicLong probeTimeouts = new AtomicLong();
+	private final AtomicLong commandReplies = new AtomicLong();
+	private final ConcurrentHashMap<String, LatencyHistogram> commandRtt = new ConcurrentHashMap<>();
+	private final LatencyHistogram stateInterval = new LatencyHistogram();
+	private final LatencyHistogram stateJitter = new LatencyHistogram(); //Distance from the 100 ms cadence
+	private long lastStateAt; //Transport thread only
+
+	//Transport thread, every datagram
+	void onPacket(int port, int length){
+		packets.incrementAndGet(port);
+		bytes.addAndGet(port, length);
+	}
+
+	void onFrameReassembled(){
+		framesReassembled.incrementAndGet();
+	}
+
+	void onStatePacket(long receivedAt){
+		if(lastStateAt != 0){
+			final long interval = TimeUnit.NANOSECONDS.toMicros(receivedAt - lastStateAt);
+			stateInterval.record(interval);
+			stateJitter.record(Math.abs(interval - STATE_PERIOD_MICROS));
+		}
+		lastStateAt = receivedAt;
+	}
+
+	//Command channel thread. The verb is the command up to the first space
+	void onCommandReply(String verb, long rttMicros){
+		LatencyHistogram histogram = commandRtt.get(verb);
+		if(histogram == null){
+			final LatencyHistogram created = new LatencyHistogram();
+			histogram = commandRtt.putIfAbsent(verb, created);
+			if(histogram == null){
+				histogram = created;
+			}
+		}
+		histogram.record(rttMicros);
+		commandReplies.incrementAndGet();
+	}
+
+	//probe for queries and "command", which the drone answers straight away
+	void onCommandTimeout(boolean probe){
+		commandTimeouts.incrementAndGet();
+		if(probe){
+			probeTimeouts.incrementAndGet();
+		}
+	}
+
+	//Plain counters for the connection supervisor, which polls them without taking a Snapshot
+	long getPackets(int port){
+		return packets.get(port);
+	}
+
+	long getFramesReassembled(){
+		return framesReassembled.get();
+	}
+
+	long getCommandReplies(){
+		return commandReplies.get();
+	}
+
+	//Only the timeouts that say the drone went quiet. A move that outlasts its timeout says nothing about the link
+	long getProbeTimeouts(){
+		return probeTimeouts.get();
+	}
+
+	//Round trip from sending a command to its reply, null for verbs that never got one
+	public LatencyHistogram getCommandRtt(String verb){
+		return commandRtt.get(verb);
+	}
+
+	public LatencyHistogram getStateJitter(){
+		return stateJitter;
+	}
+
+	Snapshot snapshot(Tello tello){
+		return new Snapshot(this, tello);
+	}
+
+	//Everything at one point in time. Rates need two snapshots, see perSecond()
+	public static class Snapshot {
+		public final long takenAt; //System.nanoTime()
+		public final long wallClock;
+		private final long[] packets = new long[PORTS.length];
+		private final long[] bytes = new long[PORTS.length];
+		public final long framesReassembled;
+		public final long framesDropped;
+		public final long framesDecoded;
+		public final int decoderQueueDepth;
+		public final long commandsSent;
+		public final long commandTimeouts;
+		public final int commandQueueDepth;
+		public final double commandUtilisation;
+		public final Map<String, LatencyHistogram> commandRtt;
+		public final LatencyHistogram stateInterval;
+		public final LatencyHistogram stateJitter;
+		public final LatencyHistogram frameQueueLatency;
+		public final LatencyHistogram frameReleaseLatency;
+
+		private Snapshot(TelloMetrics metrics, Tello tello){
+			takenAt = System.nanoTime();
+			wallClock = System.currentTimeMillis();
+			for(int port = 0; port < PORTS.length; port++){
+				packets[port] = metrics.packets.get(port);
+				bytes[port] = metrics.bytes.get(port);
+			}
+			framesReassembled = metrics.framesReassembled.get();
+			framesDropped = tello.getFramesDropped();
+			framesDecoded = tello.getFramesDecoded();
+			decoderQueueDepth = tello.getDecoderQueueDepth();
+			commandsSent = tello.getCommandsSent();
+			commandTimeouts = metrics.commandTimeouts.get();
+			commandQueueDepth = tello.getCommandQueueDepth();
+			commandUtilisation = tello.getCommandChannelUtilisation();
+			TreeMap<String, LatencyHistogram> rtt = new TreeMap<>();
+			for(Map.Entry<String, LatencyHistogram> entry : metrics.commandRtt.entrySet()){
+				rtt.put(entry.getKey(), entry.getValue().snapshot());
+			}
+			commandRtt = Collections.unmodifiableMap(rtt);
+			stateInterval = metrics.stateInterval.snapshot();
+			stateJitter = metrics.stateJitter.snapshot();
+			frameQueueLatency = tello.getFrameQueueLatency().snapshot();
+			frameReleaseLatency = tello.getFrameReleaseLatency().snapshot();
+		}
+
+		//port is one of Transport.COMMAND, STATE or VIDEO
+		public long getPackets(int port){
+			return packets[port];
+		}
+
+		public long getBytes(int port){
+			return bytes[port];
+		}
+
+		//Rate of a counter between an earlier snapshot and this one
+		public double perSecond(long now, long before, Snapshot earlier){
+			final long elapsed = takenAt - earlier.takenAt;
+			return elapsed <= 0 ? 0 : (now - before) * 1e9 / elapsed;
+		}
+
+		//One line of key=value pairs, rates against the earlier snapshot if there is one
+		public String format(Snapshot earlier){
+			StringBuilder sb = new StringBuilder();
+			sb.append("time=").append(wallClock);
+			for(int port = 0; port < PORTS.length; port++){
+				sb.append(' ').append(PORTS[port]).append(".packets=").append(packets[port]);
+				sb.append(' ').append(PORTS[port]).append(".bytes=").append(bytes[port]);
+				if(earlier != null){
+					sb.append(String.format(Locale.US, " %s.packets_per_s=%.1f %s.bytes_per_s=%.0f", PORTS[port], perSecond(packets[port], earlier.packets[port], earlier),
+							PORTS[port], perSecond(bytes[port], earlier.bytes[port], earlier)));
+				}
+			}
+			sb.append(" frames.reassembled=").append(framesReassembled);
+			sb.append(" frames.dropped=").append(framesDropped);
+			sb.append(" frames.decoded=").append(framesDecoded);
+			sb.append(" decoder.queue=").append(decoderQueueDepth);
+			appendLatency(sb, "frames.queue_us", frameQueueLatency);
+			appendLatency(sb, "frames.release_us", frameReleaseLatency);
+			sb.append(" commands.sent=").append(commandsSent);
+			sb.append(" commands.timeouts=").append(commandTimeouts);
+			sb.append(" commands.queue=").append(commandQueueDepth);
+			sb.append(String.format(Locale.US, " commands.utilisation=%.3f", commandUtilisation));
+			for(Map.Entry<String, LatencyHistogram> entry : commandRtt.entrySet()){
+				appendLatency(sb, "rtt." + entry.getKey().replace("?", "_q") + "_us", entry.getValue());
+			}
+			appendLatency(sb, "state.interval_us", stateInterval);
+			appendLatency(sb, "state.jitter_us", stateJitter);
+			return sb.toString();
+		}
+
+		private static void appendLatency(StringBuilder sb, String name, LatencyHistogram histogram){
+			sb.append(' ').append(name).append(".count=").append(histogram.getCount());
+			sb.append(' ').append(name).append(".p50=").append(histogram.getPercentile(50));
+			sb.append(' ').append(name).append(".p99=").append(histogram.getPercentile(99));
+			sb.append(' ').append(name).append(".max=").append(histogram.getMax());
+		}
+
+		@Override
+		public String toString(){
+			return format(null);
+		}
+	}
+}
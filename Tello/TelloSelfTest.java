@@ -0,0 +1,1766 @@
+/*
+*Copyright (C) 2021 Harshith Doddipalli
+*
+*Licensed under the Apache License, Version 2.0 (the "License");
+*you may not use this file except in compliance with the License.
+*You may obtain a copy of the License at
+*
+*	http://www.apache.org/licenses/LICENSE-2.0
+*
+*Unless required by applicable law or agreed to in writing, software
+*distributed under the License is distributed on an "AS IS" BASIS,
+*WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*See the License for the specific language governing permissions and
+*limitations under the License.
+*/
+
+package com.hdr.tello.v2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+
+import com.hdr.tello.v2.Tello.CommandEncoder;
+import com.hdr.tello.v2.Tello.CommandTiming;
+import com.hdr.tello.v2.Tello.Frame;
+import com.hdr.tello.v2.Tello.FramePool;
+import com.hdr.tello.v2.Tello.FrameQueue;
+import com.hdr.tello.v2.Tello.LatencyHistogram;
+import com.hdr.tello.v2.Tello.NalParser;
+import com.hdr.tello.v2.Tello.StateParser;
+import com.hdr.tello.v2.Tello.StateStore;
+import com.hdr.tello.v2.Tello.TelloState;
+
+/*
+	Self-checking harness for the parts of Tello that run without Android. Every check prints what it measured and
+	throws an AssertionError when something is wrong, so a non-zero exit means a failure. Checks that drive a whole
+	Tello against TelloSimulator give it no context and their own callback executor, so nothing Android is called,
+	but android.jar has to be on the classpath for Tello to load, as it is for compiling.
+	java [-Dtello.h264=capture.h264] TelloSelfTest [check ...], no arguments runs every check. A recorded capture
+	from the drone is also run through the reassembly and parser benchmarks
+*/
+
+public class TelloSelfTest {
+	//Runs Tello's callbacks on whichever of its threads makes them
+	private static final Executor CALLER = new Executor(){
+		@Override
+		public void execute(Runnable r){
+			r.run();
+		}
+	};
+
+	private static final String[] CHECKS = {"pool", "nal", "ring", "wake", "encoder", "state", "cache", "simulator", "resync", "channel", "outage", "flightlog", "cycle", "transport", "keepalive", "tap", "mission", "rc", "telemetry", "swarm"};
+
+	public static void main(String[] args) throws Exception {
+		for(String check : args.length > 0 ? args : CHECKS){
+			switch(check){
+				case "pool":
+					pool();
+					break;
+				case "nal":
+					nal();
+					break;
+				case "ring":
+					ring();
+					break;
+				case "wake":
+					wake();
+					break;
+				case "encoder":
+					encoder();
+					break;
+				case "state":
+					state();
+					break;
+				case "cache":
+					cache();
+					break;
+				case "simulator":
+					simulator();
+					break;
+				case "resync":
+					resync();
+					break;
+				case "channel":
+					channel();
+					break;
+				case "outage":
+					outage();
+					break;
+				case "flightlog":
+					flightlog();
+					break;
+				case "cycle":
+					cycle();
+					break;
+				case "transport":
+					transport();
+					break;
+				case "keepalive":
+					keepalive();
+					break;
+				case "tap":
+					tap();
+					break;
+				case "mission":
+					mission();
+					break;
+				case "rc":
+					rc();
+					break;
+				case "telemetry":
+					telemetry();
+					break;
+				case "swarm":
+					swarm();
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown check " + check + ", expected one of " + Arrays.toString(CHECKS));
+			}
+		}
+	}
+
+	private static void check(boolean condition, String message){
+		if(!condition){
+			throw new AssertionError(message);
+		}
+	}
+
+	//Frames are reassembled in place from 1460 byte slices, grow as needed and go back to the pool for reuse
+	private static void pool(){
+		final Random random = new Random(1);
+		final byte[] source = new byte[300 * 1024]; //Past the initial capacity, so the frame has to grow
+		random.nextBytes(source);
+		final ByteBuffer heap = ByteBuffer.wrap(source);
+		final ByteBuffer direct = ByteBuffer.allocateDirect(source.length);
+		direct.put(source).clear();
+
+		final FramePool pool = new FramePool(2, 4);
+		for(ByteBuffer slices : new ByteBuffer[]{heap, direct}){
+			final Frame frame = pool.acquire();
+			slices.position(7);
+			for(int offset = 0; offset < source.length; offset += TelloSimulator.SLICE_SIZE){
+				frame.append(slices, offset, Math.min(TelloSimulator.SLICE_SIZE, source.length - offset));
+			}
+			check(slices.position() == 7, "append() moved the source position");
+			check(frame.length == source.length && Arrays.equals(Arrays.copyOf(frame.data, frame.length), source), "Reassembled frame differs from its slices");
+			check(Integer.bitCount(frame.data.length) == 1, "Capacity isn't a power of two: " + frame.data.length);
+			pool.release(frame);
+		}
+
+		//References: the frame only goes back after the last holder released it
+		final Frame held = pool.acquire();
+		final byte[] grown = held.data;
+		held.retain();
+		pool.release(held);
+		final Frame other = pool.acquire();
+		check(other != held, "A frame still referenced was handed out again");
+		pool.release(held);
+		check(held.length == 0 && !held.keyFrame, "Released frame wasn't cleared");
+
+		//Steady state: the same frames and arrays come back, nothing is allocated
+		final Frame again = pool.acquire();
+		check(again == held && again.data == grown, "The pool didn't reuse its frame");
+		check(again.refs.get() == 1, "Reused frame doesn't start with one reference");
+		pool.release(again);
+		pool.release(other);
+
+		//Throughput and garbage of reassembling 60 KB frames from slices, against copying the whole frame for every slice
+		//as before. With a capture, its own frames in the order the drone sent them
+		final byte[] capture = capture();
+		final List<byte[]> recorded = capture == null ? null : TelloSimulator.splitFrames(capture);
+		final List<ByteBuffer> frames = new ArrayList<>();
+		long bytes = 0;
+		for(int i = 0; i < 2000; i++){
+			final ByteBuffer next = recorded != null ? ByteBuffer.wrap(recorded.get(i % recorded.size())) : ByteBuffer.wrap(source, 0, 60 * 1024);
+			frames.add(next);
+			bytes += next.remaining();
+		}
+		final Frame frame = pool.acquire();
+		frame.append(heap, 0, source.length); //Grown once up front, as a pooled frame is after the first large IDR
+		long allocatedBefore = allocatedBytes();
+		long started = System.nanoTime();
+		for(ByteBuffer slices : frames){
+			frame.clear();
+			final int frameSize = slices.limit();
+			for(int offset = 0; offset < frameSize; offset += TelloSimulator.SLICE_SIZE){
+				frame.append(slices, offset, Math.min(TelloSimulator.SLICE_SIZE, frameSize - offset));
+			}
+		}
+		final double pooled = bytes / (double) (System.nanoTime() - started) * 1e9 / (1 << 20);
+		final long pooledGarbage = (allocatedBytes() - allocatedBefore) / frames.size();
+		pool.release(frame);
+		allocatedBefore = allocatedBytes();
+		started = System.nanoTime();
+		long copiedBytes = 0;
+		for(ByteBuffer slices : frames){
+			byte[] copy = new byte[0];
+			final int frameSize = slices.limit();
+			for(int offset = 0; offset < frameSize; offset += TelloSimulator.SLICE_SIZE){
+				final int length = Math.min(TelloSimulator.SLICE_SIZE, frameSize - offset);
+				final byte[] next = new byte[copy.length + length];
+				System.arraycopy(copy, 0, next, 0, copy.length);
+				System.arraycopy(slices.array(), offset, next, copy.length, length);
+				copy = next;
+			}
+			copiedBytes += copy.length;
+		}
+		final double copied = bytes / (double) (System.nanoTime() - started) * 1e9 / (1 << 20);
+		final long copiedGarbage = (allocatedBytes() - allocatedBefore) / frames.size();
+		check(copiedBytes == bytes, "Copy benchmark went wrong");
+		if(allocatedBefore >= 0){
+			check(pooledGarbage < 64, "Pooled reassembly allocated " + pooledGarbage + " bytes per frame");
+		}
+		System.out.printf(Locale.US, "pool: ok, reassembling %s: %.0f MB/s and %d bytes allocated per frame pooled, %.0f MB/s and %d bytes"
+				+ " copying per slice%n", recorded != null ? recorded.size() + " frames of the capture" : "60 KB frames", pooled, pooledGarbage,
+				copied, copiedGarbage);
+	}
+
+	//The recorded stream named by -Dtello.h264, null without one
+	private static byte[] capture(){
+		final String path = System.getProperty("tello.h264");
+		if(path == null){
+			return null;
+		}
+		try{
+			return Files.readAllBytes(new File(path).toPath());
+		}catch(IOException e){
+			throw new IllegalArgumentException("Can't read the capture " + path, e);
+		}
+	}
+
+	//NAL units come out whole and in order however the stream is cut into slices, start codes split across them included
+	private static void nal(){
+		final Random random = new Random(2);
+		final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		final List<byte[]> expected = new ArrayList<>();
+		final List<Boolean> expectedValid = new ArrayList<>();
+		final int[] types = {NalParser.NAL_SLICE, NalParser.NAL_IDR, NalParser.NAL_SEI, NalParser.NAL_SPS, NalParser.NAL_PPS};
+		for(int n = 0; n < 2000; n++){
+			final int type = types[random.nextInt(types.length)];
+			int header = type == NalParser.NAL_SLICE || type == NalParser.NAL_SEI ? random.nextInt(4) << 5 | type : 3 << 5 | type;
+			if(n % 97 == 50){
+				header |= 0x80; //Forbidden bit, what a mixed up stream looks like
+			}
+			final ByteArrayOutputStream nal = new ByteArrayOutputStream();
+			nal.write(header);
+			//Plenty of zeros, with emulation prevention bytes where the encoder would put them
+			final int length = random.nextInt(10) == 0 ? random.nextInt(20000) : random.nextInt(300);
+			int zeros = 0;
+			for(int i = 0; i < length; i++){
+				final int b = random.nextInt(3) == 0 ? 0 : random.nextInt(4) == 0 ? 1 + random.nextInt(3) : random.nextInt(256);
+				if(zeros >= 2 && b <= 3){
+					nal.write(3);
+					zeros = 0;
+				}
+				nal.write(b);
+				zeros = b == 0 ? zeros + 1 : 0;
+			}
+			nal.write(0x80); //rbsp_stop_one_bit, a NAL unit never ends in a zero byte
+			if(n > 0 && random.nextInt(5) == 0){
+				stream.write(0); //trailing_zero_8bits
+			}
+			final byte[] body = nal.toByteArray();
+			stream.write(0);
+			stream.write(0);
+			if(n == 0 || random.nextBoolean()){
+				stream.write(0);
+			}
+			stream.write(1);
+			stream.write(body, 0, body.length);
+			final byte[] out = new byte[4 + body.length];
+			out[3] = 1;
+			System.arraycopy(body, 0, out, 4, body.length);
+			expected.add(out);
+			expectedValid.add((header & 0x80) == 0);
+		}
+		final byte[] data = stream.toByteArray();
+
+		final List<byte[]> nals = new ArrayList<>();
+		final List<Boolean> valid = new ArrayList<>();
+		final ByteArrayOutputStream current = new ByteArrayOutputStream();
+		final NalParser parser = new NalParser(new NalParser.Sink(){
+			@Override
+			public void onNalStart(){
+				current.reset();
+			}
+
+			@Override
+			public void onNalData(ByteBuffer buffer, int offset, int length){
+				for(int i = 0; i < length; i++){
+					current.write(buffer.get(offset + i));
+				}
+			}
+
+			@Override
+			public void onNalEnd(int type, boolean ok){
+				final byte[] nal = current.toByteArray();
+				check(type == (nal[4] & 0x1F), "NAL type " + type + " doesn't match its header " + nal[4]);
+				nals.add(nal);
+				valid.add(ok);
+			}
+		});
+		//Slices of 1, 2 and 3 bytes put every start code across a boundary somewhere, 1460 is what the drone sends
+		for(int sliceSize : new int[]{1, 2, 3, 7, TelloSimulator.SLICE_SIZE, -1}){
+			nals.clear();
+			valid.clear();
+			for(int offset = 0; offset < data.length; ){
+				final int size = Math.min(sliceSize > 0 ? sliceSize : 1 + random.nextInt(2000), data.length - offset);
+				parser.feed(ByteBuffer.wrap(data, offset, size));
+				offset += size;
+			}
+			parser.flush();
+			check(nals.size() == expected.size(), "Slices of " + sliceSize + ": " + nals.size() + " NAL units instead of " + expected.size());
+			for(int i = 0; i < expected.size(); i++){
+				check(Arrays.equals(nals.get(i), expected.get(i)), "Slices of " + sliceSize + ": NAL unit " + i + " differs");
+				check(valid.get(i).equals(expectedValid.get(i)), "Slices of " + sliceSize + ": NAL unit " + i + " validity is wrong");
+			}
+		}
+
+		//Parsing speed alone, with a sink that only counts
+		final long[] counted = new long[2];
+		final NalParser counting = new NalParser(new NalParser.Sink(){
+			@Override
+			public void onNalStart(){
+			}
+
+			@Override
+			public void onNalData(ByteBuffer buffer, int offset, int length){
+				counted[0] += length;
+			}
+
+			@Override
+			public void onNalEnd(int type, boolean ok){
+				counted[1]++;
+			}
+		});
+		final byte[] capture = capture();
+		final byte[] input = capture != null ? capture : data;
+		final ByteBuffer whole = ByteBuffer.wrap(input);
+		final int rounds = Math.max(5, (int) (50L * data.length / input.length));
+		final long allocatedBefore = allocatedBytes();
+		final long started = System.nanoTime();
+		long packets = 0;
+		for(int round = 0; round < rounds; round++){
+			for(int offset = 0; offset < input.length; offset += TelloSimulator.SLICE_SIZE){
+				whole.limit(Math.min(offset + TelloSimulator.SLICE_SIZE, input.length)).position(offset);
+				counting.feed(whole);
+				packets++;
+			}
+			counting.flush();
+		}
+		final double mbs = rounds * (double) input.length / (System.nanoTime() - started) * 1e9 / (1 << 20);
+		final long allocated = allocatedBytes() - allocatedBefore;
+		if(capture == null){
+			check(counted[1] == rounds * (long) expected.size(), "Counting parser found " + counted[1] / rounds + " NAL units");
+		}
+		if(allocatedBefore >= 0){
+			check(allocated < 64 * 1024, "Parsing " + packets + " packets allocated " + allocated + " bytes");
+		}
+		System.out.printf(Locale.US, "nal: ok, %d NAL units in slices of 1 to 1460 bytes and random sizes, %s parsed at %.0f MB/s, %.3f bytes"
+				+ " allocated per packet%n", expected.size(), capture != null ? "the capture" : "the stream", mbs,
+				allocatedBefore >= 0 ? allocated / (double) packets : Double.NaN);
+	}
+
+	//Producer and consumer hammer the ring. Frames must arrive in order, each once and with the content it was queued
+	//with, and every frame is either received or counted as dropped
+	private static void ring() throws InterruptedException {
+		final int frames = 200000;
+		for(final int policy : new int[]{FrameQueue.DROP_OLDEST, FrameQueue.DROP_UNTIL_KEY_FRAME}){
+			final FramePool pool = new FramePool(11, 11);
+			final FrameQueue queue = new FrameQueue(8, policy, pool);
+			final Thread producer = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					final Random random = new Random(3);
+					for(long sequence = 1; sequence <= frames; sequence++){
+						final Frame f = pool.acquire();
+						f.sequence = sequence;
+						f.keyFrame = sequence % 30 == 1;
+						for(int i = 0; i < 8; i++){
+							f.data[i] = (byte) (sequence >>> (i * 8));
+						}
+						f.length = 8;
+						queue.offer(f);
+						if(random.nextInt(16) == 0){
+							LockSupport.parkNanos(20000); //Roughly as fast as the consumer, so the ring runs both empty and full
+						}
+					}
+				}
+			}, "producer");
+			final long started = System.nanoTime();
+			producer.start();
+			final Random random = new Random(4);
+			long received = 0;
+			long last = 0;
+			long gaps = 0;
+			while(producer.isAlive() || queue.size() > 0){
+				final Frame f = queue.take(TimeUnit.MILLISECONDS.toNanos(1));
+				if(f == null){
+					continue;
+				}
+				long content = 0;
+				for(int i = 0; i < 8; i++){
+					content |= (f.data[i] & 0xFFL) << (i * 8);
+				}
+				check(content == f.sequence, "Frame " + f.sequence + " was overwritten while queued");
+				check(f.sequence > last, "Frame " + f.sequence + " arrived after " + last);
+				if(f.sequence != last + 1){
+					gaps++;
+					check(policy != FrameQueue.DROP_UNTIL_KEY_FRAME || f.keyFrame, "Frame " + f.sequence + " after a gap isn't a key frame");
+				}
+				last = f.sequence;
+				received++;
+				if(random.nextInt(16) == 0){
+					LockSupport.parkNanos(20000); //A slow decode, so the ring overflows now and then
+				}
+				pool.release(f);
+			}
+			producer.join();
+			final double seconds = (System.nanoTime() - started) / 1e9;
+			check(received + queue.dropped.get() == frames, received + " received and " + queue.dropped.get() + " dropped out of " + frames);
+			System.out.printf(Locale.US, "ring: ok, %s %.1f M frames/s, %d received, %d dropped in %d gaps%n",
+					policy == FrameQueue.DROP_OLDEST ? "DROP_OLDEST" : "DROP_UNTIL_KEY_FRAME", frames / seconds / 1e6, received, queue.dropped.get(), gaps);
+		}
+	}
+
+	//The decoder parks in take() and is woken by the frame it waits for, instead of finding it on its next 50 ms poll
+	private static void wake() throws InterruptedException {
+		final FramePool pool = new FramePool(11, 11);
+		final FrameQueue queue = new FrameQueue(8, FrameQueue.DROP_OLDEST, pool);
+
+		long started = System.nanoTime();
+		check(queue.take(TimeUnit.MILLISECONDS.toNanos(20)) == null, "take() on an empty queue returned a frame");
+		final long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+		check(waited >= 19, "take() gave up after " + waited + " ms instead of 20");
+
+		final Frame queued = pool.acquire();
+		queue.offer(queued);
+		started = System.nanoTime();
+		check(queue.take(TimeUnit.SECONDS.toNanos(1)) == queued, "take() didn't return the queued frame");
+		check(System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos(10), "take() waited although a frame was queued");
+		pool.release(queued);
+
+		//Frames at 200 fps with random gaps, each timed from offer() to the return of take()
+		final int frames = 1000;
+		final Tello.LatencyHistogram latency = new Tello.LatencyHistogram();
+		final Thread consumer = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				for(int received = 0; received < frames; ){
+					final Frame f = queue.take(TimeUnit.SECONDS.toNanos(1));
+					if(f == null){
+						continue;
+					}
+					latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - f.queuedAt));
+					received++;
+					pool.release(f);
+				}
+			}
+		}, "consumer");
+		consumer.start();
+		final Random random = new Random(5);
+		for(int i = 0; i < frames; i++){
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(2000 + random.nextInt(6000)));
+			final Frame f = pool.acquire();
+			f.queuedAt = System.nanoTime();
+			queue.offer(f);
+		}
+		consumer.join(TimeUnit.SECONDS.toMillis(10));
+		check(!consumer.isAlive(), "The consumer missed frames, " + latency.getCount() + " of " + frames + " arrived");
+		check(latency.getPercentile(50) < 5000, "Median wake up took " + latency.getPercentile(50) + " us");
+		System.out.printf(Locale.US, "wake: ok, offer to take p50 %d us p99 %d us max %d us, empty take() waited %d ms%n",
+				latency.getPercentile(50), latency.getPercentile(99), latency.getPercentile(100), waited);
+	}
+
+	//Encoded commands are byte for byte what string building gave, clamped, and encoding into a buffer allocates nothing
+	private static void encoder(){
+		final String[] verbs = {"up", "down", "left", "right", "forward", "back", "cw", "ccw", "speed", "rc", "go"};
+		final Random random = new Random(7);
+		final CommandEncoder encoder = new CommandEncoder();
+		final byte[] out = new byte[64];
+		for(int i = 0; i < 100000; i++){
+			final String verb = verbs[random.nextInt(verbs.length)];
+			final int min = verb.equals("rc") ? -100 : random.nextInt(50);
+			final int max = min + 1 + random.nextInt(1000);
+			final int args = 1 + random.nextInt(4);
+			final StringBuilder expected = new StringBuilder(verb);
+			encoder.verb(verb.getBytes(StandardCharsets.US_ASCII));
+			for(int a = 0; a < args; a++){
+				final int value = random.nextInt(3000) - 1500;
+				expected.append(' ').append(Math.max(min, Math.min(max, value)));
+				encoder.arg(value, min, max);
+			}
+			if(random.nextInt(10) == 0){
+				expected.append(" f");
+				encoder.arg('f');
+			}
+			final String bytes = new String(encoder.toBytes(), StandardCharsets.US_ASCII);
+			check(bytes.equals(expected.toString()), "Encoded \"" + bytes + "\" instead of \"" + expected + "\"");
+			final int length = encoder.writeTo(out);
+			check(new String(out, 0, length, StandardCharsets.US_ASCII).equals(bytes), "writeTo() differs from toBytes()");
+		}
+		check(new String(encoder.verb("rc".getBytes(StandardCharsets.US_ASCII)).arg(Integer.MIN_VALUE + 1, -100, 100).arg(Integer.MAX_VALUE, -100, 100)
+				.toBytes(), StandardCharsets.US_ASCII).equals("rc -100 100"), "Extreme values aren't clamped");
+
+		//What an rc stream does 100 times a second, against building the string
+		final byte[] rc = "rc".getBytes(StandardCharsets.US_ASCII);
+		final int rounds = 1000000;
+		final long allocatedBefore = allocatedBytes();
+		long started = System.nanoTime();
+		int sink = 0;
+		for(int i = 0; i < rounds; i++){
+			sink += encoder.verb(rc).arg(i % 201 - 100, -100, 100).arg(-i % 101, -100, 100).arg(50, -100, 100).arg(i % 7, -100, 100).writeTo(out);
+		}
+		final double encodedNs = (System.nanoTime() - started) / (double) rounds;
+		final long allocated = allocatedBytes() - allocatedBefore;
+		started = System.nanoTime();
+		for(int i = 0; i < rounds; i++){
+			sink += ("rc " + (i % 201 - 100) + " " + (-i % 101) + " " + 50 + " " + i % 7).getBytes(StandardCharsets.US_ASCII).length;
+		}
+		final double builtNs = (System.nanoTime() - started) / (double) rounds;
+		final long builtAllocated = allocatedBytes() - allocatedBefore - allocated;
+		if(allocatedBefore >= 0){
+			check(allocated < 64 * 1024, "Encoding " + rounds + " rc packets allocated " + allocated + " bytes");
+		}
+		check(sink != 0, "Nothing was encoded");
+		System.out.printf(Locale.US, "encoder: ok, rc packet encoded in %.0f ns/op and %.3f bytes/op, built as a string in %.0f ns/op and %.0f"
+				+ " bytes/op%n", encodedNs, allocatedBefore >= 0 ? allocated / (double) rounds : Double.NaN, builtNs,
+				allocatedBefore >= 0 ? builtAllocated / (double) rounds : Double.NaN);
+	}
+
+	//Bytes allocated by this thread so far, -1 where the JVM doesn't tell
+	private static long allocatedBytes(){
+		final java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+		if(threads instanceof com.sun.management.ThreadMXBean){
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	//Parsed state matches a String.split parse of the same packet, and readers of the seqlock never see a torn state
+	private static void state() throws InterruptedException {
+		final Random random = new Random(8);
+		final String[] packets = new String[2000];
+		for(int p = 0; p < packets.length; p++){
+			final ArrayList<String> pairs = new ArrayList<>();
+			for(int field = 0; field < TelloState.FIELDS; field++){
+				final String value = TelloState.isFloat(field)
+						? String.format(Locale.US, "%.2f", (random.nextInt(400000) - 200000) / 100.0)
+						: String.valueOf(random.nextInt(4000) - 2000);
+				pairs.add(TelloState.NAMES[field] + ":" + value);
+			}
+			//The EDU adds mission pad fields, some of them not numbers
+			pairs.add("mid:-1");
+			pairs.add("x:0");
+			pairs.add("mpry:0,0,0");
+			Collections.shuffle(pairs, random);
+			final StringBuilder packet = new StringBuilder();
+			for(String pair : pairs){
+				packet.append(pair).append(';');
+			}
+			packets[p] = packet.append("\r\n").toString();
+		}
+
+		final TelloState parsed = new TelloState();
+		for(String packet : packets){
+			final byte[] bytes = packet.getBytes(StandardCharsets.US_ASCII);
+			check(StateParser.parse(bytes, 0, bytes.length, parsed), "No field found in " + packet);
+			final HashMap<String, String> reference = splitState(packet);
+			for(int field = 0; field < TelloState.FIELDS; field++){
+				final double expected = Double.parseDouble(reference.get(TelloState.NAMES[field]));
+				final double actual = TelloState.isFloat(field) ? Float.intBitsToFloat((int) parsed.bits(field)) : parsed.bits(field);
+				check(Math.abs(actual - expected) <= Math.abs(expected) * 1e-6, TelloState.NAMES[field] + " parsed as " + actual + " from " + packet);
+				check(parsed.format(field).equals(reference.get(TelloState.NAMES[field])), TelloState.NAMES[field] + " formats as " + parsed.format(field));
+			}
+		}
+
+		final int rounds = 100;
+		final byte[][] raw = new byte[packets.length][];
+		for(int p = 0; p < packets.length; p++){
+			raw[p] = packets[p].getBytes(StandardCharsets.US_ASCII);
+		}
+		final long allocatedBefore = allocatedBytes();
+		long started = System.nanoTime();
+		for(int round = 0; round < rounds; round++){
+			for(byte[] packet : raw){
+				StateParser.parse(packet, 0, packet.length, parsed);
+			}
+		}
+		final double parseNs = (System.nanoTime() - started) / (double) (rounds * packets.length);
+		final long parseAllocated = allocatedBytes() - allocatedBefore;
+		started = System.nanoTime();
+		int sink = 0;
+		for(int round = 0; round < rounds; round++){
+			for(byte[] packet : raw){
+				sink += splitState(new String(packet, StandardCharsets.US_ASCII)).size();
+			}
+		}
+		final double splitNs = (System.nanoTime() - started) / (double) (rounds * packets.length);
+		final long splitAllocated = allocatedBytes() - allocatedBefore - parseAllocated;
+		check(sink != 0, "split() found no fields");
+		if(allocatedBefore >= 0){
+			check(parseAllocated < 64 * 1024, "Parsing " + rounds * packets.length + " packets allocated " + parseAllocated + " bytes");
+		}
+
+		//One writer publishes states whose fields all hold the same number, readers check they never get a mix
+		final StateStore store = new StateStore();
+		final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+		final AtomicLong reads = new AtomicLong();
+		final AtomicReference<String> torn = new AtomicReference<>();
+		final Thread[] readers = new Thread[3];
+		for(int r = 0; r < readers.length; r++){
+			readers[r] = new Thread(new Runnable(){
+				@Override
+				public void run(){
+					final TelloState out = new TelloState();
+					long lastSequence = 0;
+					while(System.nanoTime() < end && torn.get() == null){
+						store.read(out);
+						final long first = out.bits(0);
+						for(int field = 1; field < TelloState.FIELDS; field++){
+							final long value = TelloState.isFloat(field) ? (long) Float.intBitsToFloat((int) out.bits(field)) : out.bits(field);
+							if(value != first){
+								torn.set("Field " + TelloState.NAMES[field] + " is " + value + " next to " + first);
+							}
+						}
+						if(out.sequence < lastSequence || out.receivedAt != first){
+							torn.set("Sequence " + out.sequence + " after " + lastSequence + ", receivedAt " + out.receivedAt + " for " + first);
+						}
+						lastSequence = out.sequence;
+						reads.incrementAndGet();
+					}
+				}
+			}, "reader");
+			readers[r].start();
+		}
+		final TelloState written = new TelloState();
+		long publishes = 0;
+		while(System.nanoTime() < end){
+			final int value = (int) (++publishes % 1000000);
+			for(int field = 0; field < TelloState.FIELDS; field++){
+				written.set(field, value);
+			}
+			written.receivedAt = value;
+			store.publish(written);
+		}
+		for(Thread reader : readers){
+			reader.join();
+		}
+		check(torn.get() == null, "Torn read: " + torn.get());
+		final double packetCount = rounds * (double) packets.length;
+		System.out.printf(Locale.US, "state: ok, %d packets parse like split(), parser %.0f ns and %.3f bytes per packet against split() %.0f ns"
+				+ " and %.0f bytes, %d publishes and %d consistent reads%n", packets.length, parseNs,
+				allocatedBefore >= 0 ? parseAllocated / packetCount : Double.NaN, splitNs,
+				allocatedBefore >= 0 ? splitAllocated / packetCount : Double.NaN, publishes, reads.get());
+	}
+
+	//How the state used to be parsed
+	private static HashMap<String, String> splitState(String packet){
+		final HashMap<String, String> values = new HashMap<>();
+		for(String pair : packet.trim().split(";")){
+			final String[] keyValue = pair.split(":");
+			if(keyValue.length == 2){
+				values.put(keyValue[0], keyValue[1]);
+			}
+		}
+		return values;
+	}
+
+	//Cached getters: field formatting against String.format, which the drone's replies follow, then the reply
+	//built from a state packet against what the simulator answers to the same command at the same moment
+	private static void cache() throws Exception {
+		final TelloState state = new TelloState();
+		final Random random = new Random(10);
+		final ArrayList<Float> values = new ArrayList<>(Arrays.asList(0f, -0f, 0.001f, -0.001f, 0.005f, -0.005f,
+				0.125f, -0.125f, 0.375f, -0.375f, 1.005f, -1.005f, 2.675f, -2.675f, 9.995f, -9.995f, 193.57f,
+				-999f, 99999.99f, -1e-30f, 1e7f, -1e7f));
+		for(int i = 0; i < 100000; i++){
+			values.add(i % 2 == 0 ? (random.nextFloat() - 0.5f) * 4000 : (random.nextInt(400001) - 200000) / 200f);
+		}
+		for(int field : new int[]{TelloState.BARO, TelloState.AGX, TelloState.AGY, TelloState.AGZ}){
+			for(float value : values){
+				state.set(field, value);
+				final String expected = String.format(Locale.US, "%.2f", value);
+				check(expected.equals(state.format(field)), "format(" + TelloState.NAMES[field] + ") of " + value
+						+ " is " + state.format(field) + ", String.format gives " + expected);
+			}
+		}
+		for(int field = 0; field < TelloState.FIELDS; field++){
+			if(!TelloState.isFloat(field)){
+				for(int value : new int[]{0, 1, -1, 59, -180, 100000, Integer.MIN_VALUE, Integer.MAX_VALUE}){
+					state.set(field, value);
+					check(String.valueOf(value).equals(state.format(field)), "format(" + TelloState.NAMES[field] + ") of " + value);
+				}
+			}
+		}
+		System.out.printf(Locale.US, "cache: %d float values formatted like String.format%n", values.size());
+
+		final String[] queries = {"battery?", "time?", "height?", "temp?", "attitude?", "baro?", "acceleration?", "tof?"};
+		final DatagramSocket stateSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		final DatagramSocket commandSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		final TelloSimulator simulator = new TelloSimulator("127.0.0.1", 0, stateSocket.getLocalPort(), 0);
+		try{
+			simulator.start();
+			stateSocket.setSoTimeout(2000);
+			commandSocket.setSoTimeout(2000);
+			final DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+			int compared = 0;
+			for(String command : new String[]{"command", "takeoff", "up 70", "cw 45"}){
+				check("ok".equals(ask(commandSocket, simulator, command)), command + " not answered with ok");
+				for(int round = 0; round < 3; round++){
+					stateSocket.receive(packet);
+					check(StateParser.parse(packet.getData(), packet.getOffset(), packet.getLength(), state), "state packet not parsed");
+					for(String query : queries){
+						final String cached = state.reply(query);
+						final String drone = ask(commandSocket, simulator, query);
+						//Flight time may tick over between the packet and the query
+						final boolean ticked = query.equals("time?") && drone.equals(state.time + 1 + "s");
+						check(drone.equals(cached) || ticked, query + " cached as " + cached + ", the simulator answers " + drone);
+						compared++;
+					}
+				}
+			}
+			check(state.reply("speed?") == null, "speed? isn't part of the state");
+			ask(commandSocket, simulator, "land");
+			System.out.printf(Locale.US, "cache: %d cached replies match the simulator, flying at h %d cm%n", compared, state.h);
+		}finally{
+			simulator.close();
+			stateSocket.close();
+			commandSocket.close();
+		}
+
+		//speed? isn't in the state, Tello remembers what the drone confirmed and lets it age like a state packet
+		final Rig rig = new Rig(new NioTransport());
+		rig.simulator.setAutoLand(0);
+		final Tello tello = rig.start();
+		try{
+			tello.setKeepalive(0);
+			tello.setStateMaxAge(300);
+			rig.simulator.setOffline(true);
+			tello.speed(50); //Lost
+			Thread.sleep(400);
+			rig.simulator.setOffline(false);
+			long sent = tello.getCommandsSent();
+			check("10.0".equals(tello.getSpeed()) && tello.getCommandsSent() == sent + 1, "unanswered speed 50 was remembered");
+			tello.speed(50);
+			Thread.sleep(50);
+			sent = tello.getCommandsSent();
+			check("50.0".equals(tello.getSpeed()) && tello.getCommandsSent() == sent, "confirmed speed 50 was queried again");
+			Thread.sleep(400);
+			check("50.0".equals(tello.getSpeed()) && tello.getCommandsSent() == sent + 1, "speed older than the state max age wasn't queried");
+			System.out.println("cache: speed remembered only once confirmed, queried again once older than the state max age");
+		}finally{
+			rig.close();
+		}
+	}
+
+	private static String ask(DatagramSocket socket, TelloSimulator simulator, String command) throws IOException {
+		final byte[] out = command.getBytes(StandardCharsets.US_ASCII);
+		socket.send(new DatagramPacket(out, out.length, InetAddress.getLoopbackAddress(), simulator.getCommandPort()));
+		final DatagramPacket reply = new DatagramPacket(new byte[256], 256);
+		socket.receive(reply);
+		return new String(reply.getData(), 0, reply.getLength(), StandardCharsets.US_ASCII);
+	}
+
+	//TelloSimulator as the other checks and the app rely on it: reply delays, the 10 Hz state stream, auto-land and
+	//a replayed video file that arrives in slices of at most SLICE_SIZE bytes and reassembles to the same bytes
+	private static void simulator() throws IOException, InterruptedException {
+		final Random random = new Random(12);
+		final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		int pictures = 0;
+		for(int gop = 0; gop < 2; gop++){
+			stream.write(nalUnit(random, 7, 12));
+			stream.write(nalUnit(random, 8, 4));
+			for(int i = 0; i < 10; i++, pictures++){
+				stream.write(nalUnit(random, i == 0 ? 5 : 1, i == 0 ? 9000 : 1 + random.nextInt(3000)));
+			}
+		}
+		final byte[] video = stream.toByteArray();
+		final ArrayList<byte[]> frames = TelloSimulator.splitFrames(video);
+		final ByteArrayOutputStream joined = new ByteArrayOutputStream();
+		for(byte[] frame : frames){
+			joined.write(frame);
+		}
+		check(frames.size() == pictures, "splitFrames made " + frames.size() + " frames out of " + pictures + " pictures");
+		check(Arrays.equals(joined.toByteArray(), video), "splitFrames lost bytes");
+
+		final File file = File.createTempFile("selftest", ".h264");
+		file.deleteOnExit();
+		Files.write(file.toPath(), video);
+		final DatagramSocket stateSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		final DatagramSocket videoSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		final DatagramSocket commandSocket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		final TelloSimulator simulator = new TelloSimulator("127.0.0.1", 0, stateSocket.getLocalPort(), videoSocket.getLocalPort())
+				.setReplyDelay(50).setReplyDelay("takeoff", 300).setAutoLand(400).setVideo(file).setFps(100);
+		try{
+			simulator.start();
+			stateSocket.setSoTimeout(2000);
+			videoSocket.setSoTimeout(2000);
+			videoSocket.setReceiveBufferSize(1 << 22);
+			commandSocket.setSoTimeout(2000);
+			long started = System.nanoTime();
+			check("ok".equals(ask(commandSocket, simulator, "command")), "command not answered with ok");
+			final long commandMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+			check(commandMs >= 50 && commandMs < 300, "command answered after " + commandMs + " ms, the delay is 50");
+			started = System.nanoTime();
+			check("ok".equals(ask(commandSocket, simulator, "takeoff")), "takeoff not answered with ok");
+			final long takeoffMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+			check(takeoffMs >= 300, "takeoff answered after " + takeoffMs + " ms, its delay is 300");
+			check("error".equals(ask(commandSocket, simulator, "hover")), "unknown command not answered with error");
+
+			//State for one second, it should still be flying until auto-land
+			final DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+			final TelloState state = new TelloState();
+			stateSocket.setSoTimeout(20);
+			try{
+				while(true){
+					stateSocket.receive(packet); //Drops what queued up during the replies
+				}
+			}catch(SocketTimeoutException e){
+				stateSocket.setSoTimeout(2000);
+			}
+			stateSocket.receive(packet);
+			final long first = System.nanoTime();
+			int packets = 0;
+			while(System.nanoTime() - first < TimeUnit.SECONDS.toNanos(1)){
+				stateSocket.receive(packet);
+				check(StateParser.parse(packet.getData(), packet.getOffset(), packet.getLength(), state), "state packet not parsed");
+				packets++;
+			}
+			check(packets >= 8 && packets <= 12, packets + " state packets in a second, expected 10");
+			check(!simulator.isFlying() && simulator.getAutoLandings() == 1, "no auto-land after a second without commands");
+			check(state.h == 0 && state.time == 0, "state still flying after auto-land, h " + state.h);
+
+			check("ok".equals(ask(commandSocket, simulator, "streamon")), "streamon not answered with ok");
+			final byte[] slice = new byte[2048];
+			final DatagramPacket videoPacket = new DatagramPacket(slice, slice.length);
+			final ByteArrayOutputStream received = new ByteArrayOutputStream();
+			int slices = 0;
+			while(received.size() < video.length){
+				videoPacket.setLength(slice.length);
+				videoSocket.receive(videoPacket);
+				check(videoPacket.getLength() <= TelloSimulator.SLICE_SIZE, "slice of " + videoPacket.getLength() + " bytes");
+				received.write(slice, 0, videoPacket.getLength());
+				slices++;
+			}
+			check(Arrays.equals(Arrays.copyOf(received.toByteArray(), video.length), video), "replayed video differs from the file");
+			ask(commandSocket, simulator, "streamoff");
+			System.out.printf(Locale.US, "simulator: ok, replies after %d and %d ms, %d state packets/s, %d bytes of video in %d slices%n",
+					commandMs, takeoffMs, packets, video.length, slices);
+		}finally{
+			simulator.close();
+			stateSocket.close();
+			videoSocket.close();
+			commandSocket.close();
+		}
+	}
+
+	//Annex-B NAL unit of the given type. Payload bytes are never 0, so there is no start code inside
+	private static byte[] nalUnit(Random random, int type, int payload){
+		final byte[] unit = new byte[4 + 1 + payload];
+		unit[3] = 1;
+		unit[4] = (byte) (0x60 | type);
+		for(int i = 5; i < unit.length; i++){
+			unit[i] = (byte) (1 + random.nextInt(255));
+		}
+		return unit;
+	}
+
+	//The two tests VideoReceiver uses to spot lost slices. Every NAL header against H.264 Table 7-1, and the start code
+	//test against every slice of up to 6 bytes made of 0, 1 and 2, read from a non-zero position
+	private static void resync(){
+		//Table 7-1: 1 to 23 are defined or reserved for H.264 itself, 0 and 24 to 31 are unspecified
+		final boolean[] defined = new boolean[32];
+		for(int type = 1; type <= 23; type++){
+			defined[type] = true;
+		}
+		int valid = 0;
+		for(int header = 0; header < 256; header++){
+			final boolean forbidden = header >= 0x80;
+			final int refIdc = header >> 5 & 3;
+			final int type = header & 0x1F;
+			final boolean reference = type == 5 || type == 7 || type == 8; //nal_ref_idc shall not be 0 for these
+			final boolean expected = !forbidden && defined[type] && (refIdc != 0 || !reference);
+			check(NalParser.isValidHeader(header) == expected, String.format(Locale.US, "header 0x%02x is %s", header,
+					expected ? "valid" : "invalid"));
+			valid += expected ? 1 : 0;
+		}
+
+		int slices = 0;
+		for(int length = 0; length <= 6; length++){
+			final int combinations = (int) Math.pow(3, length);
+			for(int combination = 0; combination < combinations; combination++){
+				final ByteBuffer slice = ByteBuffer.allocate(length + 2);
+				slice.put((byte) 1).put((byte) 0); //Junk before the position, a start code must not be found there
+				int digits = combination;
+				for(int i = 0; i < length; i++, digits /= 3){
+					slice.put((byte) (digits % 3));
+				}
+				slice.flip().position(2);
+				final byte[] b = Arrays.copyOfRange(slice.array(), 2, length + 2);
+				final boolean expected = length >= 3 && b[0] == 0 && b[1] == 0 && b[2] == 1
+						|| length >= 4 && b[0] == 0 && b[1] == 0 && b[2] == 0 && b[3] == 1;
+				check(NalParser.startsWithStartCode(slice) == expected, "start code test wrong for " + Arrays.toString(b));
+				check(slice.position() == 2 && slice.limit() == length + 2, "start code test moved the buffer");
+				slices++;
+			}
+		}
+		System.out.printf(Locale.US, "resync: ok, %d of 256 NAL headers valid, start code test right for %d slices%n", valid, slices);
+	}
+
+	//The command channel against the simulator: every reply completes its own command however many threads send at
+	//once, round trip latency and pipelined throughput over loopback, and a move holds the next command back until the
+	//drone has answered it instead of timing out after a query's 250 ms
+	private static void channel() throws Exception {
+		check(CommandTiming.timeoutMs("battery?", 10) == 250 && CommandTiming.retries("battery?") == 2, "query timing");
+		check(CommandTiming.retries("command") == 2 && CommandTiming.retries("forward 50") == 0, "only probes are retried");
+		check(CommandTiming.timeoutMs("streamon", 10) == 250, "streamon is answered straight away");
+		check(CommandTiming.expectedMs("forward 500", 10) == 50000 && CommandTiming.timeoutMs("forward 500", 10) == 77000, "forward 500 at 10 cm/s");
+		check(CommandTiming.expectedMs("forward 500", 100) == 5000, "forward 500 at 100 cm/s");
+		check(CommandTiming.expectedMs("cw 90", 10) == 1500 && CommandTiming.expectedMs("takeoff", 10) == CommandTiming.TAKEOFF_MS, "cw and takeoff");
+		check(CommandTiming.expectedMs("go 30 40 0 50", 10) == 1000, "go travels the straight line at its own speed");
+		check(CommandTiming.expectedMs("curve 30 40 0 60 80 0 50", 10) == 2000, "curve travels both chords");
+
+		final Rig rig = new Rig(new NioTransport());
+		rig.simulator.setAutoLand(0).setReplyDelay("forward", 600);
+		final Tello tello = rig.start();
+		try{
+			tello.setKeepalive(0);
+			final LatencyHistogram latency = new LatencyHistogram();
+			for(int i = 0; i < 500; i++){
+				final long sent = System.nanoTime();
+				check("100".equals(tello.sendCommand("battery?").get()), "battery? answered wrong");
+				latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sent));
+			}
+
+			final String[] queries = {"battery?", "speed?", "time?", "height?", "wifi?"};
+			final String[] answers = {"100", "10.0", "0s", "0dm", "90"};
+			final int threads = 8;
+			final int perThread = 500;
+			final CountDownLatch done = new CountDownLatch(threads);
+			final AtomicReference<String> wrong = new AtomicReference<>();
+			final long started = System.nanoTime();
+			for(int t = 0; t < threads; t++){
+				final int seed = t;
+				new Thread(new Runnable(){
+					@Override
+					public void run(){
+						final Random random = new Random(seed);
+						final List<CompletableFuture<String>> futures = new ArrayList<>();
+						final List<Integer> asked = new ArrayList<>();
+						for(int i = 0; i < perThread; i++){
+							final int query = random.nextInt(queries.length);
+							asked.add(query);
+							futures.add(tello.sendCommand(queries[query]));
+						}
+						for(int i = 0; i < perThread; i++){
+							try{
+								final String reply = futures.get(i).get();
+								if(!answers[asked.get(i)].equals(reply)){
+									wrong.set(queries[asked.get(i)] + " got " + reply);
+								}
+							}catch(Exception e){
+								wrong.set(queries[asked.get(i)] + " failed: " + e);
+							}
+						}
+						done.countDown();
+					}
+				}).start();
+			}
+			done.await();
+			final double perSecond = threads * perThread * 1e9 / (System.nanoTime() - started);
+			check(wrong.get() == null, "reply went to the wrong command: " + wrong.get());
+
+			check("ok".equals(tello.sendCommand("takeoff").get()), "takeoff failed");
+			final long sentAt = System.nanoTime();
+			final CompletableFuture<String> move = tello.sendCommand("forward 50");
+			final CompletableFuture<String> after = tello.sendCommand("battery?");
+			check("ok".equals(move.get()), "forward 50 failed");
+			final long movedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAt);
+			check(!after.isDone() || movedMs >= 600, "battery? was answered while forward was still flying");
+			check("100".equals(after.get()), "battery? after the move answered wrong");
+			final long sent = tello.getCommandsSent();
+			tello.forward(50);
+			check("100".equals(tello.sendCommand("battery?").get()), "battery? after forward() answered wrong");
+			check(tello.getCommandsSent() == sent + 2, "forward() was sent again or battery? retried");
+			check(tello.getErrorChannel().getReported() == 0, tello.getErrorChannel().getReported() + " errors, none expected");
+			System.out.printf(Locale.US, "channel: ok, round trip p50 %d us p99 %d us, %.0f commands/s from %d threads, forward 50 answered after %d ms%n",
+					latency.getPercentile(50), latency.getPercentile(99), perSecond, threads, movedMs);
+		}finally{
+			rig.close();
+		}
+	}
+
+	//ConnectionSupervisor against scripted failures. Moves that outlast their timeout leave the link alone, queries
+	//that go unanswered and a drone that drops off the network and reboots are reported lost and reconnected, with the
+	//video turned back on
+	private static void outage() throws Exception {
+		final Rig rig = new Rig(new NioTransport());
+		rig.simulator.setAutoLand(0).setReplyDelay("forward", 1000).setVideo(rig.video(10));
+		final Tello tello = rig.start();
+		final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+		final ConnectionSupervisor supervisor = new ConnectionSupervisor(tello).setLostAfter(1000).setBackoff(100, 1000)
+				.setEventInterval(0).setListener(new ConnectionSupervisor.LinkListener(){
+					@Override
+					public void onLinkChanged(int status, int level, String detail){
+						events.add(detail);
+					}
+				}, CALLER);
+		try{
+			tello.setKeepalive(0);
+			tello.streamon();
+			supervisor.start();
+			check("ok".equals(tello.sendCommand("takeoff").get()), "takeoff failed");
+			Thread.sleep(300); //Past the first "wifi?", which would count as a reply in between
+			for(int i = 0; i < 3; i++){
+				final CompletableFuture<String> move = tello.sendCommand("forward 50", 200, 0); //Times out mid-move
+				try{
+					move.get();
+					check(false, "forward 50 didn't time out");
+				}catch(ExecutionException e){
+				}
+			}
+			Thread.sleep(1500); //The late replies come in
+			check(events.isEmpty() && supervisor.getReconnects() == 0, "moves that timed out counted as a lost link: " + events);
+
+			rig.simulator.setReplyDelay("battery?", 1000);
+			for(int i = 0; i < 3; i++){
+				check(tello.sendCommand("battery?", 100, 0).handle(IGNORE).get() == null, "battery? didn't time out");
+			}
+			waitFor(supervisor, ConnectionSupervisor.LOST, 1000);
+			Thread.sleep(200); //Events go out at the end of the tick
+			check(events.toString().contains("link lost, 3 queries timed out"), "lost for the wrong reason: " + events);
+			rig.simulator.setReplyDelay("battery?", 0);
+			waitFor(supervisor, ConnectionSupervisor.CONNECTED, 3000);
+			check(supervisor.getReconnects() == 1, "reconnects " + supervisor.getReconnects());
+
+			final long outageAt = System.nanoTime();
+			rig.simulator.scheduleOutage(0, 2000, true);
+			waitFor(supervisor, ConnectionSupervisor.LOST, 2000);
+			final long lostMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - outageAt);
+			waitFor(supervisor, ConnectionSupervisor.CONNECTED, 5000);
+			final long backMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - outageAt);
+			check(supervisor.getReconnects() == 2, "reconnects " + supervisor.getReconnects());
+			check(backMs >= 2000, "reconnected during the outage, after " + backMs + " ms");
+			Thread.sleep(500);
+			check(rig.simulator.isStreaming(), "streamon wasn't repeated after the reboot");
+			System.out.printf(Locale.US, "outage: ok, 3 timed out moves ignored, 3 timed out queries lost the link, 2 s reboot lost after %d ms and"
+					+ " reconnected after %d ms (outage %d ms), video back on%n", lostMs, backMs, supervisor.getLastOutageMs());
+		}finally{
+			supervisor.stop();
+			rig.close();
+		}
+	}
+
+	private static final BiFunction<String, Throwable, String> IGNORE = new BiFunction<String, Throwable, String>(){
+		@Override
+		public String apply(String reply, Throwable error){
+			return error == null ? reply : null;
+		}
+	};
+
+	private static void waitFor(ConnectionSupervisor supervisor, int status, long ms) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms);
+		while(supervisor.getStatus() != status){
+			check(System.nanoTime() < deadline, "link not " + status + " within " + ms + " ms, status " + supervisor.getStatus());
+			Thread.sleep(10);
+		}
+	}
+
+	//A flight logged while rc streams at 50 Hz: replayed, every reply comes with the command it answered and no rc
+	//packet is in the log
+	private static void flightlog() throws Exception {
+		final Rig rig = new Rig(new NioTransport());
+		rig.simulator.setAutoLand(0);
+		final Tello tello = rig.start();
+		final File file = File.createTempFile("selftest", ".tlog");
+		file.deleteOnExit();
+		final String[] queries = {"battery?", "speed?", "time?", "wifi?"};
+		final String[] answers = {"100", "10.0", "0s", "90"};
+		final int rounds = 50;
+		final long rcSent;
+		try{
+			tello.setKeepalive(0);
+			tello.startFlightLog(file);
+			tello.startRcStream(50);
+			for(int i = 0; i < rounds * queries.length; i++){
+				check(answers[i % answers.length].equals(tello.sendCommand(queries[i % queries.length]).get()), "query answered wrong");
+				Thread.sleep(5);
+			}
+			check(tello.getRcSendRate() > 40, "rc streamed at " + tello.getRcSendRate() + " Hz");
+			rcSent = tello.getCommandsSent() - rounds * queries.length - 1;
+			tello.stopRcStream();
+			tello.stopFlightLog();
+		}finally{
+			rig.close();
+		}
+		final List<String> pairs = new ArrayList<>();
+		try(FlightLog.Reader reader = new FlightLog.Reader(file)){
+			reader.replay(0, null, new Tello.TelloListener(){
+				@Override
+				public void onMessageReceived(String command, String reply){
+					pairs.add(command + "=" + reply);
+				}
+
+				@Override
+				public void onErrorReceived(String name, String message){
+				}
+			});
+		}
+		int answered = 0;
+		for(String pair : pairs){
+			check(!pair.startsWith("rc "), "rc packet in the flight log: " + pair);
+			for(int q = 0; q < queries.length; q++){
+				if(pair.startsWith(queries[q] + "=")){
+					check(pair.equals(queries[q] + "=" + answers[q]), "reply paired with the wrong command: " + pair);
+					answered++;
+				}
+			}
+		}
+		check(answered == rounds * queries.length, answered + " of " + rounds * queries.length + " queries paired with their reply");
+		System.out.printf(Locale.US, "flightlog: ok, %d replies paired with their command, %d rc packets left out, %d bytes%n",
+				pairs.size(), rcSent, file.length());
+	}
+
+	//Connects and disconnects a thousand times: both transports on their own, then a whole Tello stopped and started
+	//with the stream on and the decoder toggled on top. Each round trips a command, and no thread or file descriptor
+	//may be left behind
+	private static void cycle() throws Exception {
+		final int cycles = 1000;
+		final Rig rig = new Rig(new NioTransport());
+		rig.simulator.setAutoLand(0).setVideo(rig.video(10));
+		final Semaphore replies = new Semaphore(0);
+		final AtomicReference<Exception> failure = new AtomicReference<>();
+		final Transport.Receiver receiver = new Transport.Receiver(){
+			@Override
+			public void onPacket(int port, ByteBuffer packet){
+				if(port == Transport.COMMAND){
+					replies.release();
+				}
+			}
+
+			@Override
+			public void onError(int port, Exception e){
+				failure.set(e);
+			}
+		};
+		final StringBuilder sb = new StringBuilder("cycle: ok");
+		try{
+			rig.simulator.start();
+			final InetSocketAddress simulator = new InetSocketAddress("127.0.0.1", rig.simulator.getCommandPort());
+			for(Transport transport : new Transport[]{new NioTransport(), new BlockingTransport()}){
+				connect(transport, simulator, rig, receiver, replies); //Whatever the JDK sets up once is in the baseline
+				final int threads = Thread.activeCount();
+				final int fds = openFiles();
+				final long started = System.nanoTime();
+				for(int i = 0; i < cycles; i++){
+					connect(transport, simulator, rig, receiver, replies);
+				}
+				final long perCycleUs = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - started) / cycles;
+				check(failure.get() == null, transport.getClass().getSimpleName() + " reported " + failure.get());
+				check(Thread.activeCount() <= threads, transport.getClass().getSimpleName() + " left " + (Thread.activeCount() - threads) + " threads");
+				check(openFiles() <= fds, transport.getClass().getSimpleName() + " left " + (openFiles() - fds) + " file descriptors");
+				sb.append(String.format(Locale.US, ", %s %d us per cycle", transport.getClass().getSimpleName(), perCycleUs));
+			}
+
+			final Tello tello = rig.start();
+			tello.setKeepalive(0);
+			tello.startVideo();
+			check("ok".equals(tello.sendCommand("streamon").get()), "streamon failed");
+			tello.stop();
+			tello.start();
+			final int threads = Thread.activeCount();
+			final int fds = openFiles();
+			for(int i = 0; i < cycles; i++){
+				tello.stop();
+				tello.start();
+				check("100".equals(tello.sendCommand("battery?").get()), "battery? answered wrong after start()");
+				tello.stopVideo(); //Mid-frame, while the transport thread is still feeding the receiver
+				tello.startVideo();
+			}
+			final long frames = tello.getMetrics().getFramesReassembled();
+			Thread.sleep(500);
+			check(tello.getMetrics().getFramesReassembled() > frames, "no frames reassembled after the restarts");
+			check(Thread.activeCount() <= threads, "Tello left " + (Thread.activeCount() - threads) + " threads");
+			check(openFiles() <= fds, "Tello left " + (openFiles() - fds) + " file descriptors");
+			sb.append(String.format(Locale.US, ", Tello stopped and started %d times, %d threads and %d file descriptors before and after",
+					cycles, threads, fds));
+		}finally{
+			rig.close();
+		}
+		System.out.println(sb);
+	}
+
+	private static void connect(Transport transport, InetSocketAddress drone, Rig rig, Transport.Receiver receiver, Semaphore replies)
+			throws IOException, InterruptedException {
+		transport.open(drone, rig.statePort, rig.videoPort, receiver);
+		try{
+			transport.send(ByteBuffer.wrap("command".getBytes(StandardCharsets.US_ASCII)));
+			check(replies.tryAcquire(1, TimeUnit.SECONDS), transport.getClass().getSimpleName() + ": command went unanswered");
+		}finally{
+			transport.close();
+		}
+	}
+
+	//-1 where /proc isn't there
+	private static int openFiles(){
+		final String[] fds = new File("/proc/self/fd").list();
+		return fds == null ? -1 : fds.length;
+	}
+
+	//Both transports fed 1460 byte video slices over loopback as fast as they take them. The sender keeps at most a
+	//window of packets in flight, so the rate is what the receiving side manages rather than what the socket buffer
+	//drops. CPU time is the transport threads' own
+	private static void transport() throws Exception {
+		final int packets = 200000;
+		final int window = 256;
+		final ThreadMXBean cpu = ManagementFactory.getThreadMXBean();
+		final StringBuilder sb = new StringBuilder("transport: ok");
+		for(Transport transport : new Transport[]{new NioTransport(1 << 20), new BlockingTransport(1 << 20)}){
+			final String name = transport.getClass().getSimpleName();
+			final AtomicLong received = new AtomicLong();
+			final AtomicReference<Exception> failure = new AtomicReference<>();
+			final int videoPort = freePort();
+			transport.open(new InetSocketAddress("127.0.0.1", freePort()), freePort(), videoPort, new Transport.Receiver(){
+				@Override
+				public void onPacket(int port, ByteBuffer packet){
+					if(port == Transport.VIDEO && packet.remaining() == TelloSimulator.SLICE_SIZE){
+						received.incrementAndGet();
+					}
+				}
+
+				@Override
+				public void onError(int port, Exception e){
+					failure.set(e);
+				}
+			});
+			try(DatagramSocket sender = new DatagramSocket()){
+				final DatagramPacket slice = new DatagramPacket(new byte[TelloSimulator.SLICE_SIZE], TelloSimulator.SLICE_SIZE,
+						InetAddress.getLoopbackAddress(), videoPort);
+				final long cpuBefore = transportCpuNanos(cpu);
+				final long started = System.nanoTime();
+				long stalledSince = 0;
+				for(int sent = 0; sent < packets;){
+					if(sent - received.get() < window){
+						sender.send(slice);
+						sent++;
+						stalledSince = 0;
+					}else if(stalledSince == 0){
+						stalledSince = System.nanoTime();
+					}else{
+						check(System.nanoTime() - stalledSince < TimeUnit.SECONDS.toNanos(1), name + " lost packets, "
+								+ received.get() + " of " + sent + " arrived");
+					}
+				}
+				final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+				while(received.get() < packets && System.nanoTime() < deadline){
+					Thread.sleep(1);
+				}
+				final long elapsed = System.nanoTime() - started;
+				final long cpuNanos = transportCpuNanos(cpu) - cpuBefore;
+				check(failure.get() == null, name + " reported " + failure.get());
+				check(received.get() == packets, name + " received " + received.get() + " of " + packets + " packets");
+				sb.append(String.format(Locale.US, ", %s %.0f k packets/s (%.0f MB/s), %d ns CPU per packet", name,
+						received.get() * 1e6 / elapsed, received.get() * (double) TelloSimulator.SLICE_SIZE * 1e3 / elapsed,
+						cpuNanos / received.get()));
+			}finally{
+				transport.close();
+			}
+		}
+		System.out.println(sb);
+	}
+
+	private static long transportCpuNanos(ThreadMXBean cpu){
+		long total = 0;
+		for(Thread thread : Thread.getAllStackTraces().keySet()){
+			if(thread.getName().startsWith("Tello-transport")){
+				total += Math.max(0, cpu.getThreadCpuTime(thread.getId()));
+			}
+		}
+		return total;
+	}
+
+	//The simulator lands after 1.5 s without a command, like the drone does after 15 s. Hovering with the keepalive
+	//off it comes down, with a 500 ms keepalive it stays up for several times that long
+	private static void keepalive() throws Exception {
+		final long autoLandMs = 1500;
+		final Rig rig = new Rig(new NioTransport());
+		rig.simulator.setAutoLand(autoLandMs);
+		final Tello tello = rig.start();
+		try{
+			tello.setKeepalive(0);
+			check("ok".equals(tello.sendCommand("takeoff").get()), "takeoff failed");
+			Thread.sleep(autoLandMs + 500);
+			check(!rig.simulator.isFlying() && rig.simulator.getAutoLandings() == 1, "still flying without a keepalive");
+
+			tello.setKeepalive(500);
+			check("ok".equals(tello.sendCommand("takeoff").get()), "second takeoff failed");
+			final long sent = tello.getKeepalivesSent();
+			Thread.sleep(autoLandMs * 4);
+			final long keepalives = tello.getKeepalivesSent() - sent;
+			check(rig.simulator.isFlying() && rig.simulator.getAutoLandings() == 1, "landed with the keepalive on");
+			check(keepalives >= 8 && keepalives <= 14, keepalives + " keepalives in " + autoLandMs * 4 + " ms");
+			check(tello.getErrorChannel().getReported() == 0, tello.getErrorChannel().getReported() + " errors, none expected");
+			System.out.printf(Locale.US, "keepalive: ok, landed within %d ms without it, still up after %d ms with %d keepalives%n",
+					autoLandMs + 500, autoLandMs * 4, keepalives);
+		}finally{
+			rig.close();
+		}
+	}
+
+	//Encoded frames handed to listeners straight from the reassembler. Every access unit is one the simulator cut out
+	//of the file with splitFrames(), in order, and comes from the frame pool rather than being allocated. A 10 fps
+	//limit and a listener that takes 100 ms per frame both only skip frames of their own
+	private static void tap() throws Exception {
+		final Rig rig = new Rig(new NioTransport());
+		final File file = rig.video(10);
+		rig.simulator.setAutoLand(0).setVideo(file).setFps(30);
+		final Set<ByteBuffer> units = new HashSet<>();
+		for(byte[] frame : TelloSimulator.splitFrames(Files.readAllBytes(file.toPath()))){
+			units.add(ByteBuffer.wrap(frame));
+		}
+		final Tello tello = rig.start();
+		final AtomicReference<String> wrong = new AtomicReference<>();
+		final Set<Tello.VideoFrame> views = Collections.newSetFromMap(new IdentityHashMap<Tello.VideoFrame, Boolean>());
+		final AtomicLong last = new AtomicLong();
+		final AtomicLong keyFrames = new AtomicLong();
+		try{
+			tello.setKeepalive(0);
+			final Tello.FrameSubscription all = tello.addFrameListener(new Tello.FrameListener(){
+				@Override
+				public void onFrame(Tello.VideoFrame frame){
+					views.add(frame);
+					if(!units.contains(frame.getData())){
+						wrong.set("frame " + frame.getSequence() + " of " + frame.getData().remaining() + " bytes isn't one of the file's");
+					}
+					if(last.get() != 0 && frame.getSequence() != last.get() + 1){
+						wrong.set("frame " + frame.getSequence() + " after " + last.get());
+					}
+					last.set(frame.getSequence());
+					if(frame.isKeyFrame()){
+						keyFrames.incrementAndGet();
+					}
+				}
+			}, Tello.VideoFrame.ENCODED, 0, CALLER);
+			final Tello.FrameSubscription limited = tello.addFrameListener(new Tello.FrameListener(){
+				@Override
+				public void onFrame(Tello.VideoFrame frame){
+				}
+			}, Tello.VideoFrame.ENCODED, 10);
+			final Tello.FrameSubscription slow = tello.addFrameListener(new Tello.FrameListener(){
+				@Override
+				public void onFrame(Tello.VideoFrame frame){
+					try{
+						Thread.sleep(100);
+					}catch(InterruptedException e){
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, Tello.VideoFrame.ENCODED, 0);
+			tello.startVideo(); //Off the device the decoder fails to start, the receiver runs all the same
+			check("ok".equals(tello.sendCommand("streamon").get()), "streamon failed");
+			final long seconds = 4;
+			Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+			all.cancel();
+			limited.cancel();
+			slow.cancel();
+			final long delivered = all.getDelivered();
+			Thread.sleep(200);
+			check(wrong.get() == null, wrong.get());
+			check(all.getDelivered() == delivered, "frames delivered after cancel()");
+			check(delivered >= seconds * 30 * 8 / 10 && all.getSkipped() == 0, delivered + " frames delivered, " + all.getSkipped() + " skipped");
+			check(keyFrames.get() >= delivered / 10 - 1, keyFrames.get() + " key frames in " + delivered);
+			check(limited.getDelivered() >= seconds * 10 * 7 / 10 && limited.getDelivered() <= seconds * 10 + 1,
+					"10 fps listener got " + limited.getDelivered() + " frames in " + seconds + " s");
+			check(slow.getDelivered() >= seconds * 10 * 7 / 10 && slow.getDelivered() <= seconds * 10 + 1,
+					"100 ms listener got " + slow.getDelivered() + " frames in " + seconds + " s");
+			check(limited.getDelivered() + limited.getSkipped() == delivered && slow.getDelivered() + slow.getSkipped() == delivered,
+					"every frame is delivered or skipped");
+			check(views.size() <= 20, views.size() + " frames allocated for " + delivered + " delivered");
+			System.out.printf(Locale.US, "tap: ok, %d frames match the file in order (%d key frames) from %d pooled frames, 10 fps limit %d"
+					+ " delivered %d skipped, 100 ms listener %d delivered %d skipped%n", delivered, keyFrames.get(), views.size(),
+					limited.getDelivered(), limited.getSkipped(), slow.getDelivered(), slow.getSkipped());
+		}finally{
+			rig.close();
+		}
+	}
+
+	//Missions against the simulator with a reply delay per verb. Step timeouts follow distance over the speed in force,
+	//so a move that takes longer than a query's 250 ms still completes, and one that overruns its plan fails. An error
+	//reply fails the mission at its step, and abort() ends it at once without the queue waiting for the move's timeout
+	private static void mission() throws Exception {
+		final Mission planned = Mission.parse("takeoff # climbs to 80 cm\nforward 100; speed 50\nforward 100\ncw 90; battery?\nland");
+		final long[] expected = {CommandTiming.TAKEOFF_MS, 10000, 0, 2000, 1500, 0, CommandTiming.LAND_MS};
+		check(planned.getSteps().size() == expected.length, planned.getSteps().size() + " steps parsed");
+		for(int i = 0; i < expected.length; i++){
+			check(planned.getSteps().get(i).getExpectedMs() == expected[i], planned.getSteps().get(i) + " planned for "
+					+ planned.getSteps().get(i).getExpectedMs() + " ms");
+		}
+
+		final Rig rig = new Rig(new NioTransport());
+		final String[] verbs = {"takeoff", "forward", "speed", "cw", "battery?", "land"};
+		final long[] delays = {300, 400, 20, 600, 20, 300};
+		rig.simulator.setAutoLand(0);
+		for(int i = 0; i < verbs.length; i++){
+			rig.simulator.setReplyDelay(verbs[i], delays[i]);
+		}
+		final Tello tello = rig.start();
+		try{
+			tello.setKeepalive(0);
+			final long sent = tello.getCommandsSent();
+			final List<Mission.Step> steps = planned.run(tello).get(10, TimeUnit.SECONDS);
+			check(tello.getCommandsSent() - sent == steps.size(), "steps were sent again: " + (tello.getCommandsSent() - sent) + " commands");
+			for(Mission.Step step : steps){
+				final long delay = delays[Arrays.asList(verbs).indexOf(step.getCommand().split(" ")[0])];
+				check(step.getLatencyMs() >= delay && step.getLatencyMs() < delay + 200, step + " answered after " + step.getLatencyMs() + " ms");
+			}
+			check("100".equals(steps.get(5).getReply()) && "ok".equals(steps.get(6).getReply()), "replies " + steps.get(5).getReply());
+			check(steps.get(4).getState().yaw == 90, "state after cw 90 has yaw " + steps.get(4).getState().yaw);
+			final String report = planned.report();
+			check(report.split("\n").length == steps.size() && report.contains("forward 100") && report.contains("planned 2000 ms"), report);
+
+			final Mission overrun = new Mission(Arrays.asList("takeoff", "cw 30")).setTimeoutMargin(0); //cw 30 times out after 750 ms
+			rig.simulator.setReplyDelay("cw", 1000);
+			try{
+				overrun.run(tello).get(10, TimeUnit.SECONDS);
+				check(false, "cw 30 answered after 1000 ms didn't time out");
+			}catch(ExecutionException e){
+				check(e.getCause() instanceof Mission.MissionException && ((Mission.MissionException) e.getCause()).getStep() == 1, "failed with " + e);
+			}
+
+			Thread.sleep(500); //cw's late reply, it would answer whatever is sent next
+			check("ok".equals(tello.sendCommand("land").get()), "land failed");
+			final Mission grounded = new Mission(Arrays.asList("forward 50", "land"));
+			try{
+				grounded.run(tello).get(10, TimeUnit.SECONDS);
+				check(false, "forward 50 on the ground succeeded");
+			}catch(ExecutionException e){
+				check(e.getCause().getMessage().contains("error Not in flight") && grounded.getSteps().get(1).getReply() == null, "failed with " + e);
+			}
+
+			rig.simulator.setReplyDelay("forward", 5000);
+			final Mission aborted = new Mission(Arrays.asList("takeoff", "forward 500", "land"));
+			final CompletableFuture<List<Mission.Step>> result = aborted.run(tello);
+			while(aborted.getCurrentStep() < 1){
+				Thread.sleep(5);
+			}
+			Thread.sleep(100);
+			final long abortedAt = System.nanoTime();
+			aborted.abort();
+			try{
+				result.get(100, TimeUnit.MILLISECONDS);
+				check(false, "aborted mission completed");
+			}catch(CancellationException | ExecutionException e){
+			}
+			check("100".equals(tello.sendCommand("battery?").get()), "battery? after abort answered wrong");
+			final long afterAbortMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - abortedAt);
+			check(afterAbortMs < 1000, "battery? waited " + afterAbortMs + " ms behind the aborted move");
+			check(aborted.getSteps().get(2).getReply() == null, "land was sent after abort()");
+			System.out.printf(Locale.US, "mission: ok, 7 steps planned and answered on time, overrun and error reply fail at their step,"
+					+ " abort answered the next command after %d ms%n%s", afterAbortMs, report);
+		}finally{
+			rig.close();
+		}
+	}
+
+	//rc streamed at 50 Hz while a 400 ms task holds up the Tello timer every 100 ms, as a supervisor restart would.
+	//The stream runs on a thread of its own, so the rate and the jitter don't notice. The drone gets every packet with
+	//the latest stick values and a centred one after stopRcStream()
+	private static void rc() throws Exception {
+		final int hz = 50;
+		final long ms = 2000;
+		final Rig rig = new Rig(new NioTransport());
+		rig.simulator.setAutoLand(0);
+		final Tello tello = rig.start();
+		final ScheduledFuture<?> blocker = tello.schedule(new Runnable(){
+			@Override
+			public void run(){
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(400));
+			}
+		}, 100);
+		try{
+			tello.setKeepalive(0);
+			check("ok".equals(tello.sendCommand("takeoff").get()), "takeoff failed");
+			final long before = rig.simulator.getRcPackets();
+			tello.startRcStream(hz);
+			tello.rc(10, -20, 30, -40);
+			Thread.sleep(ms / 2);
+			check("rc 10 -20 30 -40".equals(rig.simulator.getLastRc()), "drone got " + rig.simulator.getLastRc());
+			tello.rc(-100, 100, 0, 5);
+			Thread.sleep(ms / 2);
+			check("rc -100 100 0 5".equals(rig.simulator.getLastRc()), "drone got " + rig.simulator.getLastRc());
+			final double rate = tello.getRcSendRate();
+			tello.stopRcStream();
+			Thread.sleep(100);
+			final long received = rig.simulator.getRcPackets() - before;
+			check("rc 0 0 0 0".equals(rig.simulator.getLastRc()), "sticks not centred after the stream: " + rig.simulator.getLastRc());
+			Thread.sleep(200);
+			check(rig.simulator.getRcPackets() - before == received, "rc still streaming after stopRcStream()");
+			final LatencyHistogram jitter = tello.getRcJitter();
+			check(rate >= hz * 0.95 && rate <= hz * 1.05, "rc sent at " + rate + " Hz");
+			check(received >= hz * ms / 1000 * 95 / 100, received + " rc packets reached the drone in " + ms + " ms");
+			check(jitter.getPercentile(50) < 2000 && jitter.getPercentile(99) < 2 * 1000000 / hz, "jitter p50 " + jitter.getPercentile(50)
+					+ " us p99 " + jitter.getPercentile(99) + " us");
+			check(tello.getErrorChannel().getReported() == 0, tello.getErrorChannel().getReported() + " errors, none expected");
+			System.out.printf(Locale.US, "rc: ok, %.1f Hz with the timer blocked, %d packets reached the drone, jitter p50 %d us p99 %d us max %d us%n",
+					rate, received, jitter.getPercentile(50), jitter.getPercentile(99), jitter.getMax());
+		}finally{
+			blocker.cancel(false);
+			rig.close();
+		}
+	}
+
+	//State packets sent straight to Tello's state port. A flight recorded into a FlightLog and replayed from its
+	//Reader arrives field for field. A 5 Hz subscription gets no more than 5 updates a second out of a 50 Hz burst,
+	//and a state that comes in inside the interval is delivered when it ends rather than dropped
+	private static void telemetry() throws Exception {
+		final int statePort = freePort();
+		final Tello tello = new Tello(null, "127.0.0.1", freePort(), statePort, freePort(), new NioTransport(), CALLER); //No drone
+		final File file = File.createTempFile("selftest", ".tlog");
+		file.deleteOnExit();
+		try(DatagramSocket drone = new DatagramSocket()){
+			tello.setKeepalive(0);
+			final InetSocketAddress to = new InetSocketAddress("127.0.0.1", statePort);
+			final Random random = new Random(9);
+			final int recorded = 300;
+			try(FlightLog log = new FlightLog(file)){
+				final TelloState state = new TelloState();
+				for(int i = 0; i < recorded; i++){
+					state.h = i;
+					state.yaw = i * 7 % 360 - 180;
+					state.bat = 100 - i / 10;
+					state.agx = random.nextInt(20000) / 100f - 100;
+					state.baro = 190 + i / 100f;
+					state.time = i / 10;
+					log.state(state, TimeUnit.MILLISECONDS.toNanos(100) * (i + 1)); //10 Hz like the drone
+				}
+			}
+			final List<TelloState> replayed = Collections.synchronizedList(new ArrayList<TelloState>());
+			final Tello.TelemetrySubscription every = tello.subscribe(new Tello.TelemetryListener(){
+				@Override
+				public void onTelemetry(TelloState state){
+					final TelloState copy = new TelloState();
+					for(int field = 0; field < TelloState.FIELDS; field++){
+						copy.setBits(field, state.bits(field));
+					}
+					replayed.add(copy);
+				}
+			}, 0, CALLER);
+			final List<TelloState> sent = new ArrayList<>();
+			try(FlightLog.Reader reader = new FlightLog.Reader(file)){
+				int type;
+				while((type = reader.next()) != FlightLog.END){
+					if(type == FlightLog.STATE || type == FlightLog.SYNC){
+						final TelloState state = new TelloState();
+						reader.getState(state);
+						sent.add(state);
+						send(drone, to, packet(state));
+						Thread.sleep(2); //50 times faster than it was flown
+					}
+				}
+			}
+			Thread.sleep(100);
+			every.cancel();
+			check(sent.size() == recorded && replayed.size() == recorded, replayed.size() + " of " + sent.size() + " replayed states arrived");
+			for(int i = 0; i < recorded; i++){
+				for(int field = 0; field < TelloState.FIELDS; field++){
+					check(replayed.get(i).bits(field) == sent.get(i).bits(field), "state " + i + " " + TelloState.NAMES[field] + " arrived as "
+							+ replayed.get(i).format(field) + ", logged " + sent.get(i).format(field));
+				}
+			}
+
+			final List<Long> deliveredAt = Collections.synchronizedList(new ArrayList<Long>());
+			final AtomicLong lastHeight = new AtomicLong(-1);
+			final Tello.TelemetrySubscription limited = tello.subscribe(new Tello.TelemetryListener(){
+				@Override
+				public void onTelemetry(TelloState state){
+					deliveredAt.add(System.nanoTime());
+					lastHeight.set(state.h);
+				}
+			}, 5, CALLER);
+			final TelloState state = new TelloState();
+			final long burstMs = 2000;
+			final long started = System.nanoTime();
+			for(int i = 0; System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos(burstMs); i++){
+				state.h = i;
+				send(drone, to, packet(state));
+				Thread.sleep(20);
+			}
+			Thread.sleep(300);
+			final int burst = deliveredAt.size();
+			long minGapMs = Long.MAX_VALUE;
+			for(int i = 1; i < burst; i++){
+				minGapMs = Math.min(minGapMs, TimeUnit.NANOSECONDS.toMillis(deliveredAt.get(i) - deliveredAt.get(i - 1)));
+			}
+			check(burst >= burstMs / 200 - 1 && burst <= burstMs / 200 + 2, burst + " updates at 5 Hz in " + burstMs + " ms");
+			check(minGapMs >= 190, "updates " + minGapMs + " ms apart at 5 Hz");
+			check(lastHeight.get() == state.h, "last update h " + lastHeight.get() + ", the drone's last state h " + state.h);
+
+			state.h = 1000; //Opens an interval
+			send(drone, to, packet(state));
+			Thread.sleep(20);
+			state.h = 1001; //Inside it, then the drone goes quiet
+			send(drone, to, packet(state));
+			Thread.sleep(400);
+			limited.cancel();
+			check(lastHeight.get() == 1001 && deliveredAt.size() == burst + 2, "after the drone went quiet the listener has h "
+					+ lastHeight.get() + " from " + (deliveredAt.size() - burst) + " updates");
+			System.out.printf(Locale.US, "telemetry: ok, %d logged states replayed field for field, 5 Hz subscription got %d updates of a"
+					+ " %d ms burst at least %d ms apart, the last state held back by the interval delivered at its end%n",
+					recorded, burst, burstMs, minGapMs);
+		}finally{
+			tello.close();
+		}
+	}
+
+	//A state packet the way the drone formats it
+	private static byte[] packet(TelloState state){
+		final StringBuilder sb = new StringBuilder();
+		for(int field = 0; field < TelloState.FIELDS; field++){
+			sb.append(TelloState.NAMES[field]).append(':').append(state.format(field)).append(';');
+		}
+		return sb.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static void send(DatagramSocket socket, InetSocketAddress to, byte[] data) throws IOException {
+		socket.send(new DatagramPacket(data, data.length, to));
+	}
+
+	//Four simulators behind one TelloSwarm, timed the way Tello times a single drone. A forward 50 that takes 3 s is
+	//waited for at the default 10 cm/s, and times out once the drone has confirmed 100 cm/s and should be done in 0.5 s
+	private static void swarm() throws Exception {
+		final int count = 4;
+		final int statePort = freePort();
+		final List<TelloSimulator> simulators = new ArrayList<>();
+		final TelloSwarm swarm = new TelloSwarm(0, statePort);
+		try{
+			for(int i = 0; i < count; i++){
+				final TelloSimulator simulator = new TelloSimulator("127.0.0.1", 0, statePort, 0);
+				simulator.setAutoLand(0).setReplyDelay("forward", 3000).start();
+				simulators.add(simulator);
+				swarm.add(new InetSocketAddress("127.0.0.1", simulator.getCommandPort()));
+			}
+			swarm.start();
+			swarm.broadcastAll("command").get(5, TimeUnit.SECONDS);
+			swarm.broadcastAll("takeoff").get(5, TimeUnit.SECONDS);
+			for(CompletableFuture<String> move : swarm.broadcast("forward 50")){
+				check("ok".equals(move.get(10, TimeUnit.SECONDS)), "forward 50 at 10 cm/s failed");
+			}
+			check("ok".equals(swarm.getDrones().get(0).sendCommand("speed 100").get(1, TimeUnit.SECONDS)), "speed 100 failed");
+			final long sentAt = System.nanoTime();
+			final CompletableFuture<String> fast = swarm.getDrones().get(0).sendCommand("forward 50");
+			final CompletableFuture<String> slow = swarm.getDrones().get(1).sendCommand("forward 50");
+			try{
+				fast.get(10, TimeUnit.SECONDS);
+				check(false, "forward 50 at 100 cm/s answered after 3 s didn't time out");
+			}catch(ExecutionException e){
+				check(e.getCause() instanceof TimeoutException, "forward 50 failed with " + e.getCause());
+			}
+			final long timedOutMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAt);
+			check(timedOutMs >= CommandTiming.timeoutMs("forward 50", 100) && timedOutMs < 3000, "timed out after " + timedOutMs + " ms");
+			check("ok".equals(slow.get(10, TimeUnit.SECONDS)), "forward 50 on the drone still at 10 cm/s failed");
+			for(CompletableFuture<String> battery : swarm.broadcast("battery?")){
+				check("100".equals(battery.get(1, TimeUnit.SECONDS)), "battery? answered wrong");
+			}
+			System.out.printf(Locale.US, "swarm: ok, %d drones, 3 s move waited for at 10 cm/s and timed out after %d ms at 100 cm/s%n",
+					count, timedOutMs);
+		}finally{
+			swarm.close();
+			for(TelloSimulator simulator : simulators){
+				simulator.close();
+			}
+		}
+	}
+
+	//A Tello and a TelloSimulator talking over loopback on free ports. Set the simulator up before start()
+	private static class Rig implements AutoCloseable {
+		final int statePort = freePort();
+		final int videoPort = freePort();
+		final TelloSimulator simulator;
+		final Transport transport;
+		Tello tello;
+
+		Rig(Transport transport) throws IOException {
+			this.transport = transport;
+			simulator = new TelloSimulator("127.0.0.1", 0, statePort, videoPort);
+		}
+
+		//A short stream in the drone's format, SPS and PPS before every IDR frame
+		File video(int gops) throws IOException {
+			final Random random = new Random(gops);
+			final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+			for(int gop = 0; gop < gops; gop++){
+				stream.write(SPS);
+				stream.write(PPS);
+				for(int i = 0; i < 10; i++){
+					stream.write(nalUnit(random, i == 0 ? 5 : 1, i == 0 ? 9000 : 1000 + random.nextInt(4000)));
+				}
+			}
+			final File file = File.createTempFile("selftest", ".h264");
+			file.deleteOnExit();
+			Files.write(file.toPath(), stream.toByteArray());
+			return file;
+		}
+
+		Tello start() throws IOException {
+			simulator.start();
+			tello = new Tello(null, "127.0.0.1", simulator.getCommandPort(), statePort, videoPort, transport, CALLER);
+			check(tello.isRunning(), "Tello didn't start");
+			return tello;
+		}
+
+		@Override
+		public void close(){
+			if(tello != null){
+				tello.close();
+			}
+			simulator.close();
+		}
+	}
+
+	//960x720 baseline, what the drone sends
+	private static final byte[] SPS = {0, 0, 0, 1, 103, 66, 0, 42, (byte) 149, (byte) 168, 30, 0, (byte) 137, (byte) 249, 102, (byte) 224, 32, 32, 32, 64};
+	private static final byte[] PPS = {0, 0, 0, 1, 104, (byte) 206, 60, (byte) 128};
+
+	private static int freePort(){
+		try(DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())){
+			return socket.getLocalPort();
+		}catch(IOException e){
+			throw new IllegalStateException(e);
+		}
+	}
+}
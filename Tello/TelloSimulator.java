@@ -0,0 +1,582 @@
+/*
+*Copyright (C) 2021 Harshith Doddipalli
+*
+*Licensed under the Apache License, Version 2.0 (the "License");
+*you may not use this file except in compliance with the License.
+*You may obtain a copy of the License at
+*
+*	http://www.apache.org/licenses/LICENSE-2.0
+*
+*Unless required by applicable law or agreed to in writing, software
+*distributed under the License is distributed on an "AS IS" BASIS,
+*WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*See the License for the specific language governing permissions and
+*limitations under the License.
+*/
+
+package com.hdr.tello.v2;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+	A headless stand-in for the drone. It answers SDK commands on the command port, streams state strings
+	at 10 Hz and replays an H.264 file as 1460 byte slices at 30 fps, so Tello can be driven on loopback.
+	Pure Java, no Android classes.
+*/
+
+public class TelloSimulator implements Closeable {
+	public static final int SLICE_SIZE = 1460;
+
+	private final InetAddress bindAddress;
+	private final int commandPort;
+	private final int clientStatePort;
+	private final int clientVideoPort;
+
+	private long defaultDelayMs = 0;
+	private HashMap<String, Long> delays = new HashMap<>();
+	private volatile int fps = 30;
+	private double loss;
+	private double reorder;
+	private int jitterMs;
+	private ArrayList<byte[]> frames = new ArrayList<>();
+
+	private DatagramSocket commandSocket;
+	private DatagramSocket streamSocket;
+	private ScheduledExecutorService replies;
+	private Thread commandThread;
+	private Thread stateThread;
+	private Thread videoThread;
+	private volatile boolean running;
+	private volatile InetAddress client;
+	private volatile boolean streaming;
+	private Random random = new Random();
+
+	//Drone model, touched by the command thread and by the auto-land check on the state thread
+	private volatile long autoLandNanos = TimeUnit.SECONDS.toNanos(15);
+	private volatile long lastCommandAt = System.nanoTime();
+	private final AtomicInteger autoLandings = new AtomicInteger();
+	private volatile boolean flying;
+	private volatile int height;
+	private volatile int yaw;
+	private volatile int speed = 10;
+	private volatile int battery = 100;
+	private volatile long takeoffAt;
+	private volatile boolean offline;
+	private volatile int wifiSnr = 90;
+	private volatile int bitrate;             //setbitrate, 0 is auto
+	private volatile String fpsSetting = "high"; //setfps
+	private final AtomicLong rcPackets = new AtomicLong();
+	private volatile String lastRc;
+
+	public TelloSimulator() throws IOException {
+		this("127.0.0.1", Tello.DEFAULT_COMMAND_PORT, Tello.DEFAULT_STATE_PORT, Tello.DEFAULT_VIDEO_PORT);
+	}
+
+	//commandPort is bound on bindAddress. State and video go to the ports of whoever sent the last command
+	public TelloSimulator(String bindAddress, int commandPort, int clientStatePort, int clientVideoPort) throws IOException {
+		this.bindAddress = InetAddress.getByName(bindAddress);
+		this.commandPort = commandPort;
+		this.clientStatePort = clientStatePort;
+		this.clientVideoPort = clientVideoPort;
+	}
+
+	//Delay before every reply unless a verb has its own
+	public TelloSimulator setReplyDelay(long ms){
+		this.defaultDelayMs = ms;
+		return this;
+	}
+
+	public TelloSimulator setReplyDelay(String verb, long ms){
+		delays.put(verb, ms);
+		return this;
+	}
+
+	//Annex-B elementary stream that is replayed in a loop after streamon
+	public TelloSimulator setVideo(File h264) throws IOException {
+		frames = splitFrames(Files.readAllBytes(h264.toPath()));
+		return this;
+	}
+
+	public TelloSimulator setFps(int fps){
+		this.fps = Math.max(1, fps);
+		return this;
+	}
+
+	//Like the drone, lands by itself when no command arrived for this long while flying. 0 never lands
+	public TelloSimulator setAutoLand(long ms){
+		this.autoLandNanos = TimeUnit.MILLISECONDS.toNanos(ms);
+		return this;
+	}
+
+	//How often the drone landed because it heard nothing
+	public int getAutoLandings(){
+		return autoLandings.get();
+	}
+
+	public boolean isFlying(){
+		return flying;
+	}
+
+	//rc packets received so far, they are never answered
+	public long getRcPackets(){
+		return rcPackets.get();
+	}
+
+	//The last rc packet as it arrived, null before the first
+	public String getLastRc(){
+		return lastRc;
+	}
+
+	//Out of range: commands are ignored and no state or video goes out until it is turned off again
+	public TelloSimulator setOffline(boolean offline){
+		this.offline = offline;
+		return this;
+	}
+
+	public boolean isOffline(){
+		return offline;
+	}
+
+	//A scripted outage, inMs after this call and lasting forMs. With reboot the drone comes back the way it does
+	//after a power cycle: landed, video off and the video settings back to their defaults. Needs start() first
+	public TelloSimulator scheduleOutage(long inMs, long forMs, final boolean reboot){
+		replies.schedule(new Runnable(){
+			@Override
+			public void run(){
+				offline = true;
+			}
+		}, inMs, TimeUnit.MILLISECONDS);
+		replies.schedule(new Runnable(){
+			@Override
+			public void run(){
+				if(reboot){
+					flying = false;
+					height = 0;
+					streaming = false;
+					bitrate = 0;
+					fpsSetting = "high";
+				}
+				offline = false;
+			}
+		}, inMs + forMs, TimeUnit.MILLISECONDS);
+		return this;
+	}
+
+	//What "wifi?" answers
+	public TelloSimulator setWifiSnr(int snr){
+		this.wifiSnr = snr;
+		return this;
+	}
+
+	//Last setbitrate, 0 for auto
+	public int getBitrate(){
+		return bitrate;
+	}
+
+	//Last setfps: high, middle or low
+	public String getFpsSetting(){
+		return fpsSetting;
+	}
+
+	public boolean isStreaming(){
+		return streaming;
+	}
+
+	//Probability (0 - 1) that a video slice is not sent
+	public TelloSimulator setLoss(double loss){
+		this.loss = loss;
+		return this;
+	}
+
+	//Probability (0 - 1) that a video slice swaps places with the next one
+	public TelloSimulator setReorder(double reorder){
+		this.reorder = reorder;
+		return this;
+	}
+
+	//Random extra delay of up to this many milliseconds before every frame
+	public TelloSimulator setJitter(int ms){
+		this.jitterMs = ms;
+		return this;
+	}
+
+	public synchronized void start() throws SocketException {
+		if(running){
+			return;
+		}
+		commandSocket = new DatagramSocket(null);
+		commandSocket.setReuseAddress(true);
+		commandSocket.bind(new InetSocketAddress(bindAddress, commandPort));
+		streamSocket = new DatagramSocket(0, bindAddress);
+		replies = Executors.newSingleThreadScheduledExecutor();
+		running = true;
+
+		commandThread = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				receiveCommands();
+			}
+		}, "TelloSimulator-command");
+		stateThread = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				sendState();
+			}
+		}, "TelloSimulator-state");
+		videoThread = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				sendVideo();
+			}
+		}, "TelloSimulator-video");
+		commandThread.start();
+		stateThread.start();
+		videoThread.start();
+	}
+
+	@Override
+	public synchronized void close(){
+		if(!running){
+			return;
+		}
+		running = false;
+		commandSocket.close();
+		streamSocket.close();
+		replies.shutdownNow();
+		stateThread.interrupt();
+		videoThread.interrupt();
+		try{
+			commandThread.join();
+			stateThread.join();
+			videoThread.join();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public int getCommandPort(){
+		return commandSocket == null ? commandPort : commandSocket.getLocalPort();
+	}
+
+	private void receiveCommands(){
+		byte[] buf = new byte[256];
+		DatagramPacket packet = new DatagramPacket(buf, buf.length);
+		while(running){
+			try{
+				packet.setLength(buf.length);
+				commandSocket.receive(packet);
+			}catch(IOException e){
+				continue; //Closed
+			}
+			if(offline){
+				continue;
+			}
+			client = packet.getAddress();
+			lastCommandAt = System.nanoTime();
+			final SocketAddress from = packet.getSocketAddress();
+			final String command = new String(buf, 0, packet.getLength(), StandardCharsets.US_ASCII).trim();
+			final String reply = handle(command);
+			if(reply == null){
+				continue; //rc isn't answered
+			}
+			final byte[] out = reply.getBytes(StandardCharsets.US_ASCII);
+			final long delay = delayFor(command);
+			Runnable send = new Runnable(){
+				@Override
+				public void run(){
+					try{
+						commandSocket.send(new DatagramPacket(out, out.length, from));
+					}catch(IOException e){
+					}
+				}
+			};
+			if(delay <= 0){
+				send.run();
+			}else{
+				replies.schedule(send, delay, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	private long delayFor(String command){
+		final int space = command.indexOf(' ');
+		final Long delay = delays.get(space < 0 ? command : command.substring(0, space));
+		return delay == null ? defaultDelayMs : delay;
+	}
+
+	//Returns the reply for a command, or null for commands the SDK doesn't answer
+	String handle(String command){
+		final String[] parts = command.split(" ");
+		final String verb = parts[0];
+		final int arg = parts.length > 1 ? parseInt(parts[1]) : 0;
+		switch(verb){
+			case "command":
+			case "stop":
+			case "emergency":
+				return "ok";
+			case "streamon":
+				streaming = true;
+				return "ok";
+			case "streamoff":
+				streaming = false;
+				return "ok";
+			case "takeoff":
+				flying = true;
+				height = 80;
+				takeoffAt = System.nanoTime();
+				return "ok";
+			case "land":
+				flying = false;
+				height = 0;
+				return "ok";
+			case "up":
+				height += arg;
+				return flying ? "ok" : "error Not in flight";
+			case "down":
+				height = Math.max(0, height - arg);
+				return flying ? "ok" : "error Not in flight";
+			case "cw":
+				yaw = (yaw + arg) % 360;
+				return flying ? "ok" : "error Not in flight";
+			case "ccw":
+				yaw = (yaw - arg) % 360;
+				return flying ? "ok" : "error Not in flight";
+			case "left":
+			case "right":
+			case "forward":
+			case "back":
+			case "flip":
+			case "go":
+			case "curve":
+				return flying ? "ok" : "error Not in flight";
+			case "speed":
+				speed = arg;
+				return "ok";
+			case "rc":
+				rcPackets.incrementAndGet();
+				lastRc = command;
+				return null;
+			case "speed?":
+				return speed + ".0";
+			case "battery?":
+				return String.valueOf(battery);
+			case "time?":
+				return flightTime() + "s";
+			case "height?":
+				return height / 10 + "dm";
+			case "temp?":
+				return "83~85C";
+			case "attitude?":
+				return "pitch:0;roll:0;yaw:" + yaw + ";";
+			case "baro?":
+				return "193.57";
+			case "acceleration?":
+				return "agx:-1.00;agy:-2.00;agz:-999.00;";
+			case "tof?":
+				return (flying ? height * 10 : 100) + "mm";
+			case "wifi?":
+				return String.valueOf(wifiSnr);
+			case "setbitrate":
+				if(parts.length < 2 || arg < 0 || arg > 5){
+					return "error";
+				}
+				bitrate = arg;
+				return "ok";
+			case "setfps":
+				if(parts.length < 2 || !(parts[1].equals("high") || parts[1].equals("middle") || parts[1].equals("low"))){
+					return "error";
+				}
+				fpsSetting = parts[1];
+				return "ok";
+			default:
+				return "error";
+		}
+	}
+
+	String stateString(){
+		return String.format(Locale.US, "pitch:0;roll:0;yaw:%d;vgx:0;vgy:0;vgz:0;templ:83;temph:85;tof:%d;h:%d;bat:%d;baro:193.57;time:%d;agx:-1.00;agy:-2.00;agz:-999.00;\r\n",
+				yaw, flying ? height : 10, height, battery, flightTime());
+	}
+
+	private int flightTime(){
+		return flying ? (int) TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - takeoffAt) : 0;
+	}
+
+	private void sendState(){
+		final long period = TimeUnit.MILLISECONDS.toNanos(100);
+		long next = System.nanoTime();
+		while(running){
+			final long idle = autoLandNanos;
+			if(flying && idle > 0 && System.nanoTime() - lastCommandAt > idle){
+				flying = false;
+				height = 0;
+				autoLandings.incrementAndGet();
+			}
+			final InetAddress to = client;
+			if(to != null && !offline){
+				final byte[] out = stateString().getBytes(StandardCharsets.US_ASCII);
+				try{
+					//Like the drone, state leaves from the SDK port. That is what tells drones in a swarm apart
+					commandSocket.send(new DatagramPacket(out, out.length, to, clientStatePort));
+				}catch(IOException e){
+				}
+			}
+			next += period;
+			if(!sleepUntil(next)){
+				return;
+			}
+		}
+	}
+
+	private void sendVideo(){
+		long next = System.nanoTime();
+		int index = 0;
+		while(running){
+			//setfps middle and low play the stream at a half and a sixth of the configured rate
+			final int divisor = fpsSetting.equals("low") ? 6 : fpsSetting.equals("middle") ? 2 : 1;
+			final long period = TimeUnit.SECONDS.toNanos(1) * divisor / fps;
+			final InetAddress to = client;
+			if(streaming && !offline && to != null && !frames.isEmpty()){
+				if(jitterMs > 0 && !sleepUntil(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(random.nextInt(jitterMs + 1)))){
+					return;
+				}
+				sendFrame(frames.get(index), to);
+				index = (index + 1) % frames.size();
+			}
+			next += period;
+			if(!sleepUntil(next)){
+				return;
+			}
+		}
+	}
+
+	private void sendFrame(byte[] frame, InetAddress to){
+		DatagramPacket held = null;
+		for(int offset = 0; offset < frame.length; offset += SLICE_SIZE){
+			final int length = Math.min(SLICE_SIZE, frame.length - offset);
+			DatagramPacket packet = new DatagramPacket(frame, offset, length, to, clientVideoPort);
+			if(random.nextDouble() < loss){
+				continue;
+			}
+			try{
+				if(held == null && random.nextDouble() < reorder){
+					held = packet; //Goes out after the next slice
+					continue;
+				}
+				streamSocket.send(packet);
+				if(held != null){
+					streamSocket.send(held);
+					held = null;
+				}
+			}catch(IOException e){
+				return;
+			}
+		}
+		if(held != null){
+			try{
+				streamSocket.send(held);
+			}catch(IOException e){
+			}
+		}
+	}
+
+	private boolean sleepUntil(long deadline){
+		final long wait = deadline - System.nanoTime();
+		if(wait <= 0){
+			return running;
+		}
+		try{
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}catch(InterruptedException e){
+			return false;
+		}
+		return running;
+	}
+
+	private static int parseInt(String s){
+		try{
+			return Integer.parseInt(s);
+		}catch(NumberFormatException e){
+			return 0;
+		}
+	}
+
+	//Cuts an Annex-B stream into frames. SPS, PPS and SEI are sent with the picture that follows them, like the drone does
+	static ArrayList<byte[]> splitFrames(byte[] stream){
+		ArrayList<byte[]> frames = new ArrayList<>();
+		int frameStart = -1;
+		int i = 0;
+		while(i + 3 < stream.length){
+			final int codeLength = startCodeAt(stream, i);
+			if(codeLength == 0){
+				i++;
+				continue;
+			}
+			if(frameStart < 0){
+				frameStart = i;
+			}
+			final int type = stream[i + codeLength] & 0x1F;
+			int next = i + codeLength;
+			while(next + 3 < stream.length && startCodeAt(stream, next) == 0){
+				next++;
+			}
+			if(next + 3 >= stream.length){
+				next = stream.length;
+			}
+			if(type == 1 || type == 5){
+				frames.add(Arrays.copyOfRange(stream, frameStart, next));
+				frameStart = -1;
+			}
+			i = next;
+		}
+		return frames;
+	}
+
+	private static int startCodeAt(byte[] s, int i){
+		if(s[i] == 0 && s[i + 1] == 0){
+			if(s[i + 2] == 1){
+				return 3;
+			}
+			if(s[i + 2] == 0 && s[i + 3] == 1){
+				return 4;
+			}
+		}
+		return 0;
+	}
+
+	//java TelloSimulator [capture.h264] [loss] [jitterMs]
+	public static void main(String[] args) throws Exception {
+		TelloSimulator simulator = new TelloSimulator();
+		if(args.length > 0){
+			simulator.setVideo(new File(args[0]));
+		}
+		if(args.length > 1){
+			simulator.setLoss(Double.parseDouble(args[1]));
+		}
+		if(args.length > 2){
+			simulator.setJitter(Integer.parseInt(args[2]));
+		}
+		simulator.start();
+		System.out.println("Tello simulator listening on " + simulator.bindAddress.getHostAddress() + ":" + simulator.getCommandPort());
+	}
+}
@@ -0,0 +1,558 @@
+/*
+*Copyright (C) 2021 Harshith Doddipalli
+*
+*Licensed under the Apache License, Version 2.0 (the "License");
+*you may not use this file except in compliance with the License.
+*You may obtain a copy of the License at
+*
+*	http://www.apache.org/licenses/LICENSE-2.0
+*
+*Unless required by applicable law or agreed to in writing, software
+*distributed under the License is distributed on an "AS IS" BASIS,
+*WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*See the License for the specific language governing permissions and
+*limitations under the License.
+*/
+
+package com.hdr.tello.v2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.hdr.tello.v2.Tello.CommandTiming;
+import com.hdr.tello.v2.Tello.PendingCommand;
+import com.hdr.tello.v2.Tello.StateParser;
+import com.hdr.tello.v2.Tello.TelloState;
+
+/*
+	Many drones in station mode (Tello EDU "ap" command) through one command socket and one state socket.
+	Replies and state packets are told apart by their source address. Each drone keeps its own queue with one
+	command in flight, the way the SDK expects. A single selector thread does all socket work and timeouts,
+	so futures complete on that thread and their callbacks must not block.
+*/
+
+public class TelloSwarm implements Closeable {
+	public static final int DRONE_COMMAND_PORT = 8889;
+	public static final int DEFAULT_STATE_PORT = 8890;
+	private static final int PACKET_SIZE = 2048;
+	private static final long IDLE_SELECT_MS = 100;
+
+	//One row of the telemetry table: sequence for the seqlock, receive time, then the state fields
+	private static final int ROW = TelloState.FIELDS + 2;
+
+	private final int commandPort;
+	private final int statePort;
+	private final ArrayList<Drone> drones = new ArrayList<>();
+	private final HashMap<InetSocketAddress, Drone> byAddress = new HashMap<>();
+	private final HashMap<InetAddress, Drone> byHost = new HashMap<>(); //Only hosts with a single drone
+	private final ConcurrentLinkedQueue<Pending> submitted = new ConcurrentLinkedQueue<>();
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(PACKET_SIZE);
+	private final byte[] packet = new byte[PACKET_SIZE];
+	private final TelloState scratch = new TelloState();
+	private volatile AtomicLongArray table;
+	private DatagramChannel command;
+	private DatagramChannel state;
+	private Selector selector;
+	private Thread thread;
+	private volatile boolean running;
+
+	public TelloSwarm(){
+		this(0, DEFAULT_STATE_PORT);
+	}
+
+	//commandPort 0 picks a free port, replies come back to whatever port the commands left from
+	public TelloSwarm(int commandPort, int statePort){
+		this.commandPort = commandPort;
+		this.statePort = statePort;
+	}
+
+	public Drone add(String host){
+		return add(new InetSocketAddress(host, DRONE_COMMAND_PORT));
+	}
+
+	//Drones are added before start()
+	public synchronized Drone add(InetSocketAddress address){
+		if(running){
+			throw new IllegalStateException("Drones have to be added before start()");
+		}
+		if(byAddress.containsKey(address)){
+			return byAddress.get(address);
+		}
+		Drone drone = new Drone(drones.size(), address);
+		drones.add(drone);
+		byAddress.put(address, drone);
+		if(byHost.containsKey(address.getAddress())){
+			byHost.put(address.getAddress(), null); //Ambiguous, only the exact address is used
+		}else{
+			byHost.put(address.getAddress(), drone);
+		}
+		return drone;
+	}
+
+	public List<Drone> getDrones(){
+		return Collections.unmodifiableList(drones);
+	}
+
+	public synchronized void start() throws IOException {
+		if(running){
+			return;
+		}
+		table = new AtomicLongArray(drones.size() * ROW);
+		selector = Selector.open();
+		try{
+			command = channel(commandPort);
+			state = channel(statePort);
+		}catch(IOException e){
+			release();
+			throw e;
+		}
+		running = true;
+		thread = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				loop();
+			}
+		}, "TelloSwarm");
+		thread.start();
+	}
+
+	private DatagramChannel channel(int port) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(port));
+		channel.configureBlocking(false);
+		channel.register(selector, SelectionKey.OP_READ);
+		return channel;
+	}
+
+	//Sends the command to every drone. The futures are in the order of getDrones(). Timeouts and retries are
+	//Tello's, moves sized by the speed each drone last confirmed
+	public List<CompletableFuture<String>> broadcast(String command){
+		final byte[] payload = command.getBytes(StandardCharsets.US_ASCII);
+		final int retries = CommandTiming.retries(command);
+		ArrayList<CompletableFuture<String>> futures = new ArrayList<>(drones.size());
+		for(Drone drone : drones){
+			futures.add(submit(drone, payload, CommandTiming.timeoutMs(command, drone.speed), retries, false));
+		}
+		if(running){
+			selector.wakeup(); //Once for the whole group
+		}
+		return futures;
+	}
+
+	//Completes when every drone answered, with the first failure otherwise
+	public CompletableFuture<Void> broadcastAll(String command){
+		final List<CompletableFuture<String>> futures = broadcast(command);
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+	}
+
+	private CompletableFuture<String> submit(Drone drone, byte[] payload, long timeoutMs, int retries, boolean wakeup){
+		Pending pending = new Pending(drone, payload, timeoutMs, retries);
+		if(!running){
+			pending.future.completeExceptionally(new IllegalStateException("Swarm isn't started"));
+			return pending.future;
+		}
+		submitted.offer(pending);
+		if(wakeup){
+			selector.wakeup();
+		}
+		return pending.future;
+	}
+
+	//Latest state of one drone from the telemetry table. Returns false if none arrived yet
+	public boolean getState(int drone, TelloState out){
+		final AtomicLongArray table = this.table;
+		if(table == null){
+			return false;
+		}
+		final int base = drone * ROW;
+		while(true){
+			final long before = table.get(base);
+			if((before & 1) != 0){
+				Thread.yield();
+				continue;
+			}
+			for(int field = 0; field < TelloState.FIELDS; field++){
+				out.setBits(field, table.get(base + 2 + field));
+			}
+			out.receivedAt = table.get(base + 1);
+			if(table.get(base) == before){
+				out.sequence = before / 2;
+				return before != 0;
+			}
+		}
+	}
+
+	private void loop(){
+		while(running){
+			try{
+				selector.select(nextTimeoutMs());
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()){
+					SelectionKey key = keys.next();
+					keys.remove();
+					if(key.channel() == command){
+						drainReplies();
+					}else{
+						drainState();
+					}
+				}
+				Pending pending;
+				while((pending = submitted.poll()) != null){
+					pending.drone.queue.add(pending);
+					if(pending.drone.inFlight == null){
+						sendNext(pending.drone);
+					}
+				}
+				checkTimeouts(System.nanoTime());
+			}catch(ClosedSelectorException e){
+				break;
+			}catch(IOException e){
+				//A single bad datagram must not stop the swarm
+			}
+		}
+		release();
+		for(Drone drone : drones){
+			fail(drone, new IllegalStateException("Swarm closed"));
+		}
+		Pending left;
+		while((left = submitted.poll()) != null){
+			left.future.completeExceptionally(new IllegalStateException("Swarm closed"));
+		}
+	}
+
+	private long nextTimeoutMs(){
+		long earliest = Long.MAX_VALUE;
+		for(Drone drone : drones){
+			if(drone.inFlight != null){
+				earliest = Math.min(earliest, drone.deadline);
+			}
+		}
+		if(earliest == Long.MAX_VALUE){
+			return IDLE_SELECT_MS;
+		}
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(earliest - System.nanoTime()) + 1);
+	}
+
+	private void drainReplies() throws IOException {
+		while(true){
+			buffer.clear();
+			final InetSocketAddress from = (InetSocketAddress) command.receive(buffer);
+			if(from == null){
+				return;
+			}
+			final Drone drone = lookup(from);
+			if(drone == null){
+				continue;
+			}
+			if(drone.lateReplies > 0){
+				//The drone answers in order, so replies inside the window belong to the earlier transmissions
+				if(System.nanoTime() - drone.lateUntil < 0){
+					drone.lateReplies--;
+					drone.dropped.incrementAndGet();
+					continue;
+				}
+				drone.lateReplies = 0;
+			}
+			if(drone.inFlight == null){
+				drone.dropped.incrementAndGet();
+				continue; //Answer to a command nobody waits for anymore
+			}
+			buffer.flip();
+			final byte[] text = new byte[buffer.remaining()];
+			buffer.get(text);
+			final Pending done = drone.inFlight;
+			drone.inFlight = null;
+			//Earlier attempts of a retried command may still be answered too, at the latest as long after the last
+			//attempt as this reply took after the first
+			final long now = System.nanoTime();
+			drone.lateReplies = done.attempts;
+			drone.lateUntil = now + (now - done.firstSentAt);
+			final String reply = new String(text, StandardCharsets.UTF_8).trim();
+			if(reply.equals("ok") && done.verb().equals("speed")){
+				drone.confirmSpeed(done.command());
+			}
+			done.future.complete(reply);
+			sendNext(drone);
+		}
+	}
+
+	private void drainState() throws IOException {
+		while(true){
+			buffer.clear();
+			final InetSocketAddress from = (InetSocketAddress) state.receive(buffer);
+			if(from == null){
+				return;
+			}
+			final Drone drone = lookup(from);
+			if(drone == null){
+				continue;
+			}
+			buffer.flip();
+			final int length = buffer.remaining();
+			buffer.get(packet, 0, length);
+			if(!StateParser.parse(packet, 0, length, scratch)){
+				continue;
+			}
+			final int base = drone.index * ROW;
+			table.incrementAndGet(base);
+			table.set(base + 1, System.nanoTime());
+			for(int field = 0; field < TelloState.FIELDS; field++){
+				table.set(base + 2 + field, scratch.bits(field));
+			}
+			table.incrementAndGet(base);
+		}
+	}
+
+	//State comes from the drone's SDK port, but the IP alone is enough when only one drone uses it
+	private Drone lookup(InetSocketAddress from){
+		final Drone drone = byAddress.get(from);
+		return drone != null ? drone : byHost.get(from.getAddress());
+	}
+
+	private void sendNext(Drone drone){
+		Pending next;
+		while((next = drone.queue.poll()) != null){
+			if(next.future.isDone()){
+				continue; //Cancelled by the caller
+			}
+			drone.inFlight = next;
+			transmit(drone);
+			return;
+		}
+	}
+
+	private void transmit(Drone drone){
+		final Pending pending = drone.inFlight;
+		try{
+			command.send(ByteBuffer.wrap(pending.payload), drone.address);
+			if(pending.attempts == 0){
+				pending.firstSentAt = System.nanoTime();
+			}
+			drone.sent.incrementAndGet();
+		}catch(IOException e){
+			drone.inFlight = null;
+			drone.failed.incrementAndGet();
+			pending.future.completeExceptionally(e);
+			sendNext(drone);
+			return;
+		}
+		if(pending.timeoutMs == 0){
+			drone.inFlight = null;
+			pending.future.complete("");
+			sendNext(drone);
+			return;
+		}
+		drone.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(pending.timeoutMs);
+	}
+
+	private void checkTimeouts(long now){
+		for(Drone drone : drones){
+			final Pending pending = drone.inFlight;
+			if(pending == null || now - drone.deadline < 0){
+				continue;
+			}
+			if(pending.attempts++ < pending.retries){
+				transmit(drone);
+				continue;
+			}
+			drone.inFlight = null;
+			drone.failed.incrementAndGet();
+			//Its replies may still be on the way, they must not complete the next command
+			drone.lateReplies = pending.attempts;
+			drone.lateUntil = now + TimeUnit.MILLISECONDS.toNanos(pending.timeoutMs);
+			pending.future.completeExceptionally(new TimeoutException(drone.address + " " + pending.command() + " timed out after " + pending.timeoutMs + "ms"));
+			sendNext(drone);
+		}
+	}
+
+	private void fail(Drone drone, Exception e){
+		if(drone.inFlight != null){
+			drone.inFlight.future.completeExceptionally(e);
+			drone.inFlight = null;
+		}
+		Pending left;
+		while((left = drone.queue.poll()) != null){
+			left.future.completeExceptionally(e);
+		}
+	}
+
+	//The swarm thread closes the selector and channels on its way out, closing them under it would break the
+	//iteration over the selected keys. Called from the swarm thread itself, e.g. in a future callback, it doesn't wait
+	@Override
+	public synchronized void close(){
+		if(!running){
+			return;
+		}
+		running = false;
+		selector.wakeup();
+		if(thread != Thread.currentThread()){
+			try{
+				thread.join();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	private void release(){
+		try{
+			selector.close();
+		}catch(IOException e){
+		}
+		for(DatagramChannel channel : new DatagramChannel[]{command, state}){
+			if(channel != null){
+				try{
+					channel.close();
+				}catch(IOException e){
+				}
+			}
+		}
+	}
+
+	public class Drone {
+		private final int index;
+		private final InetSocketAddress address;
+		private final ArrayDeque<Pending> queue = new ArrayDeque<>(); //Swarm thread only
+		private Pending inFlight;
+		private long deadline;
+		private int lateReplies; //Transmissions of an earlier command that weren't answered yet, swarm thread only
+		private long lateUntil;
+		private final AtomicLong sent = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+		private final AtomicLong dropped = new AtomicLong();
+		private volatile int speed = CommandTiming.DEFAULT_SPEED; //Last one the drone said ok to
+
+		private Drone(int index, InetSocketAddress address){
+			this.index = index;
+			this.address = address;
+		}
+
+		public int getIndex(){
+			return index;
+		}
+
+		public InetSocketAddress getAddress(){
+			return address;
+		}
+
+		public CompletableFuture<String> sendCommand(String command){
+			return sendCommand(command, CommandTiming.timeoutMs(command, speed), CommandTiming.retries(command));
+		}
+
+		//A timeout of 0 sends the command without waiting for a reply
+		public CompletableFuture<String> sendCommand(String command, long timeoutMs, int retries){
+			return submit(this, command.getBytes(StandardCharsets.US_ASCII), timeoutMs, retries, true);
+		}
+
+		public boolean getState(TelloState out){
+			return TelloSwarm.this.getState(index, out);
+		}
+
+		//Swarm thread only
+		private void confirmSpeed(String command){
+			try{
+				final int confirmed = (int) Double.parseDouble(command.substring(command.indexOf(' ') + 1).trim());
+				if(confirmed > 0){
+					speed = confirmed;
+				}
+			}catch(NumberFormatException e){
+			}
+		}
+
+		//Datagrams sent, retries included
+		public long getCommandsSent(){
+			return sent.get();
+		}
+
+		public long getCommandsFailed(){
+			return failed.get();
+		}
+		
+		//Late or unexpected replies that were thrown away
+		public long getRepliesDropped(){
+			return dropped.get();
+		}
+
+		@Override
+		public String toString(){
+			return "Drone " + index + " " + address;
+		}
+	}
+
+	//Load test on loopback. java TelloSwarm [drones] [rounds]
+	public static void main(String[] args) throws Exception {
+		final int count = args.length > 0 ? Integer.parseInt(args[0]) : 48;
+		final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		final int basePort = 20000;
+		final int statePort = 18890;
+		ArrayList<TelloSimulator> simulators = new ArrayList<>();
+		TelloSwarm swarm = new TelloSwarm(0, statePort);
+		for(int i = 0; i < count; i++){
+			TelloSimulator simulator = new TelloSimulator("127.0.0.1", basePort + i, statePort, 0);
+			simulator.start();
+			simulators.add(simulator);
+			swarm.add(new InetSocketAddress("127.0.0.1", basePort + i));
+		}
+		swarm.start();
+		try{
+			swarm.broadcastAll("command").get(5, TimeUnit.SECONDS);
+			Tello.LatencyHistogram latency = new Tello.LatencyHistogram();
+			final long started = System.nanoTime();
+			for(int round = 0; round < rounds; round++){
+				final long sent = System.nanoTime();
+				swarm.broadcastAll("battery?").get(5, TimeUnit.SECONDS);
+				latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sent));
+			}
+			final double seconds = (System.nanoTime() - started) / 1e9;
+			Thread.sleep(300); //At least one state packet from everyone
+			int reporting = 0;
+			long failed = 0;
+			TelloState state = new TelloState();
+			for(Drone drone : swarm.getDrones()){
+				if(drone.getState(state) && state.bat > 0){
+					reporting++;
+				}
+				failed += drone.getCommandsFailed();
+			}
+			System.out.printf("%d drones, %d broadcasts: %.0f commands/s, round trip p50 %d us p99 %d us, %d failed, %d reporting state%n",
+					count, rounds, count * rounds / seconds, latency.getPercentile(50), latency.getPercentile(99), failed, reporting);
+		}finally{
+			swarm.close();
+			for(TelloSimulator simulator : simulators){
+				simulator.close();
+			}
+		}
+	}
+
+	//Tello's queued command plus the drone it goes to and what the swarm thread needs to retry it
+	private static class Pending extends PendingCommand {
+		final Drone drone;
+		int attempts;
+		long firstSentAt;
+
+		Pending(Drone drone, byte[] payload, long timeoutMs, int retries){
+			super(payload, timeoutMs, retries);
+			this.drone = drone;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+/*
+*Copyright (C) 2021 Harshith Doddipalli
+*
+*Licensed under the Apache License, Version 2.0 (the "License");
+*you may not use this file except in compliance with the License.
+*You may obtain a copy of the License at
+*
+*	http://www.apache.org/licenses/LICENSE-2.0
+*
+*Unless required by applicable law or agreed to in writing, software
+*distributed under the License is distributed on an "AS IS" BASIS,
+*WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*See the License for the specific language governing permissions and
+*limitations under the License.
+*/
+
+package com.hdr.tello.v2;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/*
+	Moves datagrams between Tello and the drone. One transport serves the command, state and video ports.
+	NioTransport does it with a single selector thread, BlockingTransport with one thread per socket.
+*/
+
+public interface Transport {
+	int COMMAND = 0;
+	int STATE = 1;
+	int VIDEO = 2;
+
+	interface Receiver {
+		//Called on the transport's thread. The buffer is only valid until the call returns
+		void onPacket(int port, ByteBuffer packet);
+		void onError(int port, Exception e);
+	}
+
+	//Starts receiving on the local state and video ports and sends commands to drone
+	void open(InetSocketAddress drone, int statePort, int videoPort, Receiver receiver) throws IOException;
+
+	//Sends the remaining bytes of the buffer to the drone's command port. Safe to call from any thread
+	void send(ByteBuffer command) throws IOException;
+
+	void close();
+}
@@ -0,0 +1,537 @@
+/*
+*Copyright (C) 2021 Harshith Doddipalli
+*
+*Licensed under the Apache License, Version 2.0 (the "License");
+*you may not use this file except in compliance with the License.
+*You may obtain a copy of the License at
+*
+*	http://www.apache.org/licenses/LICENSE-2.0
+*
+*Unless required by applicable law or agreed to in writing, software
+*distributed under the License is distributed on an "AS IS" BASIS,
+*WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+*See the License for the specific language governing permissions and
+*limitations under the License.
+*/
+
+package com.hdr.tello.v2;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+	Writes an H.264 stream to a file, either as it came from the drone (Annex-B .h264) or as fragmented MP4.
+	Plain Java, so recordings can be made and checked off the device. Everything is collected in a direct
+	buffer and handed to the FileChannel in large batches. Not thread safe, one thread writes.
+*/
+
+public abstract class VideoRecorder implements Closeable {
+	private static final int BATCH_SIZE = 1024 * 1024;
+
+	private final FileChannel channel;
+	private final ByteBuffer batch = ByteBuffer.allocateDirect(BATCH_SIZE);
+	private long bytesWritten;
+	private long framesWritten;
+
+	protected VideoRecorder(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	//A file ending in .mp4 gets fragmented MP4, anything else the raw stream
+	public static VideoRecorder open(File file) throws IOException {
+		if(file.getName().toLowerCase().endsWith(".mp4")){
+			return new Mp4(file);
+		}
+		return new AnnexB(file);
+	}
+
+	//data holds one access unit in Annex-B format. timeUs only has to increase, the first frame defines zero
+	public final void writeFrame(byte[] data, int offset, int length, long timeUs, boolean keyFrame) throws IOException {
+		if(onFrame(data, offset, length, timeUs, keyFrame)){
+			framesWritten++;
+		}
+	}
+
+	//Returns false if the frame was skipped
+	protected abstract boolean onFrame(byte[] data, int offset, int length, long timeUs, boolean keyFrame) throws IOException;
+
+	protected void finish() throws IOException {
+	}
+
+	public long getBytesWritten(){
+		return bytesWritten + batch.position();
+	}
+
+	public long getFramesWritten(){
+		return framesWritten;
+	}
+
+	protected void put(byte[] data, int offset, int length) throws IOException {
+		if(length > batch.remaining()){
+			flush();
+			if(length > batch.capacity()){
+				write(ByteBuffer.wrap(data, offset, length));
+				return;
+			}
+		}
+		batch.put(data, offset, length);
+	}
+
+	protected void put(ByteBuffer data) throws IOException {
+		if(data.remaining() > batch.remaining()){
+			flush();
+			if(data.remaining() > batch.capacity()){
+				write(data);
+				return;
+			}
+		}
+		batch.put(data);
+	}
+
+	private void flush() throws IOException {
+		batch.flip();
+		write(batch);
+		batch.clear();
+	}
+
+	private void write(ByteBuffer data) throws IOException {
+		while(data.hasRemaining()){
+			bytesWritten += channel.write(data);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try{
+			finish();
+			flush();
+		}finally{
+			channel.close();
+		}
+	}
+
+	//The stream exactly as received, playable with ffplay or VLC
+	static class AnnexB extends VideoRecorder {
+		private boolean started;
+
+		AnnexB(File file) throws IOException {
+			super(file);
+		}
+
+		@Override
+		protected boolean onFrame(byte[] data, int offset, int length, long timeUs, boolean keyFrame) throws IOException {
+			if(!started && !keyFrame){
+				return false;
+			}
+			started = true;
+			put(data, offset, length);
+			return true;
+		}
+	}
+
+	//ISO BMFF with an empty moov and one moof/mdat pair per GOP, so a recording cut short by a crash or a full disk
+	//stays playable up to the last complete fragment. Samples are stored with four byte lengths, SPS and PPS only
+	//in the avcC box
+	static class Mp4 extends VideoRecorder {
+		private static final int TIMESCALE = 90000;
+		private static final int DEFAULT_DURATION = TIMESCALE / 30;
+		private static final long MAX_FRAGMENT_TICKS = 2L * TIMESCALE; //Caps memory when key frames are far apart
+		private static final int FLAGS_SYNC = 0x02000000;     //sample_depends_on = 2
+		private static final int FLAGS_NON_SYNC = 0x01010000; //sample_depends_on = 1, sample_is_non_sync_sample
+
+		private final ByteBuffer boxes = ByteBuffer.allocate(64 * 1024);
+		private byte[] sps;
+		private byte[] pps;
+		private boolean initWritten;
+		private long firstTimeUs = -1;
+		private int fragmentSequence;
+
+		//The fragment being collected. A sample's duration is only known once the next one arrives
+		private byte[] payload = new byte[256 * 1024];
+		private int payloadLength;
+		private int[] sizes = new int[64];
+		private int[] flags = new int[64];
+		private long[] ticks = new long[64];
+		private int samples;
+		private long lastDuration = DEFAULT_DURATION;
+
+		Mp4(File file) throws IOException {
+			super(file);
+		}
+
+		@Override
+		protected boolean onFrame(byte[] data, int offset, int length, long timeUs, boolean keyFrame) throws IOException {
+			if(!initWritten && !keyFrame){
+				return false;
+			}
+			final long tick = firstTimeUs < 0 ? 0 : (timeUs - firstTimeUs) * TIMESCALE / 1000000;
+			if(samples > 0 && (keyFrame || tick - ticks[0] >= MAX_FRAGMENT_TICKS)){
+				writeFragment(tick);
+			}
+			final int sampleStart = payloadLength;
+			final int end = offset + length;
+			int nal = nextNal(data, offset, end);
+			while(nal < end){
+				final int next = nextNal(data, nal, end);
+				final int nalEnd = next == end ? end : startCodeBefore(data, next);
+				switch(data[nal] & 0x1F){
+				case NalType.SPS:
+					if(sps == null){
+						sps = Arrays.copyOfRange(data, nal, nalEnd);
+					}
+					break;
+				case NalType.PPS:
+					if(pps == null){
+						pps = Arrays.copyOfRange(data, nal, nalEnd);
+					}
+					break;
+				case NalType.AUD:
+					break;
+				default:
+					appendSample(data, nal, nalEnd - nal);
+				}
+				nal = next;
+			}
+			if(!initWritten){
+				if(sps == null || pps == null){
+					payloadLength = sampleStart;
+					return false;
+				}
+				writeInit();
+				firstTimeUs = timeUs;
+			}
+			if(payloadLength == sampleStart){
+				return false;
+			}
+			if(samples == sizes.length){
+				sizes = Arrays.copyOf(sizes, samples * 2);
+				flags = Arrays.copyOf(flags, samples * 2);
+				ticks = Arrays.copyOf(ticks, samples * 2);
+			}
+			sizes[samples] = payloadLength - sampleStart;
+			flags[samples] = keyFrame ? FLAGS_SYNC : FLAGS_NON_SYNC;
+			ticks[samples] = tick;
+			samples++;
+			return true;
+		}
+
+		@Override
+		protected void finish() throws IOException {
+			if(samples > 0){
+				writeFragment(ticks[samples - 1] + lastDuration);
+			}
+		}
+
+		private void appendSample(byte[] data, int offset, int length){
+			if(payloadLength + 4 + length > payload.length){
+				payload = Arrays.copyOf(payload, Math.max(payload.length * 2, payloadLength + 4 + length));
+			}
+			payload[payloadLength++] = (byte) (length >>> 24);
+			payload[payloadLength++] = (byte) (length >>> 16);
+			payload[payloadLength++] = (byte) (length >>> 8);
+			payload[payloadLength++] = (byte) length;
+			System.arraycopy(data, offset, payload, payloadLength, length);
+			payloadLength += length;
+		}
+
+		//Index of the first NAL header after the start code at or behind from, or end
+		private static int nextNal(byte[] data, int from, int end){
+			for(int i = from; i + 2 < end; i++){
+				if(data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1){
+					return i + 3;
+				}
+			}
+			return end;
+		}
+
+		//Where the start code in front of the NAL at nal begins, three or four bytes back
+		private static int startCodeBefore(byte[] data, int nal){
+			final int start = nal - 3;
+			return start > 0 && data[start - 1] == 0 ? start - 1 : start;
+		}
+
+		private void writeFragment(long endTick) throws IOException {
+			final ByteBuffer b = boxes;
+			b.clear();
+			final int moof = begin(b, "moof");
+			final int mfhd = begin(b, "mfhd");
+			b.putInt(0);
+			b.putInt(++fragmentSequence);
+			end(b, mfhd);
+			final int traf = begin(b, "traf");
+			final int tfhd = begin(b, "tfhd");
+			b.putInt(0x020000); //default-base-is-moof
+			b.putInt(1);
+			end(b, tfhd);
+			final int tfdt = begin(b, "tfdt");
+			b.putInt(0x01000000); //Version 1, 64 bit decode time
+			b.putLong(ticks[0]);
+			end(b, tfdt);
+			final int trun = begin(b, "trun");
+			b.putInt(0x000701); //data-offset, sample duration, size and flags present
+			b.putInt(samples);
+			final int dataOffset = b.position();
+			b.putInt(0);
+			for(int i = 0; i < samples; i++){
+				final long next = i + 1 < samples ? ticks[i + 1] : endTick;
+				final long duration = Math.max(1, next - ticks[i]);
+				b.putInt((int) duration);
+				b.putInt(sizes[i]);
+				b.putInt(flags[i]);
+				if(i + 1 == samples){
+					lastDuration = duration;
+				}
+			}
+			end(b, trun);
+			end(b, traf);
+			end(b, moof);
+			b.putInt(dataOffset, b.position() + 8); //First sample byte, counted from the start of moof
+			b.putInt(8 + payloadLength);
+			b.put(ascii("mdat"));
+			b.flip();
+			put(b);
+			put(payload, 0, payloadLength);
+			payloadLength = 0;
+			samples = 0;
+		}
+
+		private void writeInit() throws IOException {
+			final int[] size = SpsParser.parseSize(sps, 0, sps.length);
+			final int width = size == null ? 960 : size[0];
+			final int height = size == null ? 720 : size[1];
+			final ByteBuffer b = boxes;
+			b.clear();
+			final int ftyp = begin(b, "ftyp");
+			b.put(ascii("isom"));
+			b.putInt(0x200);
+			b.put(ascii("isomiso6avc1mp41"));
+			end(b, ftyp);
+
+			final int moov = begin(b, "moov");
+			final int mvhd = begin(b, "mvhd");
+			b.putInt(0);
+			b.putInt(0);
+			b.putInt(0);
+			b.putInt(1000); //Timescale
+			b.putInt(0);    //Duration, unknown up front
+			b.putInt(0x00010000); //Rate 1.0
+			b.putShort((short) 0x0100); //Volume 1.0
+			b.put(new byte[10]);
+			putMatrix(b);
+			b.put(new byte[24]);
+			b.putInt(2); //Next track ID
+			end(b, mvhd);
+
+			final int trak = begin(b, "trak");
+			final int tkhd = begin(b, "tkhd");
+			b.putInt(0x000003); //Enabled, in movie
+			b.putInt(0);
+			b.putInt(0);
+			b.putInt(1); //Track ID
+			b.putInt(0);
+			b.putInt(0); //Duration
+			b.put(new byte[8]);
+			b.putShort((short) 0); //Layer
+			b.putShort((short) 0); //Alternate group
+			b.putShort((short) 0); //Volume
+			b.putShort((short) 0);
+			putMatrix(b);
+			b.putInt(width << 16);
+			b.putInt(height << 16);
+			end(b, tkhd);
+
+			final int mdia = begin(b, "mdia");
+			final int mdhd = begin(b, "mdhd");
+			b.putInt(0);
+			b.putInt(0);
+			b.putInt(0);
+			b.putInt(TIMESCALE);
+			b.putInt(0);
+			b.putShort((short) 0x55C4); //Language "und"
+			b.putShort((short) 0);
+			end(b, mdhd);
+			final int hdlr = begin(b, "hdlr");
+			b.putInt(0);
+			b.putInt(0);
+			b.put(ascii("vide"));
+			b.put(new byte[12]);
+			b.put(ascii("VideoHandler"));
+			b.put((byte) 0);
+			end(b, hdlr);
+
+			final int minf = begin(b, "minf");
+			final int vmhd = begin(b, "vmhd");
+			b.putInt(1);
+			b.put(new byte[8]);
+			end(b, vmhd);
+			final int dinf = begin(b, "dinf");
+			final int dref = begin(b, "dref");
+			b.putInt(0);
+			b.putInt(1);
+			final int url = begin(b, "url ");
+			b.putInt(1); //Media is in this file
+			end(b, url);
+			end(b, dref);
+			end(b, dinf);
+
+			final int stbl = begin(b, "stbl");
+			final int stsd = begin(b, "stsd");
+			b.putInt(0);
+			b.putInt(1);
+			final int avc1 = begin(b, "avc1");
+			b.put(new byte[6]);
+			b.putShort((short) 1); //Data reference index
+			b.put(new byte[16]);
+			b.putShort((short) width);
+			b.putShort((short) height);
+			b.putInt(0x00480000); //72 dpi
+			b.putInt(0x00480000);
+			b.putInt(0);
+			b.putShort((short) 1); //Frame count
+			b.put(new byte[32]);   //Compressor name
+			b.putShort((short) 0x0018);
+			b.putShort((short) -1);
+			final int avcC = begin(b, "avcC");
+			b.put((byte) 1);
+			b.put(sps[1]); //Profile
+			b.put(sps[2]); //Constraints
+			b.put(sps[3]); //Level
+			b.put((byte) 0xFF); //Four byte NAL lengths
+			b.put((byte) 0xE1); //One SPS
+			b.putShort((short) sps.length);
+			b.put(sps);
+			b.put((byte) 1);
+			b.putShort((short) pps.length);
+			b.put(pps);
+			if((sps[1] & 0xFF) >= 100){
+				b.put((byte) 0xFD); //4:2:0
+				b.put((byte) 0xF8); //8 bit luma
+				b.put((byte) 0xF8); //8 bit chroma
+				b.put((byte) 0);
+			}
+			end(b, avcC);
+			end(b, avc1);
+			end(b, stsd);
+			for(String empty : new String[]{"stts", "stsc", "stco"}){
+				final int box = begin(b, empty);
+				b.putInt(0);
+				b.putInt(0);
+				end(b, box);
+			}
+			final int stsz = begin(b, "stsz");
+			b.putInt(0);
+			b.putInt(0);
+			b.putInt(0);
+			end(b, stsz);
+			end(b, stbl);
+			end(b, minf);
+			end(b, mdia);
+			end(b, trak);
+
+			final int mvex = begin(b, "mvex");
+			final int trex = begin(b, "trex");
+			b.putInt(0);
+			b.putInt(1); //Track ID
+			b.putInt(1); //Sample description
+			b.putInt(0);
+			b.putInt(0);
+			b.putInt(0);
+			end(b, trex);
+			end(b, mvex);
+			end(b, moov);
+			b.flip();
+			put(b);
+			initWritten = true;
+		}
+
+		private static void putMatrix(ByteBuffer b){
+			b.putInt(0x00010000);
+			b.putInt(0);
+			b.putInt(0);
+			b.putInt(0);
+			b.putInt(0x00010000);
+			b.putInt(0);
+			b.putInt(0);
+			b.putInt(0);
+			b.putInt(0x40000000);
+		}
+
+		//Boxes are written with a zero size that end() fills in
+		private static int begin(ByteBuffer b, String type){
+			final int start = b.position();
+			b.putInt(0);
+			b.put(ascii(type));
+			return start;
+		}
+
+		private static void end(ByteBuffer b, int start){
+			b.putInt(start, b.position() - start);
+		}
+	}
+
+	private static final class NalType {
+		static final int SPS = 7;
+		static final int PPS = 8;
+		static final int AUD = 9;
+	}
+
+	private static byte[] ascii(String s){
+		final byte[] bytes = new byte[s.length()];
+		for(int i = 0; i < bytes.length; i++){
+			bytes[i] = (byte) s.charAt(i);
+		}
+		return bytes;
+	}
+
+	//Sustained write throughput, timed up to the end of close() so the index and the final flush are included.
+	//java VideoRecorder out.mp4 [seconds] [bitrateMbps]
+	public static void main(String[] args) throws IOException {
+		final File file = new File(args.length > 0 ? args[0] : "benchmark.mp4");
+		final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+		final int bitrate = (args.length > 2 ? Integer.parseInt(args[2]) : 4) * 1000 * 1000;
+		final int fps = 30;
+		final int gop = fps;
+		final byte[] parameterSets = {0, 0, 0, 1, 103, 66, 0, 42, (byte) 149, (byte) 168, 30, 0, (byte) 137, (byte) 249, 102, (byte) 224, 32,
+				32, 32, 64, 0, 0, 0, 1, 104, (byte) 206, 60, (byte) 128};
+		final Random random = new Random(1);
+		//Built once: SPS, PPS and an IDR slice for key frames, a single non-IDR slice for the others
+		final byte[] keyFrame = slice(random, parameterSets, 101, bitrate / 8 / fps * 4);
+		final byte[] frame = slice(random, new byte[0], 65, bitrate / 8 / fps / 2);
+
+		final long started = System.nanoTime();
+		final VideoRecorder recorder = open(file);
+		try{
+			for(int n = 0; n < seconds * fps; n++){
+				final long timeUs = n * 1000000L / fps;
+				if(n % gop == 0){
+					recorder.writeFrame(keyFrame, 0, keyFrame.length, timeUs, true);
+				}else{
+					recorder.writeFrame(frame, 0, frame.length, timeUs, false);
+				}
+			}
+		}finally{
+			recorder.close();
+		}
+		final double elapsed = (System.nanoTime() - started) / 1e9;
+		System.out.printf("%d frames, %.1f MB in %.2f s: %.1f MB/s, %.0fx real time, %d bytes on disk%n", recorder.getFramesWritten(),
+				recorder.getBytesWritten() / 1e6, elapsed, recorder.getBytesWritten() / 1e6 / elapsed, seconds / elapsed, file.length());
+	}
+
+	//prefix, then a NAL unit of the given header byte with size bytes of payload that holds no start code
+	private static byte[] slice(Random random, byte[] prefix, int nalHeader, int size){
+		final byte[] unit = new byte[prefix.length + 5 + size];
+		System.arraycopy(prefix, 0, unit, 0, prefix.length);
+		unit[prefix.length + 3] = 1;
+		unit[prefix.length + 4] = (byte) nalHeader;
+		for(int i = prefix.length + 5; i < unit.length; i++){
+			unit[i] = (byte) (1 + random.nextInt(255));
+		}
+		return unit;
+	}
+}